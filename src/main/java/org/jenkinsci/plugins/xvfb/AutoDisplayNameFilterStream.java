@@ -42,7 +42,7 @@ public class AutoDisplayNameFilterStream extends FilterOutputStream {
 
     private int idx;
 
-    private int displayNumber;
+    private volatile int displayNumber;
 
     private final long waitTime;
 
@@ -69,6 +69,16 @@ public class AutoDisplayNameFilterStream extends FilterOutputStream {
         super.close();
     }
 
+    /** Waits up to given milliseconds for Xvfb to write the display number, returns <code>true</code> if it was written. */
+    public boolean awaitDisplayNumber(final long millis) throws InterruptedException {
+        if (received.tryAcquire(millis, TimeUnit.MILLISECONDS)) {
+            received.release();
+            return true;
+        }
+
+        return false;
+    }
+
     public int getDisplayNumber() throws InterruptedException {
         if (received.tryAcquire(waitTime, TimeUnit.SECONDS)) {
             return displayNumber;
@@ -0,0 +1,134 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Channel to the node counting the round trips made through it while setting up Xvfb for a build. Calls and file operations of the setup go
+ * through it, so what is counted is what was sent. Calls the launcher makes to start processes and the ones Jenkins makes itself, like
+ * translating tool installations, go through the channel of the computer and are not counted.
+ */
+final class RemoteCallCounter implements VirtualChannel {
+
+    private final VirtualChannel channel;
+
+    /** Is the channel to another node, calls on the controller's own channel are not round trips. */
+    private final boolean remote;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** @param channel channel to the node, <code>null</code> if there is none */
+    RemoteCallCounter(final VirtualChannel channel) {
+        this.channel = channel;
+        remote = channel instanceof Channel;
+    }
+
+    /** Runs the callable on the file, counted if the file is on another node. */
+    <T> T act(final FilePath file, final FileCallable<T> callable) throws IOException, InterruptedException {
+        if (file.isRemote()) {
+            count.incrementAndGet();
+        }
+
+        return file.act(callable);
+    }
+
+    @Override
+    public <V, T extends Throwable> V call(final Callable<V, T> callable) throws IOException, T, InterruptedException {
+        counted();
+
+        return channel.call(callable);
+    }
+
+    @Override
+    public <V, T extends Throwable> Future<V> callAsync(final Callable<V, T> callable) throws IOException {
+        counted();
+
+        return channel.callAsync(callable);
+    }
+
+    /** This channel counting the calls made through it, <code>null</code> if there is no channel to the node. */
+    VirtualChannel channel() {
+        return channel == null ? null : this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void counted() {
+        if (remote) {
+            count.incrementAndGet();
+        }
+    }
+
+    @Override
+    public <T> T export(final Class<T> type, final T instance) {
+        return channel.export(type, instance);
+    }
+
+    int get() {
+        return count.get();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        channel.join();
+    }
+
+    @Override
+    public void join(final long timeout) throws InterruptedException {
+        channel.join(timeout);
+    }
+
+    /** Creates the directory and its parents, counted if it is on another node. */
+    void mkdirs(final FilePath directory) throws IOException, InterruptedException {
+        if (directory.isRemote()) {
+            count.incrementAndGet();
+        }
+
+        directory.mkdirs();
+    }
+
+    @Override
+    public void syncLocalIO() throws InterruptedException {
+        counted();
+
+        channel.syncLocalIO();
+    }
+}
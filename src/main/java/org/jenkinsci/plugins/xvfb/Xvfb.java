@@ -32,6 +32,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -39,10 +40,11 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -72,6 +74,7 @@ import hudson.model.Executor;
 import hudson.model.Items;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.Run.RunnerAbortedException;
@@ -79,12 +82,16 @@ import hudson.model.labels.LabelAtom;
 import hudson.model.listeners.RunListener;
 import hudson.remoting.Channel;
 import hudson.remoting.ChannelClosedException;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.tools.ToolInstallation;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.util.ProcessTree;
 import hudson.util.ProcessTree.OSProcess;
 import hudson.util.XStream2;
@@ -127,6 +134,9 @@ public class Xvfb extends SimpleBuildWrapper {
         @CopyOnWrite
         private volatile XvfbInstallation[] installations = new XvfbInstallation[0];
 
+        /** Installations translated for nodes, keyed by computer name and installation name, so builds don't need to translate them again. */
+        private final transient ConcurrentMap<String, XvfbInstallation> translatedInstallations = new ConcurrentHashMap<String, XvfbInstallation>();
+
         public XvfbBuildWrapperDescriptor() {
             load();
         }
@@ -134,12 +144,9 @@ public class Xvfb extends SimpleBuildWrapper {
         /** adopted from @see hudson.model.AbstractProject.AbstractProjectDescriptor#doAutoCompleteAssignedLabels */
         public AutoCompletionCandidates doAutoCompleteAssignedLabels(@AncestorInPath final AbstractProject<?, ?> project, @QueryParameter final String value) {
             final AutoCompletionCandidates candidates = new AutoCompletionCandidates();
-            final Set<Label> labels = Jenkins.get().getLabels();
 
-            for (final Label label : labels) {
-                if (value == null || label.getName().startsWith(value)) {
-                    candidates.add(label.getName());
-                }
+            for (final String label : XvfbLabels.complete(value)) {
+                candidates.add(label);
             }
 
             return candidates;
@@ -152,7 +159,7 @@ public class Xvfb extends SimpleBuildWrapper {
             }
 
             try {
-                Label.parseExpression(value);
+                XvfbLabels.parse(value);
             } catch (final ANTLRException e) {
                 return FormValidation.error(e, Messages.XvfbBuildWrapper_AssignedLabelString_InvalidBooleanExpression(e.getMessage()));
             }
@@ -173,6 +180,10 @@ public class Xvfb extends SimpleBuildWrapper {
             return FormValidation.okWithMarkup(Messages.XvfbBuildWrapper_LabelLink(jenkins.getRootUrl(), label.getUrl(), label.getNodes().size() + label.getClouds().size()));
         }
 
+        public FormValidation doCheckCpuLimit(@QueryParameter final String value) throws IOException {
+            return validateOptionalPositiveInteger(value);
+        }
+
         public FormValidation doCheckDisplayName(@QueryParameter final String value) throws IOException {
             return validateOptionalNonNegativeInteger(value);
         }
@@ -181,6 +192,33 @@ public class Xvfb extends SimpleBuildWrapper {
             return validateOptionalPositiveInteger(value);
         }
 
+        public ListBoxModel doFillProfileItems() {
+            final ListBoxModel items = new ListBoxModel();
+            for (final XvfbProfile profile : XvfbProfile.values()) {
+                items.add(profile.getDisplayName(), profile.name());
+            }
+
+            return items;
+        }
+
+        public FormValidation doCheckResizableTo(@QueryParameter final String value) {
+            try {
+                largestScreen(DEFAULT_SCREEN, value);
+            } catch (final IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMemoryLimit(@QueryParameter final String value) throws IOException {
+            return validateOptionalPositiveInteger(value);
+        }
+
+        public FormValidation doCheckRenderThreads(@QueryParameter final String value) throws IOException {
+            return validateOptionalPositiveInteger(value);
+        }
+
         public FormValidation doCheckTimeout(@QueryParameter final String value) throws IOException {
             return validateOptionalNonNegativeInteger(value);
         }
@@ -205,10 +243,31 @@ public class Xvfb extends SimpleBuildWrapper {
             return Messages.XvfbBuildWrapper_DisplayName();
         }
 
+        void forgetTranslatedInstallations() {
+            translatedInstallations.clear();
+        }
+
+        void forgetTranslatedInstallations(final String computerName) {
+            final String prefix = computerName + '\u0000';
+            for (final String key : translatedInstallations.keySet()) {
+                if (key.startsWith(prefix)) {
+                    translatedInstallations.remove(key);
+                }
+            }
+        }
+
         public XvfbInstallation[] getInstallations() {
             return installations.clone();
         }
 
+        XvfbInstallation getTranslatedInstallation(final String computerName, final String installationName) {
+            return translatedInstallations.get(computerName + '\u0000' + installationName);
+        }
+
+        void rememberTranslatedInstallation(final String computerName, final String installationName, final XvfbInstallation installation) {
+            translatedInstallations.put(computerName + '\u0000' + installationName, installation);
+        }
+
         public XvfbInstallation.DescriptorImpl getToolDescriptor() {
             return ToolInstallation.all().get(XvfbInstallation.DescriptorImpl.class);
         }
@@ -230,6 +289,10 @@ public class Xvfb extends SimpleBuildWrapper {
                 this.installations = installations;
             }
             save();
+
+            forgetTranslatedInstallations();
+            XvfbCapabilities.invalidate();
+            XvfbNodeCache.warmAll();
         }
 
         private FormValidation validateOptionalNonNegativeInteger(final String value) {
@@ -249,7 +312,7 @@ public class Xvfb extends SimpleBuildWrapper {
         }
     }
 
-    private static final String JENKINS_XVFB_COOKIE = "_JENKINS_XVFB_COOKIE";
+    static final String JENKINS_XVFB_COOKIE = "_JENKINS_XVFB_COOKIE";
 
     private static final String STDERR_FD = "2";
 
@@ -264,6 +327,8 @@ public class Xvfb extends SimpleBuildWrapper {
                 return;
             }
 
+            XvfbMetrics.deferredTeardownStarted();
+
             try {
                 final Executor executor = r.getExecutor();
                 if (executor == null) {
@@ -280,7 +345,7 @@ public class Xvfb extends SimpleBuildWrapper {
 
                 final Launcher launcher = node.createLauncher(listener);
 
-                Xvfb.shutdownAndCleanup(xvfbEnvironment, launcher, listener);
+                Xvfb.shutdownAndCleanup(r, xvfbEnvironment, launcher, listener);
             } catch (final IOException e) {
                 throw new RuntimeException(e);
             } catch (final InterruptedException e) {
@@ -303,7 +368,7 @@ public class Xvfb extends SimpleBuildWrapper {
 
             final List<XvfbEnvironment> slained = new ArrayList<XvfbEnvironment>();
             for (final XvfbEnvironment zombie : zombiesAtComputer) {
-                shutdownAndCleanupZombie(channel, zombie, listener);
+                shutdownAndCleanupZombie(channel, c.getName(), zombie, listener);
 
                 slained.add(zombie);
             }
@@ -313,6 +378,56 @@ public class Xvfb extends SimpleBuildWrapper {
 
     };
 
+    /** Installations translated for a node depend on the node configuration, and on the environment of its agent process. */
+    @Extension
+    public static final ComputerListener translatedInstallationsListener = new ComputerListener() {
+        @Override
+        public void onConfigurationChange() {
+            descriptor().forgetTranslatedInstallations();
+        }
+
+        @Override
+        public void onOffline(final Computer c, final OfflineCause cause) {
+            descriptor().forgetTranslatedInstallations(c.getName());
+        }
+
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) {
+            descriptor().forgetTranslatedInstallations(c.getName());
+        }
+
+        private XvfbBuildWrapperDescriptor descriptor() {
+            return Jenkins.get().getDescriptorByType(XvfbBuildWrapperDescriptor.class);
+        }
+    };
+
+    /** node labels might have changed, match results of assigned labels and the label index are no longer valid */
+    @Extension
+    public static final ComputerListener labelsListener = new ComputerListener() {
+        @Override
+        public void onConfigurationChange() {
+            XvfbLabels.forgetMatches();
+            XvfbLabels.forgetIndex();
+        }
+
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) {
+            final Node node = c.getNode();
+            if (node != null) {
+                XvfbLabels.index(node);
+            }
+        }
+    };
+
+    /** the agent might have come back on other hardware, or with other processors available to it */
+    @Extension
+    public static final ComputerListener processorsListener = new ComputerListener() {
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) {
+            XvfbNodeStatistics.forgetProcessors(c.getName());
+        }
+    };
+
     private static final int MILLIS_IN_SECOND = 1000;
 
     /** default screen configuration for Xvfb, used by default, and if user left screen configuration blank */
@@ -337,15 +452,59 @@ public class Xvfb extends SimpleBuildWrapper {
         return new ConcurrentHashMap<String, List<XvfbEnvironment>>();
     }
 
-    static void shutdownAndCleanup(final XvfbEnvironment xvfbEnvironment, final Launcher launcher, final TaskListener listener) throws IOException, InterruptedException {
+    /** Xvfb servers left on disconnected nodes, by computer name. */
+    static Map<String, List<XvfbEnvironment>> zombies() {
+        return Collections.unmodifiableMap(zombies);
+    }
+
+    /** Number of Xvfb servers left on disconnected nodes. */
+    static int countZombies() {
+        int count = 0;
+        for (final List<XvfbEnvironment> zombiesAtComputer : zombies.values()) {
+            count += zombiesAtComputer.size();
+        }
+
+        return count;
+    }
+
+    static void shutdownAndCleanup(final Run<?, ?> run, final XvfbEnvironment xvfbEnvironment, final Launcher launcher, final TaskListener listener)
+            throws IOException, InterruptedException {
 
         listener.getLogger().println(Messages.XvfbBuildWrapper_Stopping());
 
+        if (xvfbEnvironment.computerName != null && !xvfbEnvironment.lazy) {
+            XvfbNodeStatistics.of(xvfbEnvironment.computerName).displayStopped();
+        }
+
+        final long stoppingAt = System.currentTimeMillis();
+        XvfbMetrics.teardownStarted();
+        final XvfbFlightRecorder.Event teardownEvent = XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.TEARDOWN);
+        String outcome = "failed";
         try {
+            final XvfbLaunch.Result overlappedStart = awaitReady(run, xvfbEnvironment, launcher.getChannel(), true);
+            if (overlappedStart != null && !overlappedStart.alive) {
+                reportFailedStart(run, xvfbEnvironment.computerName, overlappedStart, listener);
+                listener.error(Messages.XvfbBuildWrapper_FailedToStart());
+                if (run.isBuilding()) {
+                    run.setResult(Result.FAILURE);
+                }
+            }
+
+            stopSampling(xvfbEnvironment, launcher.getChannel());
+            stopCompanions(xvfbEnvironment, launcher.getChannel());
+            stopProxy(xvfbEnvironment, launcher.getChannel(), listener);
+            if (xvfbEnvironment.lazy) {
+                stopListening(xvfbEnvironment, launcher.getChannel(), listener);
+            }
+
             launcher.kill(Collections.singletonMap(JENKINS_XVFB_COOKIE, xvfbEnvironment.cookie));
+            releaseCgroup(xvfbEnvironment, launcher.getChannel());
             final FilePath frameBufferPath = new FilePath(launcher.getChannel(), xvfbEnvironment.frameBufferDir);
             frameBufferPath.deleteRecursive();
+            outcome = "stopped";
         } catch (final ChannelClosedException e) {
+            outcome = "node disconnected";
+
             synchronized (zombies) {
                 final Computer currentComputer = Computer.currentComputer();
                 final String computerName = currentComputer.getName();
@@ -357,18 +516,220 @@ public class Xvfb extends SimpleBuildWrapper {
                     zombies.put(computerName, zombiesAtComputer);
                 }
 
-                zombiesAtComputer.add(new XvfbEnvironment(xvfbEnvironment.cookie, xvfbEnvironment.frameBufferDir, xvfbEnvironment.displayName, false));
+                final XvfbEnvironment zombie = new XvfbEnvironment(xvfbEnvironment.cookie, xvfbEnvironment.frameBufferDir, xvfbEnvironment.displayName, false);
+                zombiesAtComputer.add(zombie);
+                XvfbListener.fireZombie(computerName, zombie);
 
+                final XvfbFlightRecorder.Event persistenceEvent = XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.ZOMBIE_PERSISTENCE);
                 final XmlFile fileOfZombies = zombiesFile();
                 fileOfZombies.write(zombies);
+                persistenceEvent.end(xvfbEnvironment.displayName, computerName, "persisted");
+            }
+        } finally {
+            final long teardownMillis = System.currentTimeMillis() - stoppingAt;
+            XvfbMetrics.teardownFinished(teardownMillis);
+            teardownEvent.end(xvfbEnvironment.displayName, xvfbEnvironment.computerName, outcome);
+
+            if (xvfbEnvironment.timings != null) {
+                xvfbEnvironment.timings.setTeardownMillis(teardownMillis);
             }
+
+            XvfbListener.fireTeardown(run, xvfbEnvironment);
         }
     }
 
-    private static void shutdownAndCleanupZombie(final Channel channel, final XvfbEnvironment zombie, final TaskListener listener) throws IOException, InterruptedException {
+    /** Starts the companions in parallel once the display is ready, stopping the display if one of them fails, returns what they export. */
+    private Map<String, String> startCompanions(final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener,
+            final XvfbEnvironment xvfbEnvironment, final EnvVars environment) throws IOException, InterruptedException {
+        final VirtualChannel channel = launcher.getChannel();
+        if (channel == null || !isPlainLauncher(launcher)) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_CompanionsUnsupported());
+            return Collections.emptyMap();
+        }
+
+        // companions connect to the display right away, it needs to be ready for them
+        final XvfbLaunch.Result overlappedStart = awaitReady(run, xvfbEnvironment, channel, false);
+        final XvfbCompanions.Started started = overlappedStart != null && !overlappedStart.alive ? null
+                : workspace.act(new XvfbCompanions(getCompanions(), xvfbEnvironment.cookie, environment));
+        xvfbEnvironment.withCompanions = true;
+
+        if (started == null || started.failed != null) {
+            if (started == null) {
+                reportFailedStart(run, xvfbEnvironment.computerName, overlappedStart, listener);
+                listener.error(Messages.XvfbBuildWrapper_FailedToStart());
+            }
+            else {
+                listener.error(Messages.XvfbBuildWrapper_CompanionFailed(started.failed));
+                listener.getLogger().write(started.output);
+            }
+            shutdownAndCleanup(run, xvfbEnvironment, launcher, listener);
+
+            throw new RunnerAbortedException();
+        }
+
+        listener.getLogger().println(Messages.XvfbBuildWrapper_CompanionsReady(getCompanions().size(), started.readyMillis));
+
+        return started.exports;
+    }
+
+    private static void stopCompanions(final XvfbEnvironment xvfbEnvironment, final VirtualChannel channel) throws ChannelClosedException, InterruptedException {
+        if (!xvfbEnvironment.withCompanions || channel == null) {
+            return;
+        }
+
+        try {
+            channel.call(new XvfbCompanions.Stop(xvfbEnvironment.cookie));
+        } catch (final ChannelClosedException e) {
+            throw e;
+        } catch (final IOException ignore) {
+            // companions carry the cookie, they are killed with Xvfb
+        }
+    }
+
+    /** Starts the proxy display recording what clients ask Xvfb for, the build goes on with the display of Xvfb if it can't be started. */
+    private static void startProxy(final Launcher launcher, final TaskListener listener, final XvfbEnvironment xvfbEnvironment, final RemoteCallCounter remoteCalls)
+            throws InterruptedException {
+        final VirtualChannel channel = remoteCalls.channel();
+        if (channel == null || !isPlainLauncher(launcher)) {
+            // clients of decorated launchers may not reach the loopback interface of the node
+            listener.getLogger().println(Messages.XvfbBuildWrapper_InstrumentationUnsupported());
+            return;
+        }
+
+        try {
+            xvfbEnvironment.proxyDisplayName = channel.call(new XvfbProxy.Start(xvfbEnvironment.cookie, xvfbEnvironment.displayName, xvfbEnvironment.lazy,
+                    xvfbEnvironment.displayName + XvfbProxy.DISPLAY_OFFSET));
+            listener.getLogger().println(Messages.XvfbBuildWrapper_ProxyStarted(xvfbEnvironment.display()));
+        } catch (final IOException e) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_ProxyFailed(e.getMessage()));
+        }
+    }
+
+    private static void stopProxy(final XvfbEnvironment xvfbEnvironment, final VirtualChannel channel, final TaskListener listener)
+            throws ChannelClosedException, InterruptedException {
+        if (xvfbEnvironment.proxyDisplayName == null || channel == null) {
+            return;
+        }
+
+        try {
+            xvfbEnvironment.proxyReport = channel.call(new XvfbProxy.Stop(xvfbEnvironment.cookie));
+        } catch (final ChannelClosedException e) {
+            throw e;
+        } catch (final IOException ignore) {
+            // the report is best effort, don't let it get in the way of shutting Xvfb down
+        }
+
+        final XvfbProxyReport report = xvfbEnvironment.proxyReport;
+        if (report != null) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_ProxyReport(report.getConnections(), report.getRequests(), report.getRoundTrips(),
+                    report.getMeanRoundTripMicros(), report.getBlockingReplies(), report.getBlockingMillis(), report.getProxyCpuMillis()));
+        }
+    }
+
+    private static void stopSampling(final XvfbEnvironment xvfbEnvironment, final VirtualChannel channel) throws ChannelClosedException, InterruptedException {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            xvfbEnvironment.resources = channel.call(new XvfbResourceSampler.Stop(xvfbEnvironment.cookie));
+        } catch (final ChannelClosedException e) {
+            throw e;
+        } catch (final IOException ignore) {
+            // sampling is best effort, don't let it get in the way of shutting Xvfb down
+        }
+
+        if (xvfbEnvironment.resources != null && xvfbEnvironment.computerName != null) {
+            XvfbNodeStatistics.of(xvfbEnvironment.computerName).resourcesSampled(xvfbEnvironment.resources);
+        }
+    }
+
+    private static void releaseCgroup(final XvfbEnvironment xvfbEnvironment, final VirtualChannel channel) throws ChannelClosedException, InterruptedException {
+        if (!xvfbEnvironment.confined || channel == null) {
+            return;
+        }
+
+        try {
+            xvfbEnvironment.cgroupUsage = channel.call(new XvfbCgroup.Release(xvfbEnvironment.cookie));
+        } catch (final ChannelClosedException e) {
+            throw e;
+        } catch (final IOException ignore) {
+            // usage is best effort, don't let it get in the way of shutting Xvfb down
+        }
+    }
+
+    /**
+     * Waits on the node for Xvfb started in the background to become ready. Returns the outcome of the start, or <code>null</code> if Xvfb was not
+     * started in the background, or when tearing down if the outcome was already collected.
+     */
+    static XvfbLaunch.Result awaitReady(final Run<?, ?> run, final XvfbEnvironment xvfbEnvironment, final VirtualChannel channel, final boolean tearingDown)
+            throws IOException, InterruptedException {
+        if (!xvfbEnvironment.overlapped || channel == null) {
+            return null;
+        }
+
+        final XvfbLaunch.Result result = channel.call(new XvfbLaunch.Await(xvfbEnvironment.cookie, tearingDown));
+        if (result != null && xvfbEnvironment.timings != null) {
+            xvfbEnvironment.timings.setReadinessMillis(result.readinessMillis);
+        }
+        if (result != null && result.alive) {
+            notifyReady(run, xvfbEnvironment);
+        }
+
+        return result;
+    }
+
+    /** Tells listeners the display is ready, once, however many times readiness is confirmed. */
+    private static void notifyReady(final Run<?, ?> run, final XvfbEnvironment xvfbEnvironment) {
+        if (xvfbEnvironment.markReady()) {
+            XvfbListener.fireReady(run, xvfbEnvironment);
+        }
+    }
+
+    static void reportFailedStart(final Run<?, ?> run, final String computerName, final XvfbLaunch.Result result, final TaskListener listener) throws IOException {
+        XvfbListener.fireCrashed(run, computerName, result.displayName, new String(result.output, Charset.defaultCharset()));
+
+        listener.getLogger().write(result.output);
+        listener.getLogger().println();
+
+        XvfbMetrics.failed(XvfbMetrics.Failure.FAILED_TO_START);
+    }
+
+    private static void stopListening(final XvfbEnvironment xvfbEnvironment, final VirtualChannel channel, final TaskListener listener)
+            throws IOException, InterruptedException {
+        if (channel == null) {
+            return;
+        }
+
+        final String failure = channel.call(new XvfbLazyLaunch.Stop(xvfbEnvironment.cookie));
+        if (failure != null) {
+            listener.getLogger().println(failure);
+            listener.error(Messages.XvfbBuildWrapper_FailedToStartLazily());
+        }
+    }
+
+    /**
+     * Stops Xvfb with the cookie and what was started with it on the node of the launcher, as the teardown of the build does. Used for displays
+     * stopped outside of their build, the build's own teardown then finds nothing left to stop.
+     */
+    static void kill(final Launcher launcher, final String cookie) throws IOException, InterruptedException {
+        final VirtualChannel channel = launcher.getChannel();
+
+        channel.call(new XvfbResourceSampler.Stop(cookie));
+        channel.call(new XvfbCompanions.Stop(cookie));
+        channel.call(new XvfbProxy.Stop(cookie));
+        channel.call(new XvfbLazyLaunch.Stop(cookie));
+
+        launcher.kill(Collections.singletonMap(JENKINS_XVFB_COOKIE, cookie));
+        channel.call(new XvfbCgroup.Release(cookie));
+    }
+
+    private static void shutdownAndCleanupZombie(final Channel channel, final String computerName, final XvfbEnvironment zombie, final TaskListener listener)
+            throws IOException, InterruptedException {
 
         listener.getLogger().println(Messages.XvfbBuildWrapper_KillingZombies(zombie.displayName, zombie.frameBufferDir));
 
+        final XvfbFlightRecorder.Event reapingEvent = XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.ZOMBIE_REAPING);
         try {
             channel.call(new MasterToSlaveCallable<Void, InterruptedException>() {
                 private static final long serialVersionUID = 1L;
@@ -396,7 +757,11 @@ public class Xvfb extends SimpleBuildWrapper {
                     return null;
                 }
             });
+            XvfbMetrics.zombieKilled();
+            reapingEvent.end(zombie.displayName, computerName, "killed");
         } catch (final InterruptedException e) {
+            reapingEvent.end(zombie.displayName, computerName, "interrupted");
+
             // if we propagate the exception, slave will be obstructed from going online
             listener.getLogger().println(Messages.XvfbBuildWrapper_ZombieSlainFailed());
             e.printStackTrace(listener.getLogger());
@@ -419,7 +784,7 @@ public class Xvfb extends SimpleBuildWrapper {
     /** Should the Xvfb output be displayed in job output. */
     private boolean debug = false;
 
-    /** Time in milliseconds to wait for Xvfb initialization, by default 1 second. */
+    /** Time in seconds to wait for Xvfb initialization, by default 1 second. */
     private long timeout = 1;
 
     /** Offset for display names, default is 1. Display names are taken from build executor's number, i.e. if the build is performed by executor 4, and offset is 100, display name will be 104. */
@@ -437,14 +802,55 @@ public class Xvfb extends SimpleBuildWrapper {
     /** Run only on nodes labeled */
     private String assignedLabels;
 
+    /** Parsed {@link #assignedLabels}, parsed on first use */
+    private transient volatile Label assignedLabel;
+
     /** Run on same node in parallel */
     private boolean parallelBuild = false;
 
+    /** Start Xvfb only when the first client connects to the display */
+    private boolean lazy = false;
+
+    /** Let the build go on while Xvfb starts, until it waits for the display */
+    private boolean overlapped = false;
+
+    /** Give clients a proxy display recording what they ask Xvfb for */
+    private boolean instrumented = false;
+
+    /** Name of the {@link XvfbProfile} of options Xvfb is started with, the default profile if not set */
+    private String profile;
+
+    /** Render threads for each OpenGL client using llvmpipe, if NULL the processors of the node divided by the displays running there */
+    private Integer renderThreads;
+
+    /** Gallium driver exported to clients, if blank left for Mesa to choose */
+    private String galliumDriver;
+
+    /** Pin Xvfb to a CPU chosen by the executor number */
+    private boolean pinToCpu = false;
+
+    /** Share of one CPU Xvfb may use in percent, if NULL not limited */
+    private Integer cpuLimit;
+
+    /** Memory Xvfb may use in MB, if NULL not limited */
+    private Integer memoryLimit;
+
+    /** Processes started in parallel once the display is ready, and stopped with it */
+    private List<XvfbCompanion> companions;
+
+    /** Other screen sizes, in the form WxH separated by spaces, the screen can be changed to while Xvfb runs */
+    private String resizableTo;
+
     @DataBoundConstructor
     public Xvfb() {
     }
 
     protected ArgumentListBuilder createCommandArguments(final XvfbInstallation installation, final FilePath frameBufferDir, final int displayNameUsed) {
+        return createCommandArguments(installation, frameBufferDir, displayNameUsed, autoDisplayName, STDERR_FD, screen, XvfbProfile.of(profile), null);
+    }
+
+    private ArgumentListBuilder createCommandArguments(final XvfbInstallation installation, final FilePath frameBufferDir, final int displayNameUsed,
+            final boolean letXvfbChooseDisplay, final String displayFd, final String screen, final XvfbProfile serverProfile, final XvfbCapabilities capabilities) {
         final String path = installation.getHome();
 
         final ArgumentListBuilder cmd;
@@ -455,8 +861,8 @@ public class Xvfb extends SimpleBuildWrapper {
             cmd = new ArgumentListBuilder(path + "/Xvfb");
         }
 
-        if (autoDisplayName) {
-            cmd.add("-displayfd", STDERR_FD);
+        if (letXvfbChooseDisplay) {
+            cmd.add("-displayfd", displayFd);
         }
         else {
             cmd.add(":" + displayNameUsed);
@@ -466,7 +872,12 @@ public class Xvfb extends SimpleBuildWrapper {
             cmd.add("-screen").add("0").add(screen);
         }
 
-        cmd.add("-fbdir").add(frameBufferDir);
+        if (serverProfile.keepsScreenFile()) {
+            cmd.add("-fbdir").add(frameBufferDir);
+        }
+
+        // options of the profile come before the additional options, so that those can override them
+        cmd.add(serverProfile.options(capabilities));
 
         if (additionalOptions != null) {
             cmd.addTokenized(additionalOptions);
@@ -521,10 +932,58 @@ public class Xvfb extends SimpleBuildWrapper {
         return null;
     }
 
+    /** Installation to use on the computer, translated once per computer and reused by later builds. */
+    private XvfbInstallation getTranslatedInstallation(final Computer computer, final Node node, final TaskListener listener)
+            throws IOException, InterruptedException {
+        final XvfbBuildWrapperDescriptor descriptor = getDescriptor();
+        final String nameToUse = Util.fixNull(installationName);
+
+        final XvfbInstallation translated = descriptor.getTranslatedInstallation(computer.getName(), nameToUse);
+        XvfbMetrics.cacheLookup("installation", translated != null);
+        if (translated != null) {
+            return translated;
+        }
+
+        final XvfbInstallation installation = getInstallation(computer.getEnvironment(), node, listener);
+        if (installation != null) {
+            descriptor.rememberTranslatedInstallation(computer.getName(), nameToUse, installation);
+        }
+
+        return installation;
+    }
+
+    public List<XvfbCompanion> getCompanions() {
+        return companions == null ? Collections.<XvfbCompanion> emptyList() : companions;
+    }
+
+    public Integer getCpuLimit() {
+        return cpuLimit;
+    }
+
+    public String getGalliumDriver() {
+        return galliumDriver;
+    }
+
     public String getInstallationName() {
         return installationName;
     }
 
+    public Integer getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public Integer getRenderThreads() {
+        return renderThreads;
+    }
+
+    public String getResizableTo() {
+        return resizableTo;
+    }
+
     public String getScreen() {
         return screen;
     }
@@ -541,20 +1000,41 @@ public class Xvfb extends SimpleBuildWrapper {
         return debug;
     }
 
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public boolean isOverlapped() {
+        return overlapped;
+    }
+
     public boolean isParallelBuild() {
         return parallelBuild;
     }
 
+    public boolean isPinToCpu() {
+        return pinToCpu;
+    }
+
     public boolean isShutdownWithBuild() {
         return shutdownWithBuild;
     }
 
-    private XvfbEnvironment launchXvfb(final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener) throws IOException, InterruptedException {
+    private XvfbEnvironment launchXvfb(final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener, final RemoteCallCounter remoteCalls)
+            throws IOException, InterruptedException {
+        final long startedAt = System.currentTimeMillis();
+
         final Computer currentComputer = workspace.toComputer();
         if (currentComputer == null) {
         	throw new IllegalStateException("Unable to access workspace on a node running the build, cannot continue.");
         }
 
+        final XvfbFlightRecorder.Event allocationEvent = XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.ALLOCATION);
+
         int displayNameUsed = determineDisplayName(run, currentComputer);
 
         final Node currentNode = currentComputer.getNode();
@@ -562,23 +1042,233 @@ public class Xvfb extends SimpleBuildWrapper {
         	throw new IllegalStateException("Node is being removed, cannot continue");
         }
 
-        if (!workspace.exists()) {
-            workspace.mkdirs();
+        final XvfbInstallation installation = getTranslatedInstallation(currentComputer, currentNode, listener);
+
+        if (installation == null) {
+            listener.error(Messages.XvfbBuildWrapper_NoInstallationsConfigured());
+            XvfbMetrics.failed(XvfbMetrics.Failure.NO_INSTALLATION);
+
+            throw new RunnerAbortedException();
         }
 
-        final FilePath frameBufferDir = workspace.createTempDir(".xvfb-" + run.getId() + "-", ".fbdir");
+        final VirtualChannel channel = remoteCalls.channel();
 
-        final EnvVars environment = currentComputer.getEnvironment();
-        final XvfbInstallation installation = getInstallation(environment, currentNode, listener);
+        XvfbCapabilities capabilities = null;
+        if (channel != null) {
+            try {
+                capabilities = XvfbCapabilities.of(channel, currentComputer.getName(), installation);
+            } catch (final IOException e) {
+                // could not run the probe, starting Xvfb will report the problem
+            }
+        }
 
-        if (installation == null) {
-            listener.error(Messages.XvfbBuildWrapper_NoInstallationsConfigured());
+        if (capabilities != null) {
+            checkSupported(capabilities, installation, listener);
+        }
+
+        final String cookie = UUID.randomUUID().toString();
+
+        // decorated launchers (containers and the like) need to start Xvfb themselves
+        final boolean launchOnNode = channel != null && isPlainLauncher(launcher);
+
+        // the cookie makes the name unique
+        final FilePath frameBufferDir = workspace.child(".xvfb-" + run.getId() + "-" + cookie + ".fbdir");
+        if (!launchOnNode) {
+            // created by the launch itself on the node, processes of decorated launchers need it to exist beforehand
+            remoteCalls.mkdirs(frameBufferDir);
+        }
+
+        // the reserved display is relayed to a display Xvfb picks and listens on over TCP
+        final boolean startLazily = lazy && launchOnNode && capabilities != null && capabilities.supportsDisplayFd();
+        if (lazy && !startLazily) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_LazyUnsupported());
+        }
+
+        // started on the node the display number is written to a descriptor of its own, through the launcher it is picked from stderr
+        final String displayFd = launchOnNode ? XvfbLaunch.DISPLAY_FD : STDERR_FD;
+
+        // started at the largest size it can be resized to, Xvfb doesn't allow growing the screen beyond that
+        final String screenUsed = screenOrDefault();
+        final boolean resizable = Util.fixEmptyAndTrim(resizableTo) != null && launchOnNode;
+        final int[] screenSize;
+        final String maximumScreen;
+        final XvfbProfile serverProfile;
+        try {
+            serverProfile = XvfbProfile.of(profile);
+            screenSize = resizable ? XvfbRandR.parseSize(screenUsed) : null;
+            maximumScreen = resizable ? largestScreen(screenUsed, resizableTo) : null;
+        } catch (final IllegalArgumentException e) {
+            listener.error(e.getMessage());
 
             throw new RunnerAbortedException();
         }
+        if (Util.fixEmptyAndTrim(resizableTo) != null && !resizable) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_ResizeUnsupported());
+        }
+
+        // resource controls need the process started on the node
+        final boolean controlled = pinToCpu || cpuLimit != null || memoryLimit != null;
+        XvfbCgroup.Limits limits = controlled && launchOnNode ? new XvfbCgroup.Limits(pinToCpu ? executorNumberOf(run) : -1,
+                cpuLimit == null ? 0 : cpuLimit, memoryLimit == null ? 0 : memoryLimit) : null;
+        if (controlled && !launchOnNode) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_ResourceControlsUnsupported());
+        }
+        if (limits != null && limits.needsCgroup()) {
+            final String unavailable = channel.call(new XvfbCgroup.Prepare(limits));
+            if (unavailable != null) {
+                listener.getLogger().println(Messages.XvfbBuildWrapper_CgroupUnavailable(unavailable));
+                limits = limits.withoutCgroup();
+            }
+        }
+
+        final ArgumentListBuilder cmd = createCommandArguments(installation, frameBufferDir, displayNameUsed, autoDisplayName || startLazily, displayFd,
+                resizable ? maximumScreen : screen, serverProfile, capabilities);
+
+        if (startLazily) {
+            // clients reach it through the relay only, older servers listen on TCP on all interfaces unless told not to
+            if (capabilities.supports("-nolisten")) {
+                cmd.add("-nolisten", "tcp");
+            }
+
+            return reserveLazily(run, workspace, listener, remoteCalls, startedAt, currentComputer.getName(), cmd, cookie, frameBufferDir, displayNameUsed,
+                    allocationEvent, screenSize, maximumScreen, serverProfile, limits);
+        }
+
+        // Xvfb writes the display number once it accepts connections, that's the quickest way to know it's ready
+        final boolean readyOnDisplayFd = !autoDisplayName && capabilities != null && capabilities.supportsDisplayFd();
+        if (readyOnDisplayFd) {
+            cmd.add("-displayfd", displayFd);
+        }
+
+        // the display needs to be known up front for the build to go on while Xvfb starts
+        final boolean startOverlapped = overlapped && launchOnNode && !autoDisplayName;
+        if (overlapped && !startOverlapped) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_OverlappedUnsupported());
+        }
+
+        final XvfbStartThrottle throttle = XvfbStartThrottle.of(currentComputer.getName());
+        final long queuedMillis = throttle.acquire();
+        XvfbNodeStatistics.of(currentComputer.getName()).startQueued(queuedMillis);
+        if (queuedMillis > 0) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_StartQueued(queuedMillis));
+        }
+        allocationEvent.end(displayNameUsed, currentComputer.getName(), queuedMillis > 0 ? "queued" : "allocated");
+        XvfbListener.fireAllocated(run, currentComputer.getName(), displayNameUsed);
+
+        listener.getLogger().print(Messages.XvfbBuildWrapper_Starting());
+
+        final XvfbFlightRecorder.Event launchEvent = XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.LAUNCH);
+        boolean ready = false;
+        XvfbLaunch.Result result = null;
+        try {
+            if (launchOnNode) {
+                listener.getLogger().println("$ " + cmd.toStringWithQuote());
+
+                final XvfbLaunch.Readiness readiness = autoDisplayName || readyOnDisplayFd ? XvfbLaunch.Readiness.DISPLAYFD : XvfbLaunch.Readiness.SOCKET;
+                final OutputStream log = debug ? new RemoteOutputStream(listener.getLogger()) : null;
+
+                result = remoteCalls.act(workspace, new XvfbLaunch(cmd.toList(), cookie, frameBufferDir.getRemote(), displayNameUsed, autoDisplayName,
+                        readiness, timeout * MILLIS_IN_SECOND, startOverlapped, screenSize, limits, log));
+            }
+            else {
+                result = launchWithLauncher(launcher, listener, currentComputer.getName(), cmd, cookie, displayNameUsed, readyOnDisplayFd, channel);
+
+                if (result.alive && channel != null) {
+                    try {
+                        channel.call(new XvfbResourceSampler.Start(cookie));
+                    } catch (final IOException ignore) {
+                        // sampling is best effort
+                    }
+                }
+            }
+
+            if (!result.alive) {
+                reportFailedStart(run, currentComputer.getName(), result, listener);
+                listener.error(Messages.XvfbBuildWrapper_FailedToStart());
+
+                throw new RunnerAbortedException();
+            }
 
-        final ArgumentListBuilder cmd = createCommandArguments(installation, frameBufferDir, displayNameUsed);
+            // started in the background counts as ready, the throttle governs spawning then
+            ready = result.ready || startOverlapped;
+            displayNameUsed = result.displayName;
+        } finally {
+            // only what was spent on the node counts, latency to the node says nothing about how many starts it can take
+            throttle.release(result != null ? result.spawnMillis + result.readinessMillis : 0, ready);
+            launchEvent.end(displayNameUsed, currentComputer.getName(), startOverlapped ? "spawned" : ready ? "ready" : "not ready");
+        }
+
+        final long startupMillis = System.currentTimeMillis() - startedAt;
+        XvfbNodeStatistics.of(currentComputer.getName()).displayStarted(startupMillis);
+        XvfbMetrics.started(currentComputer.getName(), installation.getName(), startupMillis);
+
+        final XvfbEnvironment xvfbEnvironment = new XvfbEnvironment(cookie, frameBufferDir.getRemote(), displayNameUsed, shutdownWithBuild, currentComputer.getName());
+        // whatever is not spent waiting for a turn, spawning or waiting for readiness is spent preparing on and talking to the node
+        final long remotingMillis = Math.max(0, startupMillis - queuedMillis - result.spawnMillis - result.readinessMillis);
+        xvfbEnvironment.timings = new XvfbTimings(queuedMillis, remotingMillis, remoteCalls.get(), result.spawnMillis, result.readinessMillis);
+        xvfbEnvironment.overlapped = startOverlapped;
+        xvfbEnvironment.maximumScreen = maximumScreen;
+        xvfbEnvironment.profile = serverProfile;
+        xvfbEnvironment.confined = limits != null && limits.needsCgroup();
+        XvfbDisplayRegistry.add(run, xvfbEnvironment);
+        if (!startOverlapped) {
+            // started in the background it is ready once waited for
+            notifyReady(run, xvfbEnvironment);
+        }
+
+        return xvfbEnvironment;
+    }
+
+    /** Reserves the display on the node, Xvfb is started there once a client connects to it. */
+    private XvfbEnvironment reserveLazily(final Run<?, ?> run, final FilePath workspace, final TaskListener listener, final RemoteCallCounter remoteCalls,
+            final long startedAt, final String computerName, final ArgumentListBuilder cmd, final String cookie, final FilePath frameBufferDir,
+            final int displayNameWanted, final XvfbFlightRecorder.Event allocationEvent, final int[] screenSize, final String maximumScreen,
+            final XvfbProfile serverProfile, final XvfbCgroup.Limits limits) throws IOException, InterruptedException {
+        final OutputStream log = debug ? new RemoteOutputStream(listener.getLogger()) : null;
+        final XvfbLaunch launch = new XvfbLaunch(cmd.toList(), cookie, frameBufferDir.getRemote(), displayNameWanted, true, XvfbLaunch.Readiness.DISPLAYFD,
+                timeout * MILLIS_IN_SECOND, false, screenSize, limits, log);
+
+        // clients can connect only once the build is given the display, by then the environment is known
+        final AtomicReference<XvfbEnvironment> reserved = new AtomicReference<XvfbEnvironment>();
+        final XvfbLazyLaunch.Started started = workspace.getChannel().export(XvfbLazyLaunch.Started.class, new XvfbLazyLaunch.Started() {
+            @Override
+            public void started() {
+                final XvfbEnvironment xvfbEnvironment = reserved.get();
+                if (xvfbEnvironment != null) {
+                    notifyReady(run, xvfbEnvironment);
+                }
+            }
+        });
+
+        final int displayNameUsed;
+        try {
+            displayNameUsed = remoteCalls.act(workspace, new XvfbLazyLaunch(launch, cookie, autoDisplayName ? displayNameOffset : displayNameWanted,
+                    autoDisplayName, started));
+        } finally {
+            allocationEvent.end(displayNameWanted, computerName, "reserved");
+        }
+        XvfbListener.fireAllocated(run, computerName, displayNameUsed);
+
+        listener.getLogger().println(Messages.XvfbBuildWrapper_Reserved(displayNameUsed, cmd.toStringWithQuote()));
+
+        final XvfbEnvironment xvfbEnvironment = new XvfbEnvironment(cookie, frameBufferDir.getRemote(), displayNameUsed, shutdownWithBuild, computerName);
+        xvfbEnvironment.lazy = true;
+        xvfbEnvironment.maximumScreen = maximumScreen;
+        xvfbEnvironment.profile = serverProfile;
+        xvfbEnvironment.confined = limits != null && limits.needsCgroup();
+        xvfbEnvironment.timings = new XvfbTimings(0, System.currentTimeMillis() - startedAt, remoteCalls.get(), 0, 0);
+        XvfbDisplayRegistry.add(run, xvfbEnvironment);
+        reserved.set(xvfbEnvironment);
+
+        return xvfbEnvironment;
+    }
 
+    /**
+     * Starts Xvfb using the launcher, needed when the launcher decorates the processes it starts. Readiness is checked through the channel given,
+     * <code>null</code> if there is none.
+     */
+    private XvfbLaunch.Result launchWithLauncher(final Launcher launcher, final TaskListener listener, final String computerName, final ArgumentListBuilder cmd,
+            final String cookie, final int displayNameUsed, final boolean readyOnDisplayFd, final VirtualChannel channel) throws IOException, InterruptedException {
         final ProcStarter procStarter = launcher.launch().cmds(cmd);
 
         final ByteArrayOutputStream stdoutStream = new ByteArrayOutputStream();
@@ -587,36 +1277,101 @@ public class Xvfb extends SimpleBuildWrapper {
         final ByteArrayOutputStream stderrStream = new ByteArrayOutputStream();
         final AutoDisplayNameFilterStream stderr = new AutoDisplayNameFilterStream(debug ? listener.getLogger() : stderrStream);
 
-        listener.getLogger().print(Messages.XvfbBuildWrapper_Starting());
-        procStarter.stdout(stdout).stderr(stderr);
-
-        final String cookie = UUID.randomUUID().toString();
         procStarter.envs(Collections.singletonMap(JENKINS_XVFB_COOKIE, cookie));
+        procStarter.stdout(stdout).stderr(stderr);
 
+        final long spawningAt = System.currentTimeMillis();
         final Proc process = procStarter.start();
+        final long spawnedAt = System.currentTimeMillis();
+
+        final XvfbFlightRecorder.Event readinessEvent = XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.READINESS);
+        boolean ready = false;
+        if (autoDisplayName || readyOnDisplayFd) {
+            ready = stderr.awaitDisplayNumber(timeout * MILLIS_IN_SECOND);
+        }
+        else if (channel != null) {
+            ready = channel.call(new XvfbReadiness(displayNameUsed, cookie, timeout * MILLIS_IN_SECOND));
+        }
+        else {
+            Thread.sleep(timeout * MILLIS_IN_SECOND);
+        }
+
+        final long readinessMillis = System.currentTimeMillis() - spawnedAt;
+
+        final boolean alive = process.isAlive();
+        readinessEvent.end(displayNameUsed, computerName, XvfbLaunch.readinessOutcome(alive, ready));
 
-        Thread.sleep(timeout * MILLIS_IN_SECOND);
+        if (!alive) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(stdoutStream.toByteArray());
+            output.write(stderrStream.toByteArray());
 
-        if (!process.isAlive()) {
-            if (!debug) {
-                listener.getLogger().write(stdoutStream.toByteArray());
-                listener.getLogger().write(stderrStream.toByteArray());
+            return new XvfbLaunch.Result(false, false, displayNameUsed, output.toByteArray(), spawnedAt - spawningAt, readinessMillis);
+        }
+
+        if (autoDisplayName) {
+            return new XvfbLaunch.Result(true, true, stderr.getDisplayNumber(), new byte[0], spawnedAt - spawningAt, readinessMillis);
+        }
+
+        return new XvfbLaunch.Result(true, ready, displayNameUsed, new byte[0], spawnedAt - spawningAt, readinessMillis);
+    }
+
+    /** Screen argument covering the screen and the sizes it can be resized to: the largest width and height, and the depth of the screen. */
+    static String largestScreen(final String screen, final String resizableTo) {
+        final int[] largest = XvfbRandR.parseSize(screen);
+        if (resizableTo != null) {
+            for (final String size : resizableTo.trim().split("[\\s,]+")) {
+                if (size.isEmpty()) {
+                    continue;
+                }
+
+                final int[] parsed = XvfbRandR.parseSize(size);
+                largest[0] = Math.max(largest[0], parsed[0]);
+                largest[1] = Math.max(largest[1], parsed[1]);
             }
+        }
+
+        final String[] dimensions = screen.trim().split("x");
+        return largest[0] + "x" + largest[1] + (dimensions.length > 2 ? "x" + dimensions[2] : "");
+    }
+
+    private String screenOrDefault() {
+        return screen == null || screen.trim().isEmpty() ? DEFAULT_SCREEN : screen.trim();
+    }
+
+    private static boolean isPlainLauncher(final Launcher launcher) {
+        final Class<?> type = launcher.getClass();
+
+        return type == Launcher.LocalLauncher.class || type == Launcher.RemoteLauncher.class;
+    }
 
-            listener.getLogger().println();
+    private void checkSupported(final XvfbCapabilities capabilities, final XvfbInstallation installation, final TaskListener listener) {
+        final String version = capabilities.version.isEmpty() ? XvfbExecutable.pathOf(installation) : capabilities.version;
 
-            listener.error(Messages.XvfbBuildWrapper_FailedToStart());
+        if (autoDisplayName && capabilities.isKnown() && !capabilities.supportsDisplayFd()) {
+            listener.error(Messages.XvfbBuildWrapper_DisplayFdUnsupported(version, installation.getName()));
+            XvfbMetrics.failed(XvfbMetrics.Failure.DISPLAYFD_UNSUPPORTED);
 
             throw new RunnerAbortedException();
         }
 
-        if (autoDisplayName) {
-            displayNameUsed = stderr.getDisplayNumber();
+        if (additionalOptions == null) {
+            return;
         }
 
-        final XvfbEnvironment xvfbEnvironment = new XvfbEnvironment(cookie, frameBufferDir.getRemote(), displayNameUsed, shutdownWithBuild);
+        final String unsupported = capabilities.unsupportedOption(Util.tokenize(additionalOptions));
+        if (unsupported != null) {
+            listener.error(Messages.XvfbBuildWrapper_UnsupportedOption(version, installation.getName(), unsupported));
+            XvfbMetrics.failed(XvfbMetrics.Failure.UNSUPPORTED_OPTION);
 
-        return xvfbEnvironment;
+            throw new RunnerAbortedException();
+        }
+    }
+
+    private static int executorNumberOf(final Run<?, ?> run) {
+        final Executor executor = run.getExecutor();
+
+        return executor == null ? 0 : executor.getNumber();
     }
 
 	private int determineDisplayName(final Run<?, ?> run, final Computer currentComputer) {
@@ -655,6 +1410,7 @@ public class Xvfb extends SimpleBuildWrapper {
     @DataBoundSetter
     public void setAssignedLabels(final String assignedLabels) {
         this.assignedLabels = assignedLabels;
+        assignedLabel = null;
     }
 
     @DataBoundSetter
@@ -662,6 +1418,16 @@ public class Xvfb extends SimpleBuildWrapper {
         this.autoDisplayName = autoDisplayName;
     }
 
+    @DataBoundSetter
+    public void setCompanions(final List<XvfbCompanion> companions) {
+        this.companions = companions;
+    }
+
+    @DataBoundSetter
+    public void setCpuLimit(final Integer cpuLimit) {
+        this.cpuLimit = cpuLimit;
+    }
+
     @DataBoundSetter
     public void setDebug(final boolean debug) {
         this.debug = debug;
@@ -677,16 +1443,61 @@ public class Xvfb extends SimpleBuildWrapper {
         this.displayNameOffset = displayNameOffset;
     }
 
+    @DataBoundSetter
+    public void setGalliumDriver(final String galliumDriver) {
+        this.galliumDriver = galliumDriver;
+    }
+
     @DataBoundSetter
     public void setInstallationName(final String installationName) {
         this.installationName = installationName;
     }
 
+    @DataBoundSetter
+    public void setInstrumented(final boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    @DataBoundSetter
+    public void setLazy(final boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    @DataBoundSetter
+    public void setMemoryLimit(final Integer memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    @DataBoundSetter
+    public void setOverlapped(final boolean overlapped) {
+        this.overlapped = overlapped;
+    }
+
     @DataBoundSetter
     public void setParallelBuild(final boolean parallelBuild) {
         this.parallelBuild = parallelBuild;
     }
 
+    @DataBoundSetter
+    public void setPinToCpu(final boolean pinToCpu) {
+        this.pinToCpu = pinToCpu;
+    }
+
+    @DataBoundSetter
+    public void setProfile(final String profile) {
+        this.profile = profile;
+    }
+
+    @DataBoundSetter
+    public void setRenderThreads(final Integer renderThreads) {
+        this.renderThreads = renderThreads;
+    }
+
+    @DataBoundSetter
+    public void setResizableTo(final String resizableTo) {
+        this.resizableTo = resizableTo;
+    }
+
     @DataBoundSetter
     public void setScreen(final String screen) {
         this.screen = screen;
@@ -706,17 +1517,21 @@ public class Xvfb extends SimpleBuildWrapper {
     public void setUp(final Context context, final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener, final EnvVars initialEnvironment)
             throws IOException, InterruptedException {
         if (assignedLabels != null && !assignedLabels.trim().isEmpty()) {
-            final Label label;
-            try {
-                label = Label.parseExpression(assignedLabels);
-            } catch (final ANTLRException e) {
-                throw new IOException(e);
+            Label label = assignedLabel;
+            if (label == null) {
+                try {
+                    label = XvfbLabels.parse(assignedLabels);
+                } catch (final ANTLRException e) {
+                    throw new IOException(e);
+                }
+
+                assignedLabel = label;
             }
 
             final Computer computer = Computer.currentComputer();
             final Node node = computer.getNode();
 
-            if (!label.matches(node)) {
+            if (!XvfbLabels.matches(assignedLabels, label, node)) {
                 // not running on node with requested label
                 return;
             }
@@ -731,10 +1546,49 @@ public class Xvfb extends SimpleBuildWrapper {
 
         @SuppressWarnings("rawtypes")
         final Run rawRun = run;
-        final XvfbEnvironment xvfbEnvironment = launchXvfb(rawRun, workspace, launcher, listener);
+        final RemoteCallCounter remoteCalls = new RemoteCallCounter(launcher.getChannel());
+        final XvfbEnvironment xvfbEnvironment;
+        try {
+            xvfbEnvironment = launchXvfb(rawRun, workspace, launcher, listener, remoteCalls);
+        } catch (final IOException e) {
+            XvfbMetrics.failed(XvfbMetrics.Failure.ERROR);
+
+            throw e;
+        }
+
+        // rendering threads set for the node or the job are kept, the share of the node is given otherwise
+        final Integer threads = renderThreads == null && initialEnvironment.containsKey(XvfbRendering.LP_NUM_THREADS) ? Integer.valueOf(0) : renderThreads;
+        final Map<String, String> rendering = XvfbRendering.environment(remoteCalls.channel(), xvfbEnvironment.computerName, threads, galliumDriver);
+
+        if (instrumented) {
+            startProxy(launcher, listener, xvfbEnvironment, remoteCalls);
+        }
+
+        XvfbNodeStatistics.of(xvfbEnvironment.computerName).remoteCallsMade(remoteCalls.get());
+        if (shutdownWithBuild) {
+            XvfbMetrics.deferredTeardownQueued();
+        }
+        if (debug) {
+            listener.getLogger().println(Messages.XvfbBuildWrapper_RemoteCalls(remoteCalls.get()));
+        }
         run.addAction(xvfbEnvironment);
 
-        context.env("DISPLAY", ":" + xvfbEnvironment.displayName);
+        context.env("DISPLAY", xvfbEnvironment.display());
+
+        for (final Map.Entry<String, String> variable : rendering.entrySet()) {
+            context.env(variable.getKey(), variable.getValue());
+        }
+
+        if (!getCompanions().isEmpty()) {
+            final EnvVars companionEnvironment = new EnvVars(initialEnvironment);
+            companionEnvironment.putAll(context.getEnv());
+
+            final Map<String, String> exports = startCompanions(run, workspace, launcher, listener, xvfbEnvironment, companionEnvironment);
+            for (final Map.Entry<String, String> variable : exports.entrySet()) {
+                context.env(variable.getKey(), variable.getValue());
+            }
+        }
+
         context.setDisposer(new XvfbDisposer(xvfbEnvironment));
     }
 }
@@ -0,0 +1,264 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Version, command line options and extensions supported by the Xvfb executable of an installation on a node. Probed once by running Xvfb with
+ * <code>-version</code> and <code>-help</code>, and kept on the controller until the executable changes.
+ */
+final class XvfbCapabilities implements Serializable {
+
+    private static final class Probe extends MasterToSlaveCallable<XvfbCapabilities, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final long PROBE_TIMEOUT_SECONDS = 10;
+
+        /** name of a nonexistent extension, asking to enable it makes Xvfb list the extensions it knows about */
+        private static final String PROBE_EXTENSION = "jenkins-xvfb-probe";
+
+        private final String executable;
+
+        private final XvfbCapabilities known;
+
+        Probe(final String executable, final XvfbCapabilities known) {
+            this.executable = executable;
+            this.known = known;
+        }
+
+        @Override
+        public XvfbCapabilities call() throws IOException {
+            final String fingerprint = XvfbExecutable.fingerprintOf(XvfbExecutable.resolve(executable));
+
+            if (known != null && fingerprint.equals(known.fingerprint)) {
+                return known;
+            }
+
+            try {
+                final String version = XvfbExecutable.run(Arrays.asList(executable, "-version"), PROBE_TIMEOUT_SECONDS);
+                final String help = XvfbExecutable.run(Arrays.asList(executable, "+extension", PROBE_EXTENSION, "-help"), PROBE_TIMEOUT_SECONDS);
+
+                return parse(fingerprint, version, help);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while probing " + executable, e);
+            }
+        }
+    }
+
+    private static final class Probed {
+
+        private final XvfbCapabilities capabilities;
+
+        private final long probedAt;
+
+        Probed(final XvfbCapabilities capabilities, final long probedAt) {
+            this.capabilities = capabilities;
+            this.probedAt = probedAt;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /** how long probed capabilities are trusted before checking if the executable changed */
+    private static final long REVALIDATE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String EXTENSION_LIST_PREFIX = "[mi]    ";
+
+    /** column descriptions of options start at in the help, after the option and the values it takes */
+    private static final int DESCRIPTION_COLUMN = 23;
+
+    private static final ConcurrentMap<String, Probed> probed = new ConcurrentHashMap<String, Probed>();
+
+    /** Capabilities of the installation on the computer, probing the executable if not known or changed. */
+    static XvfbCapabilities of(final VirtualChannel channel, final String computerName, final XvfbInstallation installation)
+            throws IOException, InterruptedException {
+        final String executable = XvfbExecutable.pathOf(installation);
+        final String key = computerName + '\u0000' + executable;
+
+        final Probed previous = probed.get(key);
+        final long now = System.currentTimeMillis();
+        final boolean fresh = previous != null && now - previous.probedAt < REVALIDATE_MILLIS;
+        XvfbMetrics.cacheLookup("capabilities", fresh);
+        if (fresh) {
+            return previous.capabilities;
+        }
+
+        final XvfbCapabilities capabilities = channel.call(new Probe(executable, previous == null ? null : previous.capabilities));
+        probed.put(key, new Probed(capabilities, now));
+
+        if (previous != null && !previous.capabilities.fingerprint.equals(capabilities.fingerprint)) {
+            XvfbNodeCache.refresh(computerName);
+        }
+
+        return capabilities;
+    }
+
+    static void invalidate() {
+        probed.clear();
+    }
+
+    static XvfbCapabilities parse(final String fingerprint, final String version, final String help) throws IOException {
+        final Set<String> options = new TreeSet<String>();
+        final Map<String, Integer> values = new TreeMap<String, Integer>();
+        final Set<String> extensions = new TreeSet<String>();
+
+        final BufferedReader lines = new BufferedReader(new StringReader(help));
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.startsWith(EXTENSION_LIST_PREFIX)) {
+                extensions.add(line.substring(EXTENSION_LIST_PREFIX.length()).trim());
+                continue;
+            }
+
+            final String[] tokens = line.trim().split("\\s+", 2);
+            final String option = tokens[0];
+            if (option.startsWith("[+-]")) {
+                options.add("+" + option.substring(4));
+                options.add("-" + option.substring(4));
+            } else if (option.length() > 1 && (option.charAt(0) == '-' || option.charAt(0) == '+')) {
+                options.add(option);
+
+                final int taken = valuesTaken(line.length() > DESCRIPTION_COLUMN ? line.substring(0, DESCRIPTION_COLUMN) : line);
+                if (taken > 0) {
+                    values.put(option, taken);
+                }
+            }
+        }
+
+        String versionLine = "";
+        final BufferedReader versionLines = new BufferedReader(new StringReader(version));
+        while ((line = versionLines.readLine()) != null) {
+            if (line.contains("X Server")) {
+                versionLine = line.trim();
+                break;
+            }
+        }
+
+        return new XvfbCapabilities(fingerprint, versionLine, options, values, extensions);
+    }
+
+    /** Number of values the option of the help line takes, the placeholders following it, optional ones in brackets are not counted. */
+    private static int valuesTaken(final String line) {
+        final String[] tokens = line.trim().split("\\s+");
+
+        int taken = 0;
+        int depth = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            if (depth == 0 && !tokens[i].startsWith("[")) {
+                taken++;
+            }
+            // brackets opened less closed
+            depth += tokens[i].replace("]", "").length() - tokens[i].replace("[", "").length();
+        }
+
+        return taken;
+    }
+
+    /** Identity of the executable the capabilities were probed from. */
+    final String fingerprint;
+
+    /** Version reported by Xvfb, empty if not known. */
+    final String version;
+
+    private final Set<String> options;
+
+    /** Number of values taken by the options that take any. */
+    private final Map<String, Integer> values;
+
+    private final Set<String> extensions;
+
+    XvfbCapabilities(final String fingerprint, final String version, final Set<String> options, final Map<String, Integer> values,
+            final Set<String> extensions) {
+        this.fingerprint = fingerprint;
+        this.version = version;
+        this.options = Collections.unmodifiableSet(new TreeSet<String>(options));
+        this.values = Collections.unmodifiableMap(new TreeMap<String, Integer>(values));
+        this.extensions = Collections.unmodifiableSet(new TreeSet<String>(extensions));
+    }
+
+    /** Extensions that can be enabled or disabled on the command line. */
+    Set<String> getExtensions() {
+        return extensions;
+    }
+
+    /** Was the probe able to determine supported options, if not nothing should be assumed about the executable. */
+    boolean isKnown() {
+        return options.contains("-screen");
+    }
+
+    boolean supports(final String option) {
+        return !isKnown() || options.contains(option);
+    }
+
+    /**
+     * First option of the command line arguments that is not supported, <code>null</code> if all are. Values following an option are skipped, so
+     * that <code>-fp -misc</code> is not taken for two options.
+     */
+    String unsupportedOption(final String[] arguments) {
+        for (int i = 0; i < arguments.length; i++) {
+            final String option = arguments[i];
+            if (!option.matches("[-+]\\D.*")) {
+                continue;
+            }
+
+            if (!supports(option)) {
+                return option;
+            }
+
+            final Integer taken = values.get(option);
+            if (taken != null) {
+                i += taken;
+            }
+        }
+
+        return null;
+    }
+
+    boolean supportsDisplayFd() {
+        return isKnown() && options.contains("-displayfd");
+    }
+}
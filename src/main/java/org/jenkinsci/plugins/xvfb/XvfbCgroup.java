@@ -0,0 +1,403 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Resource controls of an Xvfb server on the node: pinning to a CPU with <code>taskset</code>, and CPU and memory limits of a cgroup v2 of its
+ * own. The cgroup is created under the cgroup given with the <code>org.jenkinsci.plugins.xvfb.XvfbCgroup.parent</code> system property on the
+ * node, or under the cgroup of the agent, which needs to be delegated to the user the agent runs as. cgroup v2 enables controllers only for the
+ * children of cgroups without processes of their own, so the processes of the agent are moved to a <code>jenkins-agent</code> child of its
+ * cgroup first. Xvfb joins the cgroup before it is started, so no process of the server escapes the limits. Whether the limits can be applied is
+ * checked with {@link Prepare} before Xvfb is started, once it is started failing to apply them fails the start.
+ */
+final class XvfbCgroup {
+
+    /** Controls wanted for an Xvfb server. */
+    static final class Limits implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Index of the CPU to pin to among the available ones, <code>-1</code> not to pin */
+        final int cpu;
+
+        /** Share of one CPU in percent, <code>0</code> for no limit */
+        final int cpuPercent;
+
+        /** Memory limit in MB, <code>0</code> for no limit */
+        final int memoryMb;
+
+        Limits(final int cpu, final int cpuPercent, final int memoryMb) {
+            this.cpu = cpu;
+            this.cpuPercent = cpuPercent;
+            this.memoryMb = memoryMb;
+        }
+
+        boolean needsCgroup() {
+            return cpuPercent > 0 || memoryMb > 0;
+        }
+
+        /** The same controls without the cgroup, when it can't be had. */
+        Limits withoutCgroup() {
+            return new Limits(cpu, 0, 0);
+        }
+    }
+
+    /** Makes sure the limits can be applied on the node, returns why not or <code>null</code> if they can. */
+    static final class Prepare extends MasterToSlaveCallable<String, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Limits limits;
+
+        Prepare(final Limits limits) {
+            this.limits = limits;
+        }
+
+        @Override
+        public String call() throws IOException {
+            return prepare(limits);
+        }
+    }
+
+    /** Reads the usage of the cgroup of the Xvfb server started with the cookie and removes the cgroup, once the server is stopped. */
+    static final class Release extends MasterToSlaveCallable<XvfbCgroupUsage, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Release(final String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public XvfbCgroupUsage call() throws IOException {
+            final File cgroup = cgroups.remove(cookie);
+            if (cgroup == null) {
+                return null;
+            }
+
+            try {
+                return usageOf(cgroup);
+            } finally {
+                remove(cgroup);
+            }
+        }
+    }
+
+    static final String PARENT_PROPERTY = XvfbCgroup.class.getName() + ".parent";
+
+    /** child of the cgroup of the agent its processes are moved to, leaving the cgroup free to enable controllers for the Xvfb cgroups */
+    static final String AGENT_CGROUP = "jenkins-agent";
+
+    private static final String CGROUP_ROOT = "/sys/fs/cgroup";
+
+    private static final long CPU_PERIOD_MICROS = 100000;
+
+    private static final long REMOVE_WAIT_MILLIS = 2000;
+
+    private static final long REMOVE_POLL_MILLIS = 50;
+
+    private static final String CPUS_ALLOWED_LIST = "Cpus_allowed_list:";
+
+    private static final String[] TASKSET_LOCATIONS = { "/usr/bin/taskset", "/bin/taskset", "/usr/local/bin/taskset" };
+
+    private static final ConcurrentMap<String, File> cgroups = new ConcurrentHashMap<String, File>();
+
+    /**
+     * Wraps the command to start Xvfb within the controls, the returned command keeps the process id of the shell so it can be wrapped further.
+     */
+    static List<String> confining(final List<String> command, final String cookie, final Limits limits, final OutputStream notes) throws IOException {
+        List<String> confined = command;
+
+        if (limits.cpu >= 0) {
+            final String taskset = taskset();
+            if (taskset == null) {
+                note(notes, "taskset not found, not pinning Xvfb to a CPU");
+            }
+            else {
+                confined = new ArrayList<String>();
+                confined.add(taskset);
+                confined.add("-c");
+                final List<Integer> allowed = allowedCpus();
+                confined.add(String.valueOf(allowed.get(limits.cpu % allowed.size())));
+                confined.addAll(command);
+            }
+        }
+
+        if (limits.needsCgroup()) {
+            final File cgroup = create(cookie, limits);
+            final List<String> joining = new ArrayList<String>();
+            joining.add("/bin/sh");
+            joining.add("-c");
+            joining.add("echo $$ >\"$0\" && exec \"$@\"");
+            joining.add(new File(cgroup, "cgroup.procs").getPath());
+            joining.addAll(confined);
+            confined = joining;
+        }
+
+        return confined;
+    }
+
+    /** CPUs the agent may run on, from its affinity mask, all the available ones if not known. */
+    static List<Integer> allowedCpus() throws IOException {
+        final File status = new File("/proc/self/status");
+        if (status.isFile()) {
+            for (final String line : Files.readAllLines(status.toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith(CPUS_ALLOWED_LIST)) {
+                    final List<Integer> allowed = parseCpuList(line.substring(CPUS_ALLOWED_LIST.length()));
+                    if (!allowed.isEmpty()) {
+                        return allowed;
+                    }
+                }
+            }
+        }
+
+        final List<Integer> all = new ArrayList<Integer>();
+        for (int cpu = 0; cpu < Runtime.getRuntime().availableProcessors(); cpu++) {
+            all.add(cpu);
+        }
+
+        return all;
+    }
+
+    /** CPUs of a list like <code>0-3,8,10-11</code>. */
+    static List<Integer> parseCpuList(final String list) {
+        final List<Integer> cpus = new ArrayList<Integer>();
+        for (final String range : list.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+
+            final String[] bounds = range.split("-", 2);
+            final int first = Integer.parseInt(bounds[0].trim());
+            final int last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+            for (int cpu = first; cpu <= last; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+
+        return cpus;
+    }
+
+    /** Creates the cgroup of the server, failing if the limits can't be applied so the server doesn't run unconfined while thought confined. */
+    private static File create(final String cookie, final Limits limits) throws IOException {
+        final String unavailable = prepare(limits);
+        if (unavailable != null) {
+            throw new IOException("Unable to limit Xvfb: " + unavailable);
+        }
+
+        final File parent = parent();
+        final File cgroup = new File(parent, "jenkins-xvfb-" + cookie);
+        if (!cgroup.mkdir()) {
+            throw new IOException("Unable to limit Xvfb: unable to create cgroup " + cgroup);
+        }
+        cgroups.put(cookie, cgroup);
+
+        if (limits.cpuPercent > 0 && !write(new File(cgroup, "cpu.max"), limits.cpuPercent * CPU_PERIOD_MICROS / 100 + " " + CPU_PERIOD_MICROS)
+                || limits.memoryMb > 0 && !write(new File(cgroup, "memory.max"), String.valueOf(limits.memoryMb * 1024L * 1024L))) {
+            cgroups.remove(cookie);
+            remove(cgroup);
+            throw new IOException("Unable to limit Xvfb: unable to set the limits of cgroup " + cgroup);
+        }
+
+        return cgroup;
+    }
+
+    /**
+     * Enables the controllers needed for the cgroups of Xvfb servers in the parent, moving the processes of the agent out of its cgroup first if
+     * the parent is not configured. Returns why the limits can't be applied, <code>null</code> if they can.
+     */
+    static String prepare(final Limits limits) throws IOException {
+        final File parent = parent();
+        if (parent == null || !parent.isDirectory()) {
+            return "cgroup v2 is not available on the node";
+        }
+
+        final List<String> controllers = new ArrayList<String>();
+        if (limits.cpuPercent > 0) {
+            controllers.add("cpu");
+        }
+        if (limits.memoryMb > 0) {
+            controllers.add("memory");
+        }
+
+        final File subtreeControl = new File(parent, "cgroup.subtree_control");
+        if (enabled(subtreeControl, controllers)) {
+            return null;
+        }
+
+        if (System.getProperty(PARENT_PROPERTY) == null) {
+            // controllers can't be enabled for the children of a cgroup holding processes, like the agent itself
+            final File agent = new File(parent, AGENT_CGROUP);
+            if (!agent.isDirectory() && !agent.mkdir()) {
+                return "unable to create cgroup " + agent + " to move the agent to, delegate a cgroup without processes with -D" + PARENT_PROPERTY;
+            }
+
+            final File procs = new File(parent, "cgroup.procs");
+            for (final String pid : Files.readAllLines(procs.toPath(), StandardCharsets.US_ASCII)) {
+                // processes exiting meanwhile can't be moved, the check below tells if any was left behind
+                write(new File(agent, "cgroup.procs"), pid.trim());
+            }
+        }
+
+        final StringBuilder enabling = new StringBuilder();
+        for (final String controller : controllers) {
+            enabling.append(enabling.length() == 0 ? "+" : " +").append(controller);
+        }
+        write(subtreeControl, enabling.toString());
+
+        if (!enabled(subtreeControl, controllers)) {
+            return "unable to enable the " + controllers + " controllers in " + parent + ", it needs to be delegated to the agent user and hold no processes";
+        }
+
+        return null;
+    }
+
+    private static boolean enabled(final File subtreeControl, final List<String> controllers) throws IOException {
+        if (!subtreeControl.isFile()) {
+            return false;
+        }
+
+        final List<String> enabled = new ArrayList<String>();
+        for (final String line : Files.readAllLines(subtreeControl.toPath(), StandardCharsets.US_ASCII)) {
+            for (final String controller : line.trim().split("\\s+")) {
+                enabled.add(controller.startsWith("+") ? controller.substring(1) : controller);
+            }
+        }
+
+        return enabled.containsAll(controllers);
+    }
+
+    private static void note(final OutputStream notes, final String note) throws IOException {
+        notes.write((note + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** cgroup Xvfb cgroups are created in, <code>null</code> if the node doesn't have cgroup v2. */
+    static File parent() throws IOException {
+        final String configured = System.getProperty(PARENT_PROPERTY);
+        if (configured != null) {
+            return new File(configured);
+        }
+
+        final File own = new File("/proc/self/cgroup");
+        if (!own.isFile()) {
+            return null;
+        }
+
+        // a single unified hierarchy entry, 0::/path, on cgroup v2
+        for (final String line : Files.readAllLines(own.toPath(), StandardCharsets.US_ASCII)) {
+            if (line.startsWith("0::")) {
+                File parent = new File(CGROUP_ROOT + line.substring(3));
+                if (parent.getName().equals(AGENT_CGROUP)) {
+                    // the agent was already moved out of its cgroup
+                    parent = parent.getParentFile();
+                }
+                return new File(parent, "cgroup.procs").isFile() ? parent : null;
+            }
+        }
+
+        return null;
+    }
+
+    private static long read(final File file, final String key) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+            final String[] tokens = line.trim().split("\\s+");
+            if (key == null && tokens.length == 1) {
+                return Long.parseLong(tokens[0]);
+            }
+            if (tokens.length == 2 && tokens[0].equals(key)) {
+                return Long.parseLong(tokens[1]);
+            }
+        }
+
+        return 0;
+    }
+
+    private static void remove(final File cgroup) {
+        final long deadline = System.currentTimeMillis() + REMOVE_WAIT_MILLIS;
+
+        // the cgroup can be removed once the killed server has exited
+        while (!cgroup.delete() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(REMOVE_POLL_MILLIS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static String taskset() {
+        for (final String location : TASKSET_LOCATIONS) {
+            if (new File(location).canExecute()) {
+                return location;
+            }
+        }
+
+        return null;
+    }
+
+    static XvfbCgroupUsage usageOf(final File cgroup) throws IOException {
+        final File memoryPeak = new File(cgroup, "memory.peak");
+        final long memoryBytes = read(memoryPeak.isFile() ? memoryPeak : new File(cgroup, "memory.current"), null);
+
+        return new XvfbCgroupUsage(read(new File(cgroup, "cpu.stat"), "usage_usec") / 1000, read(new File(cgroup, "cpu.stat"), "throttled_usec") / 1000,
+                memoryBytes / 1024, read(new File(cgroup, "memory.events"), "oom_kill"));
+    }
+
+    private static boolean write(final File file, final String value) {
+        try {
+            Files.write(file.toPath(), value.getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private XvfbCgroup() {
+    }
+}
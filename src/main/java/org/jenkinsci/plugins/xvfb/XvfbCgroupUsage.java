@@ -0,0 +1,71 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.Serializable;
+
+/** Usage of the cgroup of an Xvfb server, kept with the build in {@link XvfbEnvironment}. */
+public class XvfbCgroupUsage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long cpuMillis;
+
+    private final long throttledMillis;
+
+    private final long memoryPeakKb;
+
+    private final long oomKills;
+
+    public XvfbCgroupUsage(final long cpuMillis, final long throttledMillis, final long memoryPeakKb, final long oomKills) {
+        this.cpuMillis = cpuMillis;
+        this.throttledMillis = throttledMillis;
+        this.memoryPeakKb = memoryPeakKb;
+        this.oomKills = oomKills;
+    }
+
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /** Highest memory use of the cgroup, current use on kernels not keeping the peak. */
+    public long getMemoryPeakKb() {
+        return memoryPeakKb;
+    }
+
+    /** Number of times a process of the cgroup was killed for exceeding the memory limit. */
+    public long getOomKills() {
+        return oomKills;
+    }
+
+    /** Time the server was kept from running by the CPU limit. */
+    public long getThrottledMillis() {
+        return throttledMillis;
+    }
+}
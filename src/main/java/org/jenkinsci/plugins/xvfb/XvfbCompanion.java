@@ -0,0 +1,200 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Process started next to Xvfb once the display is ready, like a window manager or a D-Bus session bus. Companions of a display are started in
+ * parallel, each is ready when a line of its output matches its ready pattern, or right away without one, and exports variables to the build
+ * that can refer to the groups of the matched line as <code>$1</code> to <code>$9</code>. Companions are stopped with the display.
+ */
+public class XvfbCompanion extends AbstractDescribableImpl<XvfbCompanion> implements Serializable {
+
+    @Extension
+    @Symbol("companion")
+    public static class DescriptorImpl extends Descriptor<XvfbCompanion> {
+
+        public FormValidation doCheckCommand(@QueryParameter final String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error(Messages.XvfbCompanion_CommandRequired());
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckExports(@QueryParameter final String value) {
+            try {
+                parseExports(value);
+            } catch (final IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckReadyPattern(@QueryParameter final String value) {
+            if (Util.fixEmpty(value) == null) {
+                return FormValidation.ok();
+            }
+
+            try {
+                Pattern.compile(value);
+            } catch (final PatternSyntaxException e) {
+                return FormValidation.error(e.getMessage());
+            }
+
+            return FormValidation.ok();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.XvfbCompanion_DisplayName();
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Pattern GROUP_REFERENCE = Pattern.compile("\\$(\\d)");
+
+    /** Variables exported by the companion, one <code>NAME=value</code> per line. */
+    static Map<String, String> parseExports(final String exports) {
+        final Map<String, String> parsed = new LinkedHashMap<String, String>();
+        if (exports == null) {
+            return parsed;
+        }
+
+        for (final String line : exports.split("\\r?\\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            final int equals = line.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException(Messages.XvfbCompanion_InvalidExport(line.trim()));
+            }
+
+            parsed.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+        }
+
+        return parsed;
+    }
+
+    /** Name of the companion, used in the build log. */
+    private final String name;
+
+    /** Command starting the companion, tokenized as Xvfb additional options are. */
+    private final String command;
+
+    /** Regular expression matched against lines of output, the companion is ready on the first line matching, if blank right away. */
+    private String readyPattern;
+
+    /** Variables exported to the build once ready, <code>NAME=value</code> per line, <code>$1</code> is the first group of the matched line. */
+    private String exports;
+
+    /** Time in seconds to wait for the companion to be ready. */
+    private long timeout = 10;
+
+    @DataBoundConstructor
+    public XvfbCompanion(final String name, final String command) {
+        this.name = name;
+        this.command = command;
+    }
+
+    /** Variables to export, <code>ready</code> matched the line the companion became ready on, <code>null</code> without a ready pattern. */
+    Map<String, String> exportsFor(final Matcher ready) {
+        final Map<String, String> exported = parseExports(exports);
+
+        for (final Map.Entry<String, String> export : exported.entrySet()) {
+            final Matcher reference = GROUP_REFERENCE.matcher(export.getValue());
+            final StringBuffer value = new StringBuffer();
+            while (reference.find()) {
+                final int group = Integer.parseInt(reference.group(1));
+                final String replacement = ready != null && group <= ready.groupCount() && ready.group(group) != null ? ready.group(group) : "";
+                reference.appendReplacement(value, Matcher.quoteReplacement(replacement));
+            }
+            reference.appendTail(value);
+
+            export.setValue(value.toString());
+        }
+
+        return exported;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getExports() {
+        return exports;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getReadyPattern() {
+        return readyPattern;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setExports(final String exports) {
+        this.exports = exports;
+    }
+
+    @DataBoundSetter
+    public void setReadyPattern(final String readyPattern) {
+        this.readyPattern = readyPattern;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+}
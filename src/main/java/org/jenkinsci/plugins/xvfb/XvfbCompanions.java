@@ -0,0 +1,278 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Starts the companions of a display on the node, all at once, and waits for each to be ready. Companions are registered by the cookie of the
+ * display, and carry the cookie in their environment as Xvfb does, so anything they spawn is stopped with the display too. Invoked on the
+ * workspace of the build.
+ */
+final class XvfbCompanions extends MasterToSlaveFileCallable<XvfbCompanions.Started> {
+
+    /** Outcome of starting the companions. */
+    static final class Started implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Variables exported by the companions. */
+        final Map<String, String> exports;
+
+        /** Name of the companion that failed to start, <code>null</code> if all are ready. */
+        final String failed;
+
+        /** Output of the companion that failed. */
+        final byte[] output;
+
+        /** Time it took for all companions to be ready. */
+        final long readyMillis;
+
+        Started(final Map<String, String> exports, final String failed, final byte[] output, final long readyMillis) {
+            this.exports = exports;
+            this.failed = failed;
+            this.output = output;
+            this.readyMillis = readyMillis;
+        }
+    }
+
+    /** Stops the companions of the display, returns the number stopped. */
+    static final class Stop extends MasterToSlaveCallable<Integer, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Stop(final String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public Integer call() {
+            final List<Process> processes = running.remove(cookie);
+            if (processes == null) {
+                return 0;
+            }
+
+            for (final Process process : processes) {
+                process.destroy();
+            }
+
+            for (final Process process : processes) {
+                try {
+                    if (!process.waitFor(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        process.destroyForcibly();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            return processes.size();
+        }
+    }
+
+    /** A starting companion, ready once its output matched or it exited successfully. */
+    private static final class Starting extends Thread {
+
+        private final XvfbCompanion companion;
+
+        private final Process process;
+
+        private final Pattern readyPattern;
+
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        private final CountDownLatch settled = new CountDownLatch(1);
+
+        private volatile Map<String, String> exports;
+
+        Starting(final XvfbCompanion companion, final Process process) {
+            super("Xvfb companion " + companion.getName());
+            this.companion = companion;
+            this.process = process;
+
+            final String pattern = Util.fixEmpty(companion.getReadyPattern());
+            readyPattern = pattern == null ? null : Pattern.compile(pattern);
+            if (readyPattern == null) {
+                exports = companion.exportsFor(null);
+                settled.countDown();
+            }
+
+            setDaemon(true);
+        }
+
+        /** Waits for the output to match the ready pattern or the companion to exit, until its timeout passes. */
+        void awaitSettled(final long startingAt) throws InterruptedException {
+            settled.await(Math.max(0, startingAt + TimeUnit.SECONDS.toMillis(companion.getTimeout()) - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        boolean isReady() {
+            if (exports == null) {
+                return false;
+            }
+
+            // a companion without a ready pattern needs to have survived the start, or to have daemonized successfully
+            return readyPattern != null || process.isAlive() || process.exitValue() == 0;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (exports != null) {
+                        // output of a ready companion is drained, not kept
+                        continue;
+                    }
+
+                    synchronized (output) {
+                        output.write((line + "\n").getBytes(Charset.defaultCharset()));
+                    }
+
+                    final Matcher matcher = readyPattern.matcher(line);
+                    if (matcher.find()) {
+                        exports = companion.exportsFor(matcher);
+                        settled.countDown();
+                    }
+                }
+            } catch (final IOException ignore) {
+                // the companion went away, what it wrote so far is kept
+            } finally {
+                settled.countDown();
+            }
+        }
+
+        byte[] getOutput() {
+            synchronized (output) {
+                return output.toByteArray();
+            }
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long STOP_WAIT_MILLIS = 1000;
+
+    /** how long a companion without a ready pattern needs to keep running, or exit with success, to be considered started */
+    private static final long SETTLE_MILLIS = 100;
+
+    private static final ConcurrentMap<String, List<Process>> running = new ConcurrentHashMap<String, List<Process>>();
+
+    private final List<XvfbCompanion> companions;
+
+    private final String cookie;
+
+    private final Map<String, String> environment;
+
+    XvfbCompanions(final List<XvfbCompanion> companions, final String cookie, final Map<String, String> environment) {
+        this.companions = new ArrayList<XvfbCompanion>(companions);
+        this.cookie = cookie;
+        this.environment = new LinkedHashMap<String, String>(environment);
+    }
+
+    @Override
+    public Started invoke(final File workspace, final VirtualChannel channel) throws IOException, InterruptedException {
+        final long startingAt = System.currentTimeMillis();
+
+        final List<Process> processes = new ArrayList<Process>();
+        running.put(cookie, processes);
+
+        final List<Starting> startings = new ArrayList<Starting>();
+        for (final XvfbCompanion companion : companions) {
+            final ProcessBuilder processBuilder = new ProcessBuilder(Util.tokenize(companion.getCommand())).directory(workspace).redirectErrorStream(true);
+            processBuilder.environment().putAll(environment);
+            processBuilder.environment().put(Xvfb.JENKINS_XVFB_COOKIE, cookie);
+
+            final Process process;
+            try {
+                process = processBuilder.start();
+            } catch (final IOException e) {
+                return new Started(new LinkedHashMap<String, String>(), companion.getName(), String.valueOf(e.getMessage()).getBytes(Charset.defaultCharset()),
+                        System.currentTimeMillis() - startingAt);
+            }
+            process.getOutputStream().close();
+            synchronized (processes) {
+                processes.add(process);
+            }
+
+            final Starting starting = new Starting(companion, process);
+            starting.start();
+            startings.add(starting);
+        }
+
+        // all companions start at once, so waiting for each in turn takes as long as the slowest
+        for (final Starting starting : startings) {
+            starting.awaitSettled(startingAt);
+        }
+
+        boolean withoutReadyPattern = false;
+        for (final Starting starting : startings) {
+            withoutReadyPattern |= starting.readyPattern == null;
+        }
+
+        final long readyMillis = System.currentTimeMillis() - startingAt;
+        if (withoutReadyPattern && readyMillis < SETTLE_MILLIS) {
+            Thread.sleep(SETTLE_MILLIS - readyMillis);
+        }
+
+        final Map<String, String> exports = new LinkedHashMap<String, String>();
+        for (final Starting starting : startings) {
+            if (!starting.isReady()) {
+                return new Started(exports, starting.companion.getName(), starting.getOutput(), readyMillis);
+            }
+
+            exports.putAll(starting.exports);
+        }
+
+        return new Started(exports, null, new byte[0], readyMillis);
+    }
+}
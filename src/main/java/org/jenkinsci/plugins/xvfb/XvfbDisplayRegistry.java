@@ -0,0 +1,180 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.Extension;
+import hudson.model.Run;
+
+/**
+ * Displays currently running on each node, kept on the controller as builds start and stop Xvfb, so that listing them does not require loading
+ * builds. Keyed by computer name and display number. Displays are added once allocated or spawned, readiness is recorded when they become ready.
+ */
+@Extension
+public class XvfbDisplayRegistry extends XvfbListener {
+
+    /** Xvfb display started for a build. */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Display {
+
+        private final String computerName;
+
+        private final int displayName;
+
+        private final String run;
+
+        private final long startedAt;
+
+        final String cookie;
+
+        private volatile boolean ready;
+
+        Display(final String computerName, final int displayName, final String run, final long startedAt, final String cookie) {
+            this.computerName = computerName;
+            this.displayName = displayName;
+            this.run = run;
+            this.startedAt = startedAt;
+            this.cookie = cookie;
+        }
+
+        @Exported
+        public String getComputerName() {
+            return computerName;
+        }
+
+        @Exported
+        public int getDisplayName() {
+            return displayName;
+        }
+
+        /** Id of the build the display was started for, as in {@link Run#getExternalizableId()}. */
+        @Exported
+        public String getRun() {
+            return run;
+        }
+
+        @Exported
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        /** Is Xvfb known to be ready, displays started in the background or lazily are listed before they are. */
+        @Exported
+        public boolean isReady() {
+            return ready;
+        }
+    }
+
+    private static final ConcurrentMap<String, ConcurrentMap<Integer, Display>> displays = new ConcurrentHashMap<String, ConcurrentMap<Integer, Display>>();
+
+    /** All running displays. */
+    static List<Display> active() {
+        final List<Display> active = new ArrayList<Display>();
+        for (final ConcurrentMap<Integer, Display> displaysAtComputer : displays.values()) {
+            active.addAll(displaysAtComputer.values());
+        }
+
+        return active;
+    }
+
+    /** Displays running on the computer. */
+    static Collection<Display> activeOn(final String computerName) {
+        final ConcurrentMap<Integer, Display> displaysAtComputer = displays.get(computerName);
+        if (displaysAtComputer == null) {
+            return Collections.emptyList();
+        }
+
+        return displaysAtComputer.values();
+    }
+
+    static void add(final String computerName, final int displayName, final String run, final String cookie) {
+        ConcurrentMap<Integer, Display> displaysAtComputer = displays.get(computerName);
+        if (displaysAtComputer == null) {
+            displaysAtComputer = new ConcurrentHashMap<Integer, Display>();
+            final ConcurrentMap<Integer, Display> raced = displays.putIfAbsent(computerName, displaysAtComputer);
+            if (raced != null) {
+                displaysAtComputer = raced;
+            }
+        }
+
+        displaysAtComputer.put(displayName, new Display(computerName, displayName, run, System.currentTimeMillis(), cookie));
+    }
+
+    /** Adds the display of the environment, as soon as it is allocated or spawned for the build. */
+    static void add(final Run<?, ?> run, final XvfbEnvironment environment) {
+        if (environment.computerName != null) {
+            add(environment.computerName, environment.displayName, run.getExternalizableId(), environment.cookie);
+        }
+    }
+
+    static void remove(final String computerName, final int displayName, final String cookie) {
+        final ConcurrentMap<Integer, Display> displaysAtComputer = displays.get(computerName);
+        if (displaysAtComputer == null) {
+            return;
+        }
+
+        final Display display = displaysAtComputer.get(displayName);
+        if (display != null && display.cookie.equals(cookie)) {
+            displaysAtComputer.remove(displayName, display);
+        }
+    }
+
+    @Override
+    public void onReady(final Run<?, ?> run, final XvfbEnvironment environment) {
+        if (environment.computerName == null) {
+            return;
+        }
+
+        final ConcurrentMap<Integer, Display> displaysAtComputer = displays.get(environment.computerName);
+        if (displaysAtComputer == null) {
+            return;
+        }
+
+        final Display display = displaysAtComputer.get(environment.displayName);
+        if (display != null && display.cookie.equals(environment.cookie)) {
+            display.ready = true;
+        }
+    }
+
+    @Override
+    public void onTeardown(final Run<?, ?> run, final XvfbEnvironment environment) {
+        if (environment.computerName != null) {
+            remove(environment.computerName, environment.displayName, environment.cookie);
+        }
+    }
+}
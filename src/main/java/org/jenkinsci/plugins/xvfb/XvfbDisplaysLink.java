@@ -0,0 +1,151 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Api;
+import hudson.model.Computer;
+import hudson.model.ManagementLink;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+/** Lists running and zombie Xvfb displays of all nodes, linked from Manage Jenkins and available as JSON through its remote API. */
+@Extension
+@ExportedBean
+public class XvfbDisplaysLink extends ManagementLink {
+
+    /** Xvfb display left on a disconnected node, killed when the node reconnects. */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Zombie {
+
+        private final String computerName;
+
+        private final int displayName;
+
+        Zombie(final String computerName, final int displayName) {
+            this.computerName = computerName;
+            this.displayName = displayName;
+        }
+
+        @Exported
+        public String getComputerName() {
+            return computerName;
+        }
+
+        @Exported
+        public int getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /** Kills all displays running on the node, along with their companions, proxies, lazy start listeners and cgroups. */
+    @RequirePOST
+    public HttpResponse doKill(@QueryParameter final String node) throws IOException, InterruptedException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+        if (node == null) {
+            return HttpResponses.error(400, "No node given");
+        }
+
+        final Node target = "".equals(node) ? Jenkins.get() : Jenkins.get().getNode(node);
+        if (target == null) {
+            return HttpResponses.error(404, "No such node: " + node);
+        }
+
+        final Computer computer = target.toComputer();
+        if (computer == null || computer.getChannel() == null) {
+            return HttpResponses.error(409, "Node is offline: " + node);
+        }
+
+        final Launcher launcher = target.createLauncher(TaskListener.NULL);
+        for (final XvfbDisplayRegistry.Display display : XvfbDisplayRegistry.activeOn(node)) {
+            Xvfb.kill(launcher, display.cookie);
+            XvfbDisplayRegistry.remove(node, display.getDisplayName(), display.cookie);
+        }
+
+        return HttpResponses.redirectToDot();
+    }
+
+    @Exported
+    public List<XvfbDisplayRegistry.Display> getActive() {
+        return XvfbDisplayRegistry.active();
+    }
+
+    public Api getApi() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+        return new Api(this);
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.XvfbDisplaysLink_Description();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.XvfbDisplaysLink_DisplayName();
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "computer.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "xvfb-displays";
+    }
+
+    @Exported
+    public List<Zombie> getZombies() {
+        final List<Zombie> zombies = new ArrayList<Zombie>();
+        for (final Map.Entry<String, List<XvfbEnvironment>> zombiesAtComputer : Xvfb.zombies().entrySet()) {
+            for (final XvfbEnvironment zombie : zombiesAtComputer.getValue()) {
+                zombies.add(new Zombie(zombiesAtComputer.getKey(), zombie.displayName));
+            }
+        }
+
+        return zombies;
+    }
+}
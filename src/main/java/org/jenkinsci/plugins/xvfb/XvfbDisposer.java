@@ -49,7 +49,10 @@ public class XvfbDisposer extends Disposer {
     @Override
     public void tearDown(final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener) throws IOException, InterruptedException {
         if (!xvfb.shutdownWithBuild) {
-            Xvfb.shutdownAndCleanup(xvfb, launcher, listener);
+            Xvfb.shutdownAndCleanup(run, xvfb, launcher, listener);
+        }
+        else {
+            XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.TEARDOWN).end(xvfb.displayName, xvfb.computerName, "deferred to build completion");
         }
     }
 
@@ -48,11 +48,99 @@ public class XvfbEnvironment extends InvisibleAction implements Serializable {
     /** Random value identifying the Xvfb process. */
     public String cookie;
 
+    /** Name of the computer Xvfb was started on, <code>null</code> if not known. */
+    public final String computerName;
+
+    /** Time spent in each phase of starting and stopping Xvfb, <code>null</code> if not known. */
+    public XvfbTimings timings;
+
+    /** Memory and CPU time used by Xvfb, <code>null</code> if not sampled. */
+    public XvfbResources resources;
+
+    /** Was Xvfb to be started only when the first client connected to the display. */
+    public boolean lazy;
+
+    /** Was Xvfb left to become ready in the background while the build went on. */
+    public boolean overlapped;
+
+    /** Screen Xvfb was started with to be resizable at runtime, the largest size it can be resized to, <code>null</code> if not resizable. */
+    public String maximumScreen;
+
+    /** Were companion processes started with the display. */
+    public boolean withCompanions;
+
+    /** Was Xvfb started in a cgroup of its own. */
+    public boolean confined;
+
+    /** Usage of the cgroup Xvfb ran in, <code>null</code> if not confined or not known. */
+    public XvfbCgroupUsage cgroupUsage;
+
+    /** Display of the proxy recording what clients asked Xvfb for, <code>null</code> if not instrumented. */
+    public Integer proxyDisplayName;
+
+    /** What clients asked Xvfb for through the proxy, <code>null</code> if not instrumented or not known. */
+    public XvfbProxyReport proxyReport;
+
+    /** Profile of options Xvfb was started with, <code>null</code> if not known. */
+    XvfbProfile profile;
+
+    /** Were listeners told Xvfb is ready, not kept with the build. */
+    private transient boolean readyNotified;
+
     public XvfbEnvironment(final String cookie, final String frameBufferDir, final int displayName, final boolean shutdownWithBuild) {
+        this(cookie, frameBufferDir, displayName, shutdownWithBuild, null);
+    }
+
+    public XvfbEnvironment(final String cookie, final String frameBufferDir, final int displayName, final boolean shutdownWithBuild, final String computerName) {
         this.cookie = cookie;
         this.frameBufferDir = frameBufferDir;
         this.displayName = displayName;
         this.shutdownWithBuild = shutdownWithBuild;
+        this.computerName = computerName;
+    }
+
+    /** Display clients are given, the proxy if instrumented. Clients of a lazily started display connect over TCP, that's where it is reserved. */
+    String display() {
+        if (proxyDisplayName != null) {
+            return "127.0.0.1:" + proxyDisplayName;
+        }
+
+        return (lazy ? "127.0.0.1:" : ":") + displayName;
+    }
+
+    /** Marks listeners as told Xvfb is ready, returns <code>false</code> if they already were. */
+    synchronized boolean markReady() {
+        if (readyNotified) {
+            return false;
+        }
+        readyNotified = true;
+
+        return true;
+    }
+
+    /** Used by <code>summary.jelly</code>, <code>null</code> for the default profile. */
+    public String getProfileName() {
+        return profile == null || profile == XvfbProfile.DEFAULT ? null : profile.getDisplayName();
+    }
+
+    /** Used by <code>summary.jelly</code>. */
+    public XvfbCgroupUsage getCgroupUsage() {
+        return cgroupUsage;
+    }
+
+    /** Used by <code>summary.jelly</code>. */
+    public XvfbProxyReport getProxyReport() {
+        return proxyReport;
+    }
+
+    /** Used by <code>summary.jelly</code>. */
+    public XvfbResources getResources() {
+        return resources;
+    }
+
+    /** Used by <code>summary.jelly</code>. */
+    public XvfbTimings getTimings() {
+        return timings;
     }
 
 }
@@ -0,0 +1,117 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Helpers for locating and running the Xvfb executable of an installation, used on the node. */
+final class XvfbExecutable {
+
+    /** Path of the Xvfb executable of the installation, as given to the launcher. */
+    static String pathOf(final XvfbInstallation installation) {
+        final String home = installation.getHome();
+        if (home == null || home.isEmpty()) {
+            return "Xvfb";
+        }
+
+        return home + "/Xvfb";
+    }
+
+    /** Resolves the executable against <code>PATH</code> if it is not given as an absolute path. */
+    static File resolve(final String executable) {
+        final File direct = new File(executable);
+        if (direct.isAbsolute()) {
+            return direct;
+        }
+
+        final String path = System.getenv("PATH");
+        if (path != null) {
+            for (final String directory : path.split(File.pathSeparator)) {
+                final File candidate = new File(directory, executable);
+                if (candidate.canExecute()) {
+                    return candidate;
+                }
+            }
+        }
+
+        return direct;
+    }
+
+    /** Identity of the executable that changes when the executable is replaced or modified. */
+    static String fingerprintOf(final File executable) {
+        return executable.getAbsolutePath() + ':' + executable.length() + ':' + executable.lastModified();
+    }
+
+    /** Runs the command and returns its combined output, the command is destroyed if it does not finish in time. */
+    static String run(final List<String> command, final long timeoutSeconds) throws IOException, InterruptedException {
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Thread reader = new Thread("Xvfb probe output reader") {
+            @Override
+            public void run() {
+                try {
+                    final InputStream in = process.getInputStream();
+                    final byte[] buffer = new byte[4096];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                    }
+                } catch (final IOException ignore) {
+                    // process went away, keep what was read so far
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroy();
+            }
+
+            // children of the process could keep the output open, don't wait for them
+            reader.join(TimeUnit.SECONDS.toMillis(1));
+        } finally {
+            process.destroy();
+        }
+
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private XvfbExecutable() {
+    }
+}
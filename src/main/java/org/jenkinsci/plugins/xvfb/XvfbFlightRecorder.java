@@ -0,0 +1,228 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.SystemProperties;
+
+/**
+ * Java Flight Recorder events for the Xvfb lifecycle, so that Xvfb activity can be lined up with garbage collection and remoting in a recording
+ * of the controller or agent JVM. Event types are defined at runtime with <code>jdk.jfr.EventFactory</code>, available from Java 12, as the
+ * plugin is built for Java 8; on older Java no events are emitted. Disabled by default, enabled with the
+ * <code>org.jenkinsci.plugins.xvfb.XvfbFlightRecorder.enabled</code> system property on the JVM to record.
+ */
+final class XvfbFlightRecorder {
+
+    /** Lifecycle phases recorded, each with its own event type. */
+    enum Phase {
+        ALLOCATION("Allocation", "Xvfb Display Allocation"),
+        LAUNCH("Launch", "Xvfb Launch"),
+        READINESS("Readiness", "Xvfb Readiness"),
+        TEARDOWN("Teardown", "Xvfb Teardown"),
+        ZOMBIE_REAPING("ZombieReaping", "Xvfb Zombie Reaping"),
+        ZOMBIE_PERSISTENCE("ZombiePersistence", "Xvfb Zombie Persistence");
+
+        private final String name;
+
+        private final String label;
+
+        Phase(final String name, final String label) {
+            this.name = name;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Reflective access to the event factory of the JVM, looked up once when first needed. Initialization of the class publishes it to all
+     * threads.
+     */
+    private static final class Api {
+
+        /** <code>null</code> if recording is disabled or the JVM has no event factory. */
+        static final Api INSTANCE = lookUp();
+
+        private static Api lookUp() {
+            if (!ENABLED) {
+                return null;
+            }
+
+            try {
+                final ClassLoader loader = ClassLoader.getSystemClassLoader();
+                final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory", true, loader);
+                final Class<?> event = Class.forName("jdk.jfr.Event", true, loader);
+
+                return new Api(loader, eventFactory, event);
+            } catch (final ReflectiveOperationException | RuntimeException | LinkageError e) {
+                LOGGER.log(Level.INFO, "Java Flight Recorder event factory is not available, Xvfb events will not be recorded", e);
+
+                return null;
+            }
+        }
+
+        private final ClassLoader loader;
+
+        private final Method create;
+
+        private final Constructor<?> annotation;
+
+        private final Constructor<?> value;
+
+        private final Method newEvent;
+
+        private final Method begin;
+
+        private final Method set;
+
+        private final Method end;
+
+        private final Method commit;
+
+        private Api(final ClassLoader loader, final Class<?> eventFactory, final Class<?> event) throws ReflectiveOperationException {
+            this.loader = loader;
+            create = eventFactory.getMethod("create", List.class, List.class);
+            annotation = Class.forName("jdk.jfr.AnnotationElement", true, loader).getConstructor(Class.class, Object.class);
+            value = Class.forName("jdk.jfr.ValueDescriptor", true, loader).getConstructor(Class.class, String.class);
+            newEvent = eventFactory.getMethod("newEvent");
+            begin = event.getMethod("begin");
+            set = event.getMethod("set", int.class, Object.class);
+            end = event.getMethod("end");
+            commit = event.getMethod("commit");
+        }
+
+        /** Event factory of the phase. */
+        Object factoryOf(final Phase phase) throws ReflectiveOperationException {
+            final List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(Class.forName("jdk.jfr.Name", true, loader), "org.jenkinsci.plugins.xvfb." + phase.name),
+                    annotation.newInstance(Class.forName("jdk.jfr.Label", true, loader), phase.label),
+                    annotation.newInstance(Class.forName("jdk.jfr.Category", true, loader), new String[] { "Jenkins", "Xvfb" }));
+
+            final List<Object> fields = Arrays.asList(value.newInstance(int.class, "display"), value.newInstance(String.class, "node"), value.newInstance(String.class, "outcome"));
+
+            return create.invoke(null, annotations, fields);
+        }
+    }
+
+    /** Event in progress, ended when the phase is over. */
+    static final class Event {
+
+        private static final Event NONE = new Event(null);
+
+        private final Object event;
+
+        private Event(final Object event) {
+            this.event = event;
+        }
+
+        /** Ends the phase and commits the event, with the display number, or -1 if not known, the node and the outcome of the phase. */
+        void end(final int display, final String node, final String outcome) {
+            if (event == null) {
+                return;
+            }
+
+            final Api api = Api.INSTANCE;
+            try {
+                api.set.invoke(event, 0, display);
+                api.set.invoke(event, 1, node);
+                api.set.invoke(event, 2, outcome);
+                api.end.invoke(event);
+                api.commit.invoke(event);
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Unable to commit Xvfb flight recorder event", e);
+            }
+        }
+    }
+
+    static final boolean ENABLED = SystemProperties.getBoolean(XvfbFlightRecorder.class.getName() + ".enabled");
+
+    private static final Logger LOGGER = Logger.getLogger(XvfbFlightRecorder.class.getName());
+
+    private static final Map<Phase, Object> factories = new EnumMap<Phase, Object>(Phase.class);
+
+    /** guarded by the class, <code>false</code> once creating an event factory failed */
+    private static boolean available = true;
+
+    /** Starts recording the phase, the returned event does nothing if recording is disabled or not supported by the JVM. */
+    static Event begin(final Phase phase) {
+        if (!ENABLED) {
+            return Event.NONE;
+        }
+
+        final Object factory = factoryOf(phase);
+        if (factory == null) {
+            return Event.NONE;
+        }
+
+        final Api api = Api.INSTANCE;
+        try {
+            final Object event = api.newEvent.invoke(factory);
+            api.begin.invoke(event);
+
+            return new Event(event);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Unable to begin Xvfb flight recorder event", e);
+
+            return Event.NONE;
+        }
+    }
+
+    private static synchronized Object factoryOf(final Phase phase) {
+        final Api api = Api.INSTANCE;
+        if (api == null || !available) {
+            return null;
+        }
+
+        final Object existing = factories.get(phase);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            final Object factory = api.factoryOf(phase);
+            factories.put(phase, factory);
+
+            return factory;
+        } catch (final ReflectiveOperationException | RuntimeException | LinkageError e) {
+            LOGGER.log(Level.INFO, "Java Flight Recorder event factory is not available, Xvfb events will not be recorded", e);
+            available = false;
+
+            return null;
+        }
+    }
+
+    private XvfbFlightRecorder() {
+    }
+}
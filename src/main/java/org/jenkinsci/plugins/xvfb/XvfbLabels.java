@@ -0,0 +1,196 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import antlr.ANTLRException;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import jenkins.model.Jenkins;
+
+/**
+ * Parsed label expressions of {@link Xvfb#getAssignedLabels()} and the outcome of matching them against node label sets. Label expressions
+ * change only when jobs are reconfigured, and node label sets only when nodes are, so neither needs to be parsed or evaluated on each build. Also
+ * keeps a sorted index of label names, ranked by the number of nodes and clouds in the label, for autocompletion.
+ */
+final class XvfbLabels {
+
+    /** upper bound on cached expressions, past it the cache is started afresh */
+    private static final int MAX_CACHED = 1024;
+
+    /** number of autocompletion candidates offered */
+    static final int MAX_CANDIDATES = 20;
+
+    /** highest ranked first, then by name */
+    private static final Comparator<Map.Entry<String, Integer>> BY_RANK = new Comparator<Map.Entry<String, Integer>>() {
+        @Override
+        public int compare(final Map.Entry<String, Integer> left, final Map.Entry<String, Integer> right) {
+            final int byRank = right.getValue().compareTo(left.getValue());
+            if (byRank != 0) {
+                return byRank;
+            }
+
+            return left.getKey().compareTo(right.getKey());
+        }
+    };
+
+    /** label name to rank, <code>null</code> until first needed or after labels changed */
+    private static volatile NavigableMap<String, Integer> index;
+
+    private static final ConcurrentMap<String, Label> parsed = new ConcurrentHashMap<String, Label>();
+
+    private static final ConcurrentMap<String, ConcurrentMap<Set<LabelAtom>, Boolean>> matches = new ConcurrentHashMap<String, ConcurrentMap<Set<LabelAtom>, Boolean>>();
+
+    /** Label names starting with the prefix, the <code>maxCandidates</code> highest ranked of all of them, highest ranked first. */
+    static List<String> complete(final NavigableMap<String, Integer> index, final String prefix, final int maxCandidates) {
+        final Map<String, Integer> range = prefix.isEmpty() ? index : index.subMap(prefix, true, prefix + '\uffff', false);
+
+        // the lowest ranked of the best candidates so far is at the head, to make room for better ones
+        final PriorityQueue<Map.Entry<String, Integer>> best = new PriorityQueue<Map.Entry<String, Integer>>(maxCandidates + 1,
+                Collections.reverseOrder(BY_RANK));
+        for (final Map.Entry<String, Integer> entry : range.entrySet()) {
+            best.add(entry);
+            if (best.size() > maxCandidates) {
+                best.poll();
+            }
+        }
+
+        final List<Map.Entry<String, Integer>> ranked = new ArrayList<Map.Entry<String, Integer>>(best);
+        Collections.sort(ranked, BY_RANK);
+
+        final List<String> candidates = new ArrayList<String>();
+        for (final Map.Entry<String, Integer> entry : ranked) {
+            candidates.add(entry.getKey());
+        }
+
+        return candidates;
+    }
+
+    /** Label names for autocompletion of the prefix. */
+    static List<String> complete(final String prefix) {
+        NavigableMap<String, Integer> current = index;
+        if (current == null) {
+            current = new ConcurrentSkipListMap<String, Integer>();
+            for (final Label label : Jenkins.get().getLabels()) {
+                current.put(label.getName(), rankOf(label));
+            }
+
+            index = current;
+        }
+
+        return complete(current, prefix == null ? "" : prefix, MAX_CANDIDATES);
+    }
+
+    /** Forgets the label index, it is rebuilt when next needed. */
+    static void forgetIndex() {
+        index = null;
+    }
+
+    /** Adds labels of the node to the index, if the index is built. */
+    static void index(final Node node) {
+        final NavigableMap<String, Integer> current = index;
+        if (current == null) {
+            return;
+        }
+
+        for (final LabelAtom label : node.getAssignedLabels()) {
+            current.put(label.getName(), rankOf(label));
+        }
+    }
+
+    private static int rankOf(final Label label) {
+        return label.getNodes().size() + label.getClouds().size();
+    }
+
+    /** Forgets match results, node labels might have changed. */
+    static void forgetMatches() {
+        matches.clear();
+    }
+
+    /** Does the node carry labels matching the expression, evaluated once per distinct set of node labels. */
+    static boolean matches(final String expression, final Label label, final Node node) {
+        ConcurrentMap<Set<LabelAtom>, Boolean> results = matches.get(expression);
+        if (results == null) {
+            if (matches.size() >= MAX_CACHED) {
+                matches.clear();
+            }
+
+            results = new ConcurrentHashMap<Set<LabelAtom>, Boolean>();
+            final ConcurrentMap<Set<LabelAtom>, Boolean> raced = matches.putIfAbsent(expression, results);
+            if (raced != null) {
+                results = raced;
+            }
+        }
+
+        final Set<LabelAtom> nodeLabels = Collections.unmodifiableSet(new HashSet<LabelAtom>(node.getAssignedLabels()));
+
+        final Boolean known = results.get(nodeLabels);
+        if (known != null) {
+            return known;
+        }
+
+        final boolean matched = label.matches(nodeLabels);
+        results.put(nodeLabels, matched);
+
+        return matched;
+    }
+
+    /** Parsed label expression, parsed once and shared between builds and form validation. */
+    static Label parse(final String expression) throws ANTLRException {
+        final Label known = parsed.get(expression);
+        if (known != null) {
+            return known;
+        }
+
+        final Label label = Label.parseExpression(expression);
+
+        if (parsed.size() >= MAX_CACHED) {
+            parsed.clear();
+        }
+        parsed.put(expression, label);
+
+        return label;
+    }
+
+    private XvfbLabels() {
+    }
+}
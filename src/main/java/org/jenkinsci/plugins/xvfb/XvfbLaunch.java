@@ -0,0 +1,464 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+import hudson.util.ProcessTree.OSProcess;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Launches Xvfb on the node in a single remote call: creates the frame buffer directory, starts the server and waits until it is ready, or until
+ * it dies or the timeout passes. Invoked on the workspace of the build. When overlapped the call returns as soon as the server is spawned, and
+ * the wait continues on the node until collected with {@link Await}.
+ */
+final class XvfbLaunch extends MasterToSlaveFileCallable<XvfbLaunch.Result> {
+
+    /** How the readiness of Xvfb is determined. */
+    enum Readiness {
+        /** Xvfb writes the display number to {@link XvfbLaunch#DISPLAY_FD} once it accepts connections */
+        DISPLAYFD,
+        /** the display socket exists and the display lock names our Xvfb process */
+        SOCKET
+    }
+
+    static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Was the server running when the launch finished. */
+        final boolean alive;
+
+        /** Did the server signal readiness within the timeout. */
+        final boolean ready;
+
+        /** Display number used, as determined by Xvfb when it was left to choose. */
+        final int displayName;
+
+        /** Output of the server, captured only if the server died and the output was not already logged. */
+        final byte[] output;
+
+        /** Time taken to spawn the server process, in milliseconds. */
+        final long spawnMillis;
+
+        /** Time from spawning the server process until it was ready or the wait for it ended, in milliseconds. */
+        final long readinessMillis;
+
+        Result(final boolean alive, final boolean ready, final int displayName, final byte[] output, final long spawnMillis, final long readinessMillis) {
+            this.alive = alive;
+            this.ready = ready;
+            this.displayName = displayName;
+            this.output = output;
+            this.spawnMillis = spawnMillis;
+            this.readinessMillis = readinessMillis;
+        }
+    }
+
+    /** Output stream that can be redirected once the launch is over, so the server output is drained but not kept. */
+    private static final class RedirectableOutputStream extends OutputStream {
+
+        private volatile OutputStream target;
+
+        RedirectableOutputStream(final OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        void redirect(final OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            target.write(b, off, len);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            target.write(b);
+        }
+    }
+
+    /**
+     * Waits on the node for the server started in the background with the cookie to become ready, or until it dies or the timeout passes. Returns
+     * <code>null</code> if there is no such server, or when forgetting it if the outcome was already collected.
+     */
+    static final class Await extends MasterToSlaveCallable<Result, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        private final boolean forget;
+
+        /** @param forget the server is being shut down, forget about it */
+        Await(final String cookie, final boolean forget) {
+            this.cookie = cookie;
+            this.forget = forget;
+        }
+
+        @Override
+        public Result call() throws IOException {
+            final Settling settling = forget ? pending.remove(cookie) : pending.get(cookie);
+            if (settling == null) {
+                return null;
+            }
+
+            final Result result;
+            try {
+                result = settling.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for Xvfb to start", e);
+            } catch (final ExecutionException e) {
+                throw new IOException("Unable to wait for Xvfb to start", e.getCause());
+            }
+
+            if (forget && settling.collected) {
+                return null;
+            }
+            settling.collected = true;
+
+            return result;
+        }
+    }
+
+    /** Wait for a server started in the background. */
+    private static final class Settling extends FutureTask<Result> {
+
+        /** Was the outcome collected by the build. */
+        private volatile boolean collected;
+
+        Settling(final Callable<Result> settle) {
+            super(settle);
+        }
+    }
+
+    private static final class Discard extends OutputStream {
+
+        private static final Discard INSTANCE = new Discard();
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            // discard
+        }
+
+        @Override
+        public void write(final int b) {
+            // discard
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /** file descriptor Xvfb is asked to write the display number to, redirected to a file in the frame buffer directory */
+    static final String DISPLAY_FD = "3";
+
+    private static final String DISPLAY_FD_FILE = "displayfd";
+
+    /** environment variable passing the path of the display number file to the shell starting Xvfb */
+    private static final String DISPLAY_FD_FILE_VARIABLE = "_JENKINS_XVFB_DISPLAYFD";
+
+    /** how long to wait for the display number when Xvfb chooses the display, regardless of the timeout */
+    private static final long DISPLAY_NUMBER_WAIT_MILLIS = 30000;
+
+    private static final long POLL_MILLIS = 50;
+
+    /** the display number file is checked this often, it is only a stat until the number is written */
+    private static final long DISPLAY_FD_POLL_MILLIS = 5;
+
+    private static final long PUMP_JOIN_MILLIS = 1000;
+
+    /** servers started in the background, by cookie */
+    private static final ConcurrentMap<String, Settling> pending = new ConcurrentHashMap<String, Settling>();
+
+    private static Thread pump(final String name, final InputStream from, final OutputStream to) {
+        final Thread pump = new Thread(name) {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[8192];
+                try {
+                    int read;
+                    while ((read = from.read(buffer)) != -1) {
+                        to.write(buffer, 0, read);
+                        to.flush();
+                    }
+                } catch (final IOException ignore) {
+                    // the server is gone
+                }
+            }
+        };
+        pump.setDaemon(true);
+        pump.start();
+
+        return pump;
+    }
+
+    private final List<String> command;
+
+    private final String cookie;
+
+    private final String frameBufferDir;
+
+    private final int displayName;
+
+    private final boolean autoDisplayName;
+
+    private final Readiness readiness;
+
+    private final long timeoutMillis;
+
+    private final boolean overlapped;
+
+    /** Width and height to resize the screen to once ready, <code>null</code> to keep the size Xvfb started with. */
+    private final int[] screenSize;
+
+    /** CPU pinning and cgroup limits of the server, <code>null</code> for none. */
+    private final XvfbCgroup.Limits limits;
+
+    /** Remote stream of the build log if Xvfb output should be logged, <code>null</code> otherwise. */
+    private final OutputStream log;
+
+    XvfbLaunch(final List<String> command, final String cookie, final String frameBufferDir, final int displayName, final boolean autoDisplayName, final Readiness readiness,
+            final long timeoutMillis, final boolean overlapped, final int[] screenSize, final XvfbCgroup.Limits limits, final OutputStream log) {
+        this.command = command;
+        this.cookie = cookie;
+        this.frameBufferDir = frameBufferDir;
+        this.displayName = displayName;
+        this.autoDisplayName = autoDisplayName;
+        this.readiness = readiness;
+        this.timeoutMillis = timeoutMillis;
+        this.overlapped = overlapped;
+        this.screenSize = screenSize;
+        this.limits = limits;
+        this.log = log;
+    }
+
+    /** Waits for the server to be ready, returns the display number it is ready on or <code>-1</code> if it died or the wait timed out. */
+    private int awaitReadiness(final Process process, final File displayFdFile) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + (autoDisplayName ? Math.max(timeoutMillis, DISPLAY_NUMBER_WAIT_MILLIS) : timeoutMillis);
+
+        while (true) {
+            if (readiness == Readiness.DISPLAYFD) {
+                final int displayNumber = readDisplayNumber(displayFdFile);
+                if (displayNumber >= 0) {
+                    return displayNumber;
+                }
+            } else if (XvfbReadiness.isReady(displayName, cookie)) {
+                return displayName;
+            }
+
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            // returns as soon as the server dies
+            if (process.waitFor(Math.min(readiness == Readiness.DISPLAYFD ? DISPLAY_FD_POLL_MILLIS : POLL_MILLIS, remaining), TimeUnit.MILLISECONDS)) {
+                return -1;
+            }
+        }
+    }
+
+    /** Display number written by Xvfb, <code>-1</code> if not written yet. */
+    static int readDisplayNumber(final File displayFdFile) throws IOException {
+        if (displayFdFile.length() == 0) {
+            return -1;
+        }
+
+        final String written = new String(Files.readAllBytes(displayFdFile.toPath()), StandardCharsets.US_ASCII);
+        if (!written.endsWith("\n")) {
+            // not completely written yet
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(written.trim());
+        } catch (final NumberFormatException e) {
+            throw new IOException("Xvfb wrote an invalid display number: " + written.trim(), e);
+        }
+    }
+
+    /** Starts Xvfb from a shell redirecting {@link #DISPLAY_FD} to the display number file, the shell is replaced by Xvfb. */
+    static List<String> redirectingDisplayFd(final List<String> command) {
+        final List<String> redirecting = new ArrayList<String>();
+        redirecting.add("/bin/sh");
+        redirecting.add("-c");
+        redirecting.add("exec \"$0\" \"$@\" " + DISPLAY_FD + ">\"$" + DISPLAY_FD_FILE_VARIABLE + "\"");
+        redirecting.addAll(command);
+
+        return redirecting;
+    }
+
+    static String readinessOutcome(final boolean alive, final boolean ready) {
+        if (!alive) {
+            return "exited";
+        }
+
+        return ready ? "ready" : "timed out";
+    }
+
+    private void createFrameBufferDir(final File workspace) throws IOException {
+        Files.createDirectories(workspace.toPath());
+
+        final File dir = new File(frameBufferDir);
+        try {
+            Files.createDirectory(dir.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (final UnsupportedOperationException e) {
+            Files.createDirectory(dir.toPath());
+        }
+    }
+
+    @Override
+    public Result invoke(final File workspace, final VirtualChannel channel) throws IOException, InterruptedException {
+        createFrameBufferDir(workspace);
+
+        final File displayFdFile = new File(frameBufferDir, DISPLAY_FD_FILE);
+
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        final RedirectableOutputStream output = new RedirectableOutputStream(log != null ? log : captured);
+
+        final List<String> confined = limits == null ? command : XvfbCgroup.confining(command, cookie, limits, output);
+
+        final ProcessBuilder processBuilder;
+        if (readiness == Readiness.DISPLAYFD) {
+            processBuilder = new ProcessBuilder(redirectingDisplayFd(confined));
+            processBuilder.environment().put(DISPLAY_FD_FILE_VARIABLE, displayFdFile.getPath());
+        } else {
+            processBuilder = new ProcessBuilder(confined);
+        }
+        processBuilder.environment().put(Xvfb.JENKINS_XVFB_COOKIE, cookie);
+
+        final long spawningAt = System.currentTimeMillis();
+        final Process process = processBuilder.start();
+        final long spawnedAt = System.currentTimeMillis();
+        process.getOutputStream().close();
+
+        final Thread stdoutPump = pump("Xvfb :" + displayName + " stdout", process.getInputStream(), output);
+        final Thread stderrPump = pump("Xvfb :" + displayName + " stderr", process.getErrorStream(), output);
+
+        if (!overlapped) {
+            return settle(process, captured, output, displayFdFile, stdoutPump, stderrPump, spawnedAt - spawningAt, spawnedAt);
+        }
+
+        final Settling settling = new Settling(new Callable<Result>() {
+            @Override
+            public Result call() throws IOException, InterruptedException {
+                return settle(process, captured, output, displayFdFile, stdoutPump, stderrPump, spawnedAt - spawningAt, spawnedAt);
+            }
+        });
+        pending.put(cookie, settling);
+
+        final Thread readiness = new Thread(settling, "Xvfb :" + displayName + " readiness");
+        readiness.setDaemon(true);
+        readiness.start();
+
+        return new Result(true, false, displayName, new byte[0], spawnedAt - spawningAt, 0);
+    }
+
+    private Result settle(final Process process, final ByteArrayOutputStream captured, final RedirectableOutputStream output, final File displayFdFile,
+            final Thread stdoutPump, final Thread stderrPump, final long spawnMillis, final long spawnedAt) throws IOException, InterruptedException {
+        try {
+            final XvfbFlightRecorder.Event readinessEvent = XvfbFlightRecorder.begin(XvfbFlightRecorder.Phase.READINESS);
+            final int readyOn = awaitReadiness(process, displayFdFile);
+            final boolean ready = readyOn >= 0;
+            final long readinessMillis = System.currentTimeMillis() - spawnedAt;
+            readinessEvent.end(displayName, null, readinessOutcome(process.isAlive(), ready));
+
+            if (!process.isAlive()) {
+                // collect last words of the server
+                stdoutPump.join(PUMP_JOIN_MILLIS);
+                stderrPump.join(PUMP_JOIN_MILLIS);
+                new XvfbCgroup.Release(cookie).call();
+
+                return new Result(false, false, displayName, log != null ? new byte[0] : captured.toByteArray(), spawnMillis, readinessMillis);
+            }
+
+            if (autoDisplayName && !ready) {
+                output.write(("No display name received from Xvfb within " + Math.max(timeoutMillis, DISPLAY_NUMBER_WAIT_MILLIS) / 1000 + " seconds\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                process.destroy();
+                process.waitFor();
+                new XvfbCgroup.Release(cookie).call();
+
+                return new Result(false, false, displayName, log != null ? new byte[0] : captured.toByteArray(), spawnMillis, readinessMillis);
+            }
+            final int displayNameUsed = autoDisplayName ? readyOn : displayName;
+
+            if (ready && screenSize != null) {
+                try {
+                    new XvfbRandR.Resize(displayNameUsed, false, screenSize[0], screenSize[1]).call();
+                } catch (final IOException e) {
+                    output.write(("Unable to resize the screen to " + screenSize[0] + "x" + screenSize[1] + ": " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                    process.destroy();
+                    process.waitFor();
+                    new XvfbCgroup.Release(cookie).call();
+
+                    return new Result(false, false, displayName, log != null ? new byte[0] : captured.toByteArray(), spawnMillis, readinessMillis);
+                }
+            }
+
+            if (XvfbResourceSampler.INTERVAL_SECONDS > 0) {
+                final OSProcess server = ProcessTree.get().get(process);
+                if (server != null) {
+                    XvfbResourceSampler.start(cookie, server.getPid());
+                }
+            }
+
+            return new Result(true, ready, displayNameUsed, new byte[0], spawnMillis, readinessMillis);
+        } finally {
+            if (log == null) {
+                output.redirect(Discard.INSTANCE);
+            }
+        }
+    }
+}
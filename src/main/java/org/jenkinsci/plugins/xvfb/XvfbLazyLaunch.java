@@ -0,0 +1,292 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Reserves a display on the node without starting Xvfb. A listener is bound to the TCP port of the display on the loopback interface, and Xvfb is
+ * started when the first client connects to it. Xvfb picks a display of its own and listens only on its Unix domain socket, connections to the
+ * reserved display are relayed to that socket for as long as they last, handing them over would need passing file descriptors. Builds that never
+ * connect to the display never start Xvfb. Invoked on the workspace of the build, returns the display number reserved.
+ */
+final class XvfbLazyLaunch extends MasterToSlaveFileCallable<Integer> {
+
+    /** Told on the controller once Xvfb started for the first client, exported to the node. */
+    interface Started {
+        void started();
+    }
+
+    /** Stops listening for clients of the display reserved with the cookie, returns the output of Xvfb if it failed to start, or <code>null</code>. */
+    static final class Stop extends MasterToSlaveCallable<String, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Stop(final String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public String call() throws IOException {
+            final Listener listener = listeners.remove(cookie);
+            if (listener == null) {
+                return null;
+            }
+
+            listener.close();
+
+            return listener.failure;
+        }
+    }
+
+    /** Accepts clients of the reserved display, starting Xvfb for the first one. Lives on the node. */
+    private static final class Listener extends Thread {
+
+        private final ServerSocketChannel serverChannel;
+
+        private final XvfbLaunch launch;
+
+        private final File workspace;
+
+        private final Started started;
+
+        private final Set<Channel> channels = ConcurrentHashMap.<Channel> newKeySet();
+
+        /** Display of the started Xvfb, <code>-1</code> until started. */
+        private int startedDisplay = -1;
+
+        /** Output of Xvfb if it failed to start. */
+        private volatile String failure;
+
+        Listener(final ServerSocketChannel serverChannel, final XvfbLaunch launch, final File workspace, final int displayName, final Started started) {
+            super("Xvfb lazy start of :" + displayName);
+            setDaemon(true);
+
+            this.serverChannel = serverChannel;
+            this.launch = launch;
+            this.workspace = workspace;
+            this.started = started;
+        }
+
+        void close() throws IOException {
+            serverChannel.close();
+
+            for (final Channel channel : channels) {
+                channel.close();
+            }
+        }
+
+        /** Relays the client to the Unix domain socket of Xvfb, the only one it listens on. */
+        private void relay(final SocketChannel client) throws IOException {
+            final ByteChannel server = XvfbX11.open(startedDisplay, false);
+            channels.add(server);
+            client.socket().setTcpNoDelay(true);
+
+            pump(client, server, client, server);
+            pump(server, client, client, server);
+        }
+
+        private void pump(final ReadableByteChannel from, final WritableByteChannel to, final Channel client, final Channel server) {
+            final Thread pump = new Thread(getName() + " relay") {
+                @Override
+                public void run() {
+                    final ByteBuffer buffer = ByteBuffer.allocateDirect(RELAY_BUFFER_SIZE);
+                    try {
+                        while (from.read(buffer) != -1) {
+                            buffer.flip();
+                            while (buffer.hasRemaining()) {
+                                to.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                    } catch (final IOException e) {
+                        // either side went away
+                    } finally {
+                        // X clients don't half close, the other direction is done too
+                        closeQuietly(client);
+                        closeQuietly(server);
+                    }
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        private void closeQuietly(final Channel channel) {
+            try {
+                channel.close();
+            } catch (final IOException ignore) {
+                // closing anyway
+            }
+
+            channels.remove(channel);
+        }
+
+        @Override
+        public void run() {
+            while (serverChannel.isOpen()) {
+                final SocketChannel client;
+                try {
+                    client = serverChannel.accept();
+                } catch (final IOException e) {
+                    // stopped
+                    return;
+                }
+                channels.add(client);
+
+                try {
+                    final boolean starting = startedDisplay < 0 && failure == null;
+                    if (starting) {
+                        startXvfb();
+                    }
+
+                    if (startedDisplay < 0) {
+                        closeQuietly(client);
+                    } else {
+                        relay(client);
+                        if (starting) {
+                            notifyStarted();
+                        }
+                    }
+                } catch (final IOException e) {
+                    closeQuietly(client);
+                } catch (final InterruptedException e) {
+                    closeQuietly(client);
+                    return;
+                }
+            }
+        }
+
+        /** Tells the controller Xvfb started, after the first client is relayed so it isn't kept waiting. */
+        private void notifyStarted() {
+            try {
+                started.started();
+            } catch (final RuntimeException e) {
+                // the controller went away, the build is over
+            }
+        }
+
+        private void startXvfb() throws IOException, InterruptedException {
+            final XvfbLaunch.Result result;
+            try {
+                result = launch.invoke(workspace, null);
+            } catch (final IOException e) {
+                failure = e.getMessage();
+                throw e;
+            }
+
+            if (result.alive) {
+                startedDisplay = result.displayName;
+            } else {
+                failure = new String(result.output, Charset.defaultCharset());
+            }
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /** X servers listen on TCP port 6000 plus the display number */
+    static final int X_TCP_PORT = 6000;
+
+    /** how many displays past the one wanted are tried when Xvfb would be allowed to choose the display */
+    private static final int MAX_DISPLAYS_TRIED = 100;
+
+    private static final int RELAY_BUFFER_SIZE = 16384;
+
+    private static final ConcurrentMap<String, Listener> listeners = new ConcurrentHashMap<String, Listener>();
+
+    private final XvfbLaunch launch;
+
+    private final String cookie;
+
+    private final int displayName;
+
+    private final boolean autoDisplayName;
+
+    private final Started started;
+
+    /**
+     * @param launch starts Xvfb once a client connects, Xvfb needs to be started with <code>-displayfd</code>
+     * @param displayName display to reserve
+     * @param autoDisplayName if the display is taken try the ones after it
+     * @param started told once Xvfb started
+     */
+    XvfbLazyLaunch(final XvfbLaunch launch, final String cookie, final int displayName, final boolean autoDisplayName, final Started started) {
+        this.launch = launch;
+        this.cookie = cookie;
+        this.displayName = displayName;
+        this.autoDisplayName = autoDisplayName;
+        this.started = started;
+    }
+
+    @Override
+    public Integer invoke(final File workspace, final VirtualChannel channel) throws IOException {
+        final int tries = autoDisplayName ? MAX_DISPLAYS_TRIED : 1;
+
+        IOException taken = null;
+        for (int display = Math.max(0, displayName); display < Math.max(0, displayName) + tries; display++) {
+            final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), X_TCP_PORT + display));
+            } catch (final IOException e) {
+                serverChannel.close();
+                taken = e;
+                continue;
+            }
+
+            final Listener listener = new Listener(serverChannel, launch, workspace, display, started);
+            listeners.put(cookie, listener);
+            listener.start();
+
+            return display;
+        }
+
+        throw new IOException("Unable to reserve display :" + displayName + ", the display is taken", taken);
+    }
+}
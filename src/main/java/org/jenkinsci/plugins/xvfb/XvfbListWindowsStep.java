@@ -0,0 +1,128 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Pipeline step listing the window tree of the Xvfb display in <code>DISPLAY</code>, read over the X11 protocol instead of forking
+ * <code>xwininfo</code>. Prints the tree to the build log and returns the windows as a list of maps, parents before their children.
+ */
+public class XvfbListWindowsStep extends Step {
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.XvfbListWindowsStep_DisplayName();
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "listWindows";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<Class<?>>(Arrays.<Class<?>> asList(Run.class, TaskListener.class, EnvVars.class, Launcher.class, Computer.class));
+        }
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<List<Map<String, Object>>> {
+
+        private static final long serialVersionUID = 1L;
+
+        Execution(final StepContext context) {
+            super(context);
+        }
+
+        @Override
+        protected List<Map<String, Object>> run() throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final TaskListener listener = getContext().get(TaskListener.class);
+            final String display = getContext().get(EnvVars.class).get("DISPLAY");
+
+            final XvfbEnvironment xvfbEnvironment = XvfbWaitForDisplayStep.environmentOf(run, getContext().get(Computer.class).getName(), display);
+            if (xvfbEnvironment == null) {
+                throw new AbortException(Messages.XvfbListWindowsStep_NoDisplay(display));
+            }
+
+            final VirtualChannel channel = getContext().get(Launcher.class).getChannel();
+
+            final XvfbLaunch.Result result = Xvfb.awaitReady(run, xvfbEnvironment, channel, false);
+            if (result != null && !result.alive) {
+                Xvfb.reportFailedStart(run, xvfbEnvironment.computerName, result, listener);
+
+                throw new AbortException(Messages.XvfbBuildWrapper_FailedToStart());
+            }
+
+            final List<XvfbWindows.Window> windows = channel.call(new XvfbWindows.Inventory(xvfbEnvironment.displayName, xvfbEnvironment.lazy));
+
+            listener.getLogger().println(Messages.XvfbListWindowsStep_Windows(windows.size(), display));
+            final List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>(windows.size());
+            for (final XvfbWindows.Window window : windows) {
+                listener.getLogger().println(window);
+                maps.add(window.toMap());
+            }
+
+            return maps;
+        }
+    }
+
+    @DataBoundConstructor
+    public XvfbListWindowsStep() {
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        return new Execution(context);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.AtmostOneThreadExecutor;
+
+/**
+ * Receives notifications about the lifecycle of Xvfb displays started for builds. Notifications are delivered in order, on a thread of their own,
+ * so listeners never delay starting or stopping Xvfb. Listeners are registered by annotating the implementation with {@link hudson.Extension}.
+ */
+public abstract class XvfbListener implements ExtensionPoint {
+
+    private interface Notification {
+        void notify(XvfbListener listener);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(XvfbListener.class.getName());
+
+    private static final ExecutorService dispatcher = new AtmostOneThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "Xvfb listener dispatcher"));
+
+    public static ExtensionList<XvfbListener> all() {
+        return ExtensionList.lookup(XvfbListener.class);
+    }
+
+    private static void fire(final Notification notification) {
+        if (all().isEmpty()) {
+            return;
+        }
+
+        dispatcher.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (final XvfbListener listener : all()) {
+                    try {
+                        notification.notify(listener);
+                    } catch (final RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Xvfb listener " + listener + " failed", e);
+                    }
+                }
+            }
+        });
+    }
+
+    static void fireAllocated(final Run<?, ?> run, final String computerName, final int displayName) {
+        fire(new Notification() {
+            @Override
+            public void notify(final XvfbListener listener) {
+                listener.onAllocated(run, computerName, displayName);
+            }
+        });
+    }
+
+    static void fireCrashed(final Run<?, ?> run, final String computerName, final int displayName, final String output) {
+        fire(new Notification() {
+            @Override
+            public void notify(final XvfbListener listener) {
+                listener.onCrashed(run, computerName, displayName, output);
+            }
+        });
+    }
+
+    static void fireReady(final Run<?, ?> run, final XvfbEnvironment environment) {
+        fire(new Notification() {
+            @Override
+            public void notify(final XvfbListener listener) {
+                listener.onReady(run, environment);
+            }
+        });
+    }
+
+    static void fireTeardown(final Run<?, ?> run, final XvfbEnvironment environment) {
+        fire(new Notification() {
+            @Override
+            public void notify(final XvfbListener listener) {
+                listener.onTeardown(run, environment);
+            }
+        });
+    }
+
+    static void fireZombie(final String computerName, final XvfbEnvironment zombie) {
+        fire(new Notification() {
+            @Override
+            public void notify(final XvfbListener listener) {
+                listener.onZombie(computerName, zombie);
+            }
+        });
+    }
+
+    /**
+     * A build got its turn to start Xvfb on the node.
+     *
+     * @param displayName display number Xvfb will be started on, or -1 if Xvfb chooses it
+     */
+    public void onAllocated(final Run<?, ?> run, final String computerName, final int displayName) {
+    }
+
+    /**
+     * Xvfb exited while it was starting.
+     *
+     * @param output what Xvfb wrote to its standard output and error, empty if it was logged to the build log
+     */
+    public void onCrashed(final Run<?, ?> run, final String computerName, final int displayName, final String output) {
+    }
+
+    /**
+     * Xvfb was started and the build can use it, startup timings are in {@link XvfbEnvironment#timings}. Xvfb started in the background is ready
+     * once it was waited for, and Xvfb started lazily once it started for its first client.
+     */
+    public void onReady(final Run<?, ?> run, final XvfbEnvironment environment) {
+    }
+
+    /** Xvfb was shut down, teardown timing and resources used, if sampled, are in the environment. */
+    public void onTeardown(final Run<?, ?> run, final XvfbEnvironment environment) {
+    }
+
+    /** Xvfb could not be shut down because the node disconnected, it will be killed when the node reconnects. */
+    public void onZombie(final String computerName, final XvfbEnvironment zombie) {
+    }
+}
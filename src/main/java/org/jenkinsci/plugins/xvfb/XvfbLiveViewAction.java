@@ -0,0 +1,267 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.Jenkins;
+import jenkins.model.TransientActionFactory;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Live view of the Xvfb screen of a running build. The screen is read on the node only while someone is looking at it, at most once per
+ * <code>org.jenkinsci.plugins.xvfb.XvfbLiveViewAction.frameMillis</code> milliseconds however many are looking, and only the tiles that changed
+ * since the last read are sent over the channel and on to the browser.
+ */
+public class XvfbLiveViewAction implements Action {
+
+    @Extension
+    public static class Factory extends TransientActionFactory<Run> {
+
+        @Override
+        public Collection<? extends Action> createFor(final Run target) {
+            final XvfbEnvironment environment = target.getAction(XvfbEnvironment.class);
+            if (environment == null || environment.computerName == null || environment.frameBufferDir == null) {
+                return Collections.emptySet();
+            }
+
+            if (environment.profile != null && !environment.profile.keepsScreenFile()) {
+                // nothing to show without the screen file
+                return Collections.emptySet();
+            }
+
+            return Collections.singleton(new XvfbLiveViewAction(target, environment));
+        }
+
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+    }
+
+    /** Forgets the screen when the display goes away. */
+    @Extension
+    public static class Forget extends XvfbListener {
+
+        @Override
+        public void onTeardown(final Run<?, ?> run, final XvfbEnvironment environment) {
+            screens.remove(environment.cookie);
+        }
+    }
+
+    /** Last read of a screen, shared by everyone looking at it. Each tile carries the number of the read that changed it. */
+    static final class Screen {
+
+        private int width;
+
+        private int height;
+
+        private int[] hashes = new int[0];
+
+        private long[] changedAt = new long[0];
+
+        private byte[][] tiles = new byte[0][];
+
+        private long sequence;
+
+        private long readAt;
+
+        synchronized void apply(final XvfbScreen.Frame frame) {
+            sequence++;
+
+            if (frame.width != width || frame.height != height || frame.hashes.length != hashes.length) {
+                width = frame.width;
+                height = frame.height;
+                changedAt = new long[frame.hashes.length];
+                tiles = new byte[frame.hashes.length][];
+            }
+
+            hashes = frame.hashes;
+            for (final XvfbScreen.Tile tile : frame.tiles) {
+                tiles[tile.index] = tile.png;
+                changedAt[tile.index] = sequence;
+            }
+        }
+
+        /** Tiles changed after the given read, as JSON. */
+        synchronized JSONObject since(final long since) {
+            final int across = XvfbScreen.tilesAcross(width);
+
+            final JSONArray changed = new JSONArray();
+            for (int i = 0; i < tiles.length; i++) {
+                if (changedAt[i] > since && tiles[i] != null) {
+                    final JSONObject tile = new JSONObject();
+                    tile.put("x", (i % across) * XvfbScreen.TILE_SIZE);
+                    tile.put("y", (i / across) * XvfbScreen.TILE_SIZE);
+                    tile.put("png", Base64.getEncoder().encodeToString(tiles[i]));
+                    changed.add(tile);
+                }
+            }
+
+            final JSONObject json = new JSONObject();
+            json.put("sequence", sequence);
+            json.put("width", width);
+            json.put("height", height);
+            json.put("tiles", changed);
+
+            return json;
+        }
+
+        /** Reads the changed tiles of the screen from the node, unless it was read less than the frame time ago. */
+        void refresh(final FilePath frameBufferDir) throws IOException, InterruptedException {
+            final int[] known;
+            synchronized (this) {
+                final long now = System.currentTimeMillis();
+                if (now - readAt < FRAME_MILLIS) {
+                    return;
+                }
+
+                readAt = now;
+                known = Arrays.copyOf(hashes, hashes.length);
+            }
+
+            apply(frameBufferDir.act(new XvfbScreen(known)));
+        }
+    }
+
+    /** shortest time between two reads of a screen */
+    static final int FRAME_MILLIS = SystemProperties.getInteger(XvfbLiveViewAction.class.getName() + ".frameMillis", 500);
+
+    /** screens being looked at, by cookie of the display */
+    private static final ConcurrentMap<String, Screen> screens = new ConcurrentHashMap<String, Screen>();
+
+    private final Run<?, ?> run;
+
+    private final XvfbEnvironment environment;
+
+    XvfbLiveViewAction(final Run<?, ?> run, final XvfbEnvironment environment) {
+        this.run = run;
+        this.environment = environment;
+    }
+
+    /**
+     * Tiles of the screen that changed after the read numbered <code>since</code>, all of them when <code>since</code> is zero. Responds with
+     * <code>404</code> once the display is gone.
+     */
+    public void doTiles(final StaplerResponse response, @QueryParameter final long since) throws IOException, InterruptedException {
+        run.getParent().checkPermission(Item.WORKSPACE);
+
+        final VirtualChannel channel = channel();
+        if (!isLive() || channel == null) {
+            screens.remove(environment.cookie);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        Screen screen = screens.get(environment.cookie);
+        if (screen == null) {
+            final Screen created = new Screen();
+            screen = screens.putIfAbsent(environment.cookie, created);
+            if (screen == null) {
+                screen = created;
+            }
+        }
+
+        screen.refresh(new FilePath(channel, environment.frameBufferDir));
+
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().print(screen.since(since));
+    }
+
+    private VirtualChannel channel() {
+        final Computer computer = Jenkins.get().getComputer(environment.computerName);
+
+        return computer == null ? null : computer.getChannel();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.XvfbLiveViewAction_DisplayName();
+    }
+
+    /** Used by <code>index.jelly</code>. */
+    public int getFrameMillis() {
+        return FRAME_MILLIS;
+    }
+
+    @Override
+    public String getIconFileName() {
+        if (!isLive() || !run.getParent().hasPermission(Item.WORKSPACE)) {
+            return null;
+        }
+
+        return "computer.png";
+    }
+
+    /** Used by <code>index.jelly</code>. */
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "xvfbScreen";
+    }
+
+    /** Is the display of the build still running. */
+    public boolean isLive() {
+        if (!run.isBuilding()) {
+            return false;
+        }
+
+        for (final XvfbDisplayRegistry.Display display : XvfbDisplayRegistry.activeOn(environment.computerName)) {
+            if (display.cookie.equals(environment.cookie)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
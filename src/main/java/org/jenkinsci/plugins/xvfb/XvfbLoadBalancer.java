@@ -0,0 +1,165 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.LoadBalancer;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Load balancer that places builds using the Xvfb build wrapper on nodes with the most free display slots, and among those on nodes where Xvfb
+ * started the fastest recently. Builds without the wrapper are handed over to the load balancer that was in place before. Disabled by default,
+ * enabled with the <code>org.jenkinsci.plugins.xvfb.XvfbLoadBalancer.enabled</code> system property. Only jobs with the wrapper configured are
+ * recognized, Pipeline builds are queued as <code>node</code> blocks that don't tell whether they wrap steps with Xvfb, so they are handed over.
+ */
+public class XvfbLoadBalancer extends LoadBalancer {
+
+    /**
+     * Display capacity of a candidate node, taken once before sorting. Builds change the statistics of nodes concurrently, comparing live values
+     * could order candidates inconsistently while they are sorted.
+     */
+    static final class Capacity<T> {
+
+        private static final Comparator<Capacity<?>> MOST_FREE_FIRST = new Comparator<Capacity<?>>() {
+            @Override
+            public int compare(final Capacity<?> left, final Capacity<?> right) {
+                final int byFreeDisplays = Integer.compare(right.freeDisplays, left.freeDisplays);
+                if (byFreeDisplays != 0) {
+                    return byFreeDisplays;
+                }
+
+                return Long.compare(left.startupLatency, right.startupLatency);
+            }
+        };
+
+        final T candidate;
+
+        final int freeDisplays;
+
+        final long startupLatency;
+
+        Capacity(final T candidate, final int executors, final XvfbNodeStatistics statistics) {
+            this.candidate = candidate;
+            freeDisplays = executors - statistics.getActiveDisplays();
+            startupLatency = statistics.getStartupLatency();
+        }
+    }
+
+    /** Candidates ordered by their capacity, most free displays first and among those the fastest starting Xvfb first. */
+    static <T> List<T> byCapacity(final List<Capacity<T>> capacities) {
+        final List<Capacity<T>> sorted = new ArrayList<Capacity<T>>(capacities);
+        Collections.sort(sorted, Capacity.MOST_FREE_FIRST);
+
+        final List<T> candidates = new ArrayList<T>(sorted.size());
+        for (final Capacity<T> capacity : sorted) {
+            candidates.add(capacity.candidate);
+        }
+
+        return candidates;
+    }
+
+    static final boolean ENABLED = SystemProperties.getBoolean(XvfbLoadBalancer.class.getName() + ".enabled");
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void install() {
+        if (!ENABLED) {
+            return;
+        }
+
+        final Queue queue = Jenkins.get().getQueue();
+        queue.setLoadBalancer(new XvfbLoadBalancer(queue.getLoadBalancer()));
+    }
+
+    static boolean usesXvfb(final Task task) {
+        if (!(task instanceof BuildableItemWithBuildWrappers)) {
+            return false;
+        }
+
+        return ((BuildableItemWithBuildWrappers) task).getBuildWrappersList().get(Xvfb.class) != null;
+    }
+
+    private final LoadBalancer fallback;
+
+    public XvfbLoadBalancer(final LoadBalancer fallback) {
+        this.fallback = fallback;
+    }
+
+    /** adopted from the greedy assignment in @see hudson.model.LoadBalancer#CONSISTENT_HASH */
+    private boolean assignGreedily(final Mapping mapping, final List<ExecutorChunk> candidates, final int index) {
+        if (mapping.size() == index) {
+            return true;
+        }
+
+        for (final ExecutorChunk candidate : candidates) {
+            mapping.assign(index, candidate);
+            if (mapping.isPartiallyValid() && assignGreedily(mapping, candidates, index + 1)) {
+                return true;
+            }
+        }
+
+        mapping.assign(index, null);
+
+        return false;
+    }
+
+    @Override
+    public Mapping map(final Task task, final MappingWorksheet worksheet) {
+        if (!usesXvfb(task)) {
+            return fallback.map(task, worksheet);
+        }
+
+        final List<Capacity<ExecutorChunk>> capacities = new ArrayList<Capacity<ExecutorChunk>>(worksheet.executors.size());
+        for (final ExecutorChunk chunk : worksheet.executors) {
+            final Computer computer = chunk.computer;
+            capacities.add(new Capacity<ExecutorChunk>(chunk, computer.getNumExecutors(), XvfbNodeStatistics.of(computer.getName())));
+        }
+        final List<ExecutorChunk> candidates = byCapacity(capacities);
+
+        final Mapping mapping = worksheet.new Mapping();
+        if (assignGreedily(mapping, candidates, 0)) {
+            return mapping;
+        }
+
+        return fallback.map(task, worksheet);
+    }
+}
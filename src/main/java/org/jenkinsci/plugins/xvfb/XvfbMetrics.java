@@ -0,0 +1,279 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the Xvfb lifecycle on the controller, rendered in the Prometheus text exposition format by
+ * {@link XvfbMetricsAction}. Updated without locking from build threads.
+ */
+final class XvfbMetrics {
+
+    /** Reasons Xvfb could not be provided to a build. */
+    enum Failure {
+        /** Xvfb process exited during startup */
+        FAILED_TO_START,
+        /** no Xvfb installation is configured */
+        NO_INSTALLATION,
+        /** additional options are not supported by the installation */
+        UNSUPPORTED_OPTION,
+        /** the installation can't choose the display name */
+        DISPLAYFD_UNSUPPORTED,
+        /** setting up Xvfb failed with an error */
+        ERROR
+    }
+
+    /** Histogram with fixed buckets, observed in milliseconds and exposed in seconds. */
+    static final class Histogram {
+
+        /** upper bounds of the buckets in milliseconds */
+        private static final long[] BUCKETS = { 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length];
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder sumMillis = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(final long millis) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (millis <= BUCKETS[i]) {
+                    counts[i].increment();
+                    break;
+                }
+            }
+
+            count.increment();
+            sumMillis.add(millis);
+        }
+
+        void write(final StringBuilder out, final String name, final String labelName, final String labelValue) {
+            final String labels = labelName == null ? "" : labelName + "=\"" + escape(labelValue) + "\",";
+
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts[i].sum();
+                out.append(name).append("_bucket{").append(labels).append("le=\"").append(seconds(BUCKETS[i])).append("\"} ").append(cumulative).append('\n');
+            }
+
+            final long total = count.sum();
+            out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(total).append('\n');
+
+            final String plainLabels = labelName == null ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            out.append(name).append("_sum").append(plainLabels).append(' ').append(seconds(sumMillis.sum())).append('\n');
+            out.append(name).append("_count").append(plainLabels).append(' ').append(total).append('\n');
+        }
+    }
+
+    private static final LongAdder starts = new LongAdder();
+
+    private static final ConcurrentMap<Failure, LongAdder> failures = new ConcurrentHashMap<Failure, LongAdder>();
+
+    private static final ConcurrentMap<String, Histogram> startupByNode = new ConcurrentHashMap<String, Histogram>();
+
+    private static final ConcurrentMap<String, Histogram> startupByInstallation = new ConcurrentHashMap<String, Histogram>();
+
+    private static final ConcurrentMap<String, LongAdder> cacheHits = new ConcurrentHashMap<String, LongAdder>();
+
+    private static final ConcurrentMap<String, LongAdder> cacheMisses = new ConcurrentHashMap<String, LongAdder>();
+
+    private static final Histogram teardown = new Histogram();
+
+    private static final LongAdder teardownsInProgress = new LongAdder();
+
+    private static final LongAdder teardownsDeferred = new LongAdder();
+
+    private static final LongAdder zombiesKilled = new LongAdder();
+
+    private static <K> LongAdder adder(final ConcurrentMap<K, LongAdder> adders, final K key) {
+        final LongAdder existing = adders.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final LongAdder created = new LongAdder();
+        final LongAdder raced = adders.putIfAbsent(key, created);
+
+        return raced == null ? created : raced;
+    }
+
+    static void cacheLookup(final String cache, final boolean hit) {
+        adder(hit ? cacheHits : cacheMisses, cache).increment();
+    }
+
+    static void deferredTeardownQueued() {
+        teardownsDeferred.increment();
+    }
+
+    static void deferredTeardownStarted() {
+        teardownsDeferred.decrement();
+    }
+
+    static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static void failed(final Failure failure) {
+        adder(failures, failure).increment();
+    }
+
+    private static Histogram histogram(final ConcurrentMap<String, Histogram> histograms, final String key) {
+        final Histogram existing = histograms.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final Histogram created = new Histogram();
+        final Histogram raced = histograms.putIfAbsent(key, created);
+
+        return raced == null ? created : raced;
+    }
+
+    /** Metrics in the Prometheus text exposition format. */
+    static String render() {
+        final StringBuilder out = new StringBuilder();
+
+        header(out, "xvfb_starts_total", "Xvfb servers started for builds", "counter");
+        out.append("xvfb_starts_total ").append(starts.sum()).append('\n');
+
+        header(out, "xvfb_start_failures_total", "Builds Xvfb could not be started for, by cause", "counter");
+        for (final Failure failure : Failure.values()) {
+            final LongAdder count = failures.get(failure);
+            sample(out, "xvfb_start_failures_total", "cause", failure.name().toLowerCase(Locale.ENGLISH), count == null ? 0 : count.sum());
+        }
+
+        header(out, "xvfb_startup_seconds", "Time taken to start Xvfb, by node", "histogram");
+        for (final Map.Entry<String, Histogram> node : sorted(startupByNode).entrySet()) {
+            node.getValue().write(out, "xvfb_startup_seconds", "node", node.getKey());
+        }
+
+        header(out, "xvfb_installation_startup_seconds", "Time taken to start Xvfb, by installation", "histogram");
+        for (final Map.Entry<String, Histogram> installation : sorted(startupByInstallation).entrySet()) {
+            installation.getValue().write(out, "xvfb_installation_startup_seconds", "installation", installation.getKey());
+        }
+
+        header(out, "xvfb_active_displays", "Displays started by builds and not yet shut down, by node", "gauge");
+        for (final Map.Entry<String, XvfbNodeStatistics> node : sorted(XvfbNodeStatistics.all()).entrySet()) {
+            sample(out, "xvfb_active_displays", "node", node.getKey(), node.getValue().getActiveDisplays());
+        }
+
+        header(out, "xvfb_peak_rss_bytes", "Highest resident memory of any Xvfb server sampled, by node", "gauge");
+        for (final Map.Entry<String, XvfbNodeStatistics> node : sorted(XvfbNodeStatistics.all()).entrySet()) {
+            sample(out, "xvfb_peak_rss_bytes", "node", node.getKey(), node.getValue().getPeakRssKb() * 1024);
+        }
+
+        header(out, "xvfb_cpu_seconds_total", "CPU time used by sampled Xvfb servers, by node", "counter");
+        for (final Map.Entry<String, XvfbNodeStatistics> node : sorted(XvfbNodeStatistics.all()).entrySet()) {
+            out.append("xvfb_cpu_seconds_total{node=\"").append(escape(node.getKey())).append("\"} ").append(seconds(node.getValue().getCpuMillis())).append('\n');
+        }
+
+        header(out, "xvfb_start_queue", "Builds waiting for their turn to start Xvfb, by node", "gauge");
+        for (final Map.Entry<String, XvfbStartThrottle> node : sorted(XvfbStartThrottle.all()).entrySet()) {
+            sample(out, "xvfb_start_queue", "node", node.getKey(), node.getValue().getWaiting());
+        }
+
+        header(out, "xvfb_cache_hits_total", "Lookups answered from controller side caches, by cache", "counter");
+        for (final Map.Entry<String, LongAdder> cache : sorted(cacheHits).entrySet()) {
+            sample(out, "xvfb_cache_hits_total", "cache", cache.getKey(), cache.getValue().sum());
+        }
+
+        header(out, "xvfb_cache_misses_total", "Lookups that needed to consult the node, by cache", "counter");
+        for (final Map.Entry<String, LongAdder> cache : sorted(cacheMisses).entrySet()) {
+            sample(out, "xvfb_cache_misses_total", "cache", cache.getKey(), cache.getValue().sum());
+        }
+
+        header(out, "xvfb_teardown_seconds", "Time taken to shut down Xvfb and remove its frame buffer directory", "histogram");
+        teardown.write(out, "xvfb_teardown_seconds", null, null);
+
+        header(out, "xvfb_teardowns_in_progress", "Xvfb shutdowns in progress", "gauge");
+        out.append("xvfb_teardowns_in_progress ").append(teardownsInProgress.sum()).append('\n');
+
+        header(out, "xvfb_teardowns_deferred", "Xvfb servers waiting for their build to complete to be shut down", "gauge");
+        out.append("xvfb_teardowns_deferred ").append(teardownsDeferred.sum()).append('\n');
+
+        header(out, "xvfb_zombies", "Xvfb servers left on disconnected nodes, to be killed when the node reconnects", "gauge");
+        out.append("xvfb_zombies ").append(Xvfb.countZombies()).append('\n');
+
+        header(out, "xvfb_zombies_killed_total", "Xvfb servers left on disconnected nodes killed on reconnect", "counter");
+        out.append("xvfb_zombies_killed_total ").append(zombiesKilled.sum()).append('\n');
+
+        return out.toString();
+    }
+
+    private static void header(final StringBuilder out, final String name, final String help, final String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder out, final String name, final String labelName, final String labelValue, final long value) {
+        out.append(name).append('{').append(labelName).append("=\"").append(escape(labelValue)).append("\"} ").append(value).append('\n');
+    }
+
+    static String seconds(final long millis) {
+        return String.valueOf(millis / 1000.0);
+    }
+
+    private static <V> Map<String, V> sorted(final Map<String, V> values) {
+        return new TreeMap<String, V>(values);
+    }
+
+    static void started(final String computerName, final String installationName, final long startupMillis) {
+        starts.increment();
+        histogram(startupByNode, computerName).observe(startupMillis);
+        histogram(startupByInstallation, installationName).observe(startupMillis);
+    }
+
+    static void teardownFinished(final long teardownMillis) {
+        teardownsInProgress.decrement();
+        teardown.observe(teardownMillis);
+    }
+
+    static void teardownStarted() {
+        teardownsInProgress.increment();
+    }
+
+    static void zombieKilled() {
+        zombiesKilled.increment();
+    }
+
+    private XvfbMetrics() {
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Warms up Xvfb on each node as it comes online: each Xvfb installation is run once, so that the X server compiles the default keymap into its
+ * own keymap output directory and its executable and font files are read from disk before the first build needs them. Xvfb has no option to
+ * be given compiled keymaps or font caches from elsewhere, so servers started later are started as usual. A stamp in the per node directory
+ * records the executable that was warmed up, so that it is run again only when the executable changes. Disabled by default, enabled with the
+ * <code>org.jenkinsci.plugins.xvfb.XvfbNodeCache.enabled</code> system property.
+ */
+@Extension
+public class XvfbNodeCache extends ComputerListener {
+
+    static final class WarmUp extends MasterToSlaveFileCallable<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final long WARM_UP_TIMEOUT_SECONDS = 30;
+
+        private final String executable;
+
+        WarmUp(final String executable) {
+            this.executable = executable;
+        }
+
+        /** Runs Xvfb unless the executable was warmed up already, returns if it was run. */
+        @Override
+        public Boolean invoke(final File cacheDir, final VirtualChannel channel) throws IOException, InterruptedException {
+            final File resolved = XvfbExecutable.resolve(executable);
+            final String fingerprint = XvfbExecutable.fingerprintOf(resolved);
+
+            final File stamp = new File(cacheDir, "stamp");
+            if (stamp.isFile() && fingerprint.equals(new String(Files.readAllBytes(stamp.toPath()), StandardCharsets.UTF_8).trim())) {
+                return false;
+            }
+
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                throw new IOException("Unable to create Xvfb cache directory " + cacheDir);
+            }
+
+            // font paths stored by earlier versions are not given to servers anymore
+            Files.deleteIfExists(new File(cacheDir, "fonts.path").toPath());
+            Files.deleteIfExists(new File(cacheDir, "font-path").toPath());
+
+            warmUp(resolved);
+            Files.write(stamp.toPath(), fingerprint.getBytes(StandardCharsets.UTF_8));
+
+            return true;
+        }
+
+        /** Starts Xvfb on a display of its choosing and stops it as soon as it accepts connections, by then keymaps have been compiled. */
+        private void warmUp(final File resolved) throws IOException, InterruptedException {
+            final Process process = new ProcessBuilder(Arrays.asList(resolved.getPath(), "-displayfd", "1", "-nolisten", "tcp"))
+                    .redirectError(new File("/dev/null")).start();
+            final Thread watchdog = new Thread("Xvfb cache warm up watchdog") {
+                @Override
+                public void run() {
+                    try {
+                        if (!process.waitFor(WARM_UP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                            process.destroy();
+                        }
+                    } catch (final InterruptedException e) {
+                        process.destroy();
+                    }
+                }
+            };
+            watchdog.setDaemon(true);
+            watchdog.start();
+
+            try {
+                // the display number is written once the server is ready
+                new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            } finally {
+                process.destroy();
+                process.waitFor();
+                watchdog.interrupt();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(XvfbNodeCache.class.getName());
+
+    static final boolean ENABLED = SystemProperties.getBoolean(XvfbNodeCache.class.getName() + ".enabled");
+
+    /** Warms up Xvfb on all online nodes, used when installations are reconfigured. */
+    static void warmAll() {
+        if (!ENABLED) {
+            return;
+        }
+
+        final XvfbNodeCache cache = ComputerListener.all().get(XvfbNodeCache.class);
+        if (cache == null) {
+            return;
+        }
+
+        for (final Computer computer : Jenkins.get().getComputers()) {
+            if (computer.isOnline()) {
+                cache.warmLater(computer);
+            }
+        }
+    }
+
+    /** Warms up Xvfb on the computer again, used when its Xvfb executable changed. */
+    static void refresh(final String computerName) {
+        if (!ENABLED) {
+            return;
+        }
+
+        final XvfbNodeCache cache = ComputerListener.all().get(XvfbNodeCache.class);
+        final Computer computer = Jenkins.get().getComputer(computerName);
+        if (cache != null && computer != null && computer.isOnline()) {
+            cache.warmLater(computer);
+        }
+    }
+
+    @Override
+    public void onOnline(final Computer c, final TaskListener listener) throws IOException, InterruptedException {
+        if (!ENABLED) {
+            return;
+        }
+
+        warmLater(c);
+    }
+
+    /** Warms up Xvfb on the computer in the background, problems are logged as the listener may be gone by then. */
+    private void warmLater(final Computer c) {
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warm(c);
+                } catch (final IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to warm up Xvfb cache on " + c.getName(), e);
+                } catch (final InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Interrupted while warming up Xvfb cache on " + c.getName(), e);
+                }
+            }
+        });
+    }
+
+    private void warm(final Computer computer) throws IOException, InterruptedException {
+        final Node node = computer.getNode();
+        if (node == null || Boolean.FALSE.equals(computer.isUnix())) {
+            return;
+        }
+
+        final FilePath rootPath = node.getRootPath();
+        if (rootPath == null) {
+            return;
+        }
+
+        final EnvVars environment = computer.getEnvironment();
+        final XvfbInstallation[] installations = Jenkins.get().getDescriptorByType(Xvfb.XvfbBuildWrapperDescriptor.class).getInstallations();
+
+        for (final XvfbInstallation installation : installations) {
+            final XvfbInstallation translated = installation.forEnvironment(environment).forNode(node, TaskListener.NULL);
+
+            final FilePath cacheDir = rootPath.child("xvfb-cache").child(Util.getDigestOf(installation.getName()));
+
+            if (cacheDir.act(new WarmUp(XvfbExecutable.pathOf(translated)))) {
+                LOGGER.log(Level.FINE, "Warmed up Xvfb installation {0} on {1}", new Object[] { installation.getName(), computer.getName() });
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Controller side bookkeeping of Xvfb displays per node, used to steer builds towards nodes with free display capacity. */
+final class XvfbNodeStatistics {
+
+    /** Weight of the latest sample in the exponentially weighted moving average of startup latency, in percent. */
+    private static final long LATENCY_SAMPLE_WEIGHT = 25;
+
+    private static final ConcurrentMap<String, XvfbNodeStatistics> statistics = new ConcurrentHashMap<String, XvfbNodeStatistics>();
+
+    /** Statistics of all nodes Xvfb was started on, by computer name. */
+    static Map<String, XvfbNodeStatistics> all() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    static XvfbNodeStatistics of(final String computerName) {
+        final XvfbNodeStatistics existing = statistics.get(computerName);
+        if (existing != null) {
+            return existing;
+        }
+
+        final XvfbNodeStatistics created = new XvfbNodeStatistics();
+        final XvfbNodeStatistics raced = statistics.putIfAbsent(computerName, created);
+
+        return raced == null ? created : raced;
+    }
+
+    /** Forgets the processors of the node, they are probed again the next time a display is started there. */
+    static void forgetProcessors(final String computerName) {
+        final XvfbNodeStatistics existing = statistics.get(computerName);
+        if (existing != null) {
+            existing.processorsProbed(0);
+        }
+    }
+
+    private final AtomicInteger activeDisplays = new AtomicInteger();
+
+    private final AtomicLong startupLatency = new AtomicLong(-1);
+
+    private final AtomicLong startQueueWaitMillis = new AtomicLong();
+
+    private final AtomicLong remoteCalls = new AtomicLong();
+
+    private final AtomicLong peakRssKb = new AtomicLong();
+
+    private final AtomicLong cpuMillis = new AtomicLong();
+
+    private volatile int processors;
+
+    private XvfbNodeStatistics() {
+    }
+
+    void displayStarted(final long startupMillis) {
+        activeDisplays.incrementAndGet();
+
+        long current;
+        long updated;
+        do {
+            current = startupLatency.get();
+            updated = current < 0 ? startupMillis : (startupMillis * LATENCY_SAMPLE_WEIGHT + current * (100 - LATENCY_SAMPLE_WEIGHT)) / 100;
+        } while (!startupLatency.compareAndSet(current, updated));
+    }
+
+    void displayStopped() {
+        int current;
+        do {
+            current = activeDisplays.get();
+            if (current == 0) {
+                return;
+            }
+        } while (!activeDisplays.compareAndSet(current, current - 1));
+    }
+
+    void resourcesSampled(final XvfbResources resources) {
+        cpuMillis.addAndGet(resources.getCpuMillis());
+
+        long current;
+        do {
+            current = peakRssKb.get();
+        } while (current < resources.getPeakRssKb() && !peakRssKb.compareAndSet(current, resources.getPeakRssKb()));
+    }
+
+    /** Total CPU time used by sampled Xvfb servers on the node. */
+    long getCpuMillis() {
+        return cpuMillis.get();
+    }
+
+    /** Highest resident memory of any sampled Xvfb server on the node, in kB. */
+    long getPeakRssKb() {
+        return peakRssKb.get();
+    }
+
+    /** Number of processors of the node, or 0 if not probed yet. */
+    int getProcessors() {
+        return processors;
+    }
+
+    void processorsProbed(final int processors) {
+        this.processors = processors;
+    }
+
+    void remoteCallsMade(final int calls) {
+        remoteCalls.addAndGet(calls);
+    }
+
+    /** Total number of remote calls made to the node to start Xvfb there. */
+    long getRemoteCalls() {
+        return remoteCalls.get();
+    }
+
+    void startQueued(final long queuedMillis) {
+        startQueueWaitMillis.addAndGet(queuedMillis);
+    }
+
+    /** Total time in milliseconds builds waited for their turn to start Xvfb on the node. */
+    long getStartQueueWaitMillis() {
+        return startQueueWaitMillis.get();
+    }
+
+    /** Number of displays started by builds on the node and not yet shut down. */
+    int getActiveDisplays() {
+        return activeDisplays.get();
+    }
+
+    /** Moving average of Xvfb startup time on the node in milliseconds, or 0 if no Xvfb was started there yet. */
+    long getStartupLatency() {
+        return Math.max(0, startupLatency.get());
+    }
+}
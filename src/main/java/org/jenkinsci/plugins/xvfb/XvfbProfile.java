@@ -0,0 +1,136 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.jvnet.localizer.Localizable;
+
+/**
+ * Named sets of Xvfb options tuned for a kind of use, added before the additional options so that those take precedence. Options the
+ * installation is known not to support are left out.
+ */
+enum XvfbProfile {
+    /** options as given, Xvfb defaults otherwise */
+    DEFAULT(Messages._XvfbProfile_Default(), true, Collections.<String> emptyList(), Collections.<String> emptyList(), Collections.<String> emptyList()),
+
+    /** fewer screen updates, clients and extensions, and no screen file, for tests that don't look at the screen */
+    LEAN(Messages._XvfbProfile_Lean(), false, Arrays.asList("-fakescreenfps", "1", "-maxclients", "64"), Collections.<String> emptyList(),
+            Arrays.asList("GLX", "Composite", "DOUBLE-BUFFER", "RECORD", "XVideo", "XVideo-MotionCompensation", "X-Resource")),
+
+    /** GLX for WebGL and other software rendered OpenGL */
+    GL(Messages._XvfbProfile_Gl(), true, Collections.<String> emptyList(), Arrays.asList("GLX"), Collections.<String> emptyList());
+
+    /** The profile of the name, {@link #DEFAULT} if none is given. */
+    static XvfbProfile of(final String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return DEFAULT;
+        }
+
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException(Messages.XvfbProfile_Unknown(name, Arrays.toString(values())), e);
+        }
+    }
+
+    private final Localizable displayName;
+
+    private final boolean screenFile;
+
+    private final List<String> options;
+
+    private final List<String> enabledExtensions;
+
+    private final List<String> disabledExtensions;
+
+    XvfbProfile(final Localizable displayName, final boolean screenFile, final List<String> options, final List<String> enabledExtensions,
+            final List<String> disabledExtensions) {
+        this.displayName = displayName;
+        this.screenFile = screenFile;
+        this.options = options;
+        this.enabledExtensions = enabledExtensions;
+        this.disabledExtensions = disabledExtensions;
+    }
+
+    private static boolean knows(final XvfbCapabilities capabilities, final String extension) {
+        if (capabilities == null || !capabilities.isKnown()) {
+            return true;
+        }
+
+        for (final String known : capabilities.getExtensions()) {
+            if (known.equalsIgnoreCase(extension)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    String getDisplayName() {
+        return displayName.toString();
+    }
+
+    /** Should Xvfb keep the screen in a file in the frame buffer directory, needed to look at the screen while it runs. */
+    boolean keepsScreenFile() {
+        return screenFile;
+    }
+
+    /** Options of the profile the installation supports, <code>capabilities</code> are <code>null</code> if not known. */
+    List<String> options(final XvfbCapabilities capabilities) {
+        final List<String> supported = new ArrayList<String>();
+
+        for (int i = 0; i < options.size(); i += 2) {
+            if (capabilities == null || capabilities.supports(options.get(i))) {
+                supported.add(options.get(i));
+                supported.add(options.get(i + 1));
+            }
+        }
+
+        for (final String extension : enabledExtensions) {
+            if (knows(capabilities, extension)) {
+                supported.add("+extension");
+                supported.add(extension);
+            }
+        }
+
+        for (final String extension : disabledExtensions) {
+            if (knows(capabilities, extension)) {
+                supported.add("-extension");
+                supported.add(extension);
+            }
+        }
+
+        return supported;
+    }
+}
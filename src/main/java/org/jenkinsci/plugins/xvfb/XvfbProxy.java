@@ -0,0 +1,714 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Display on the node relaying X11 clients to Xvfb and counting what they ask for. Claims a display of its own with a lock file like X servers
+ * do, listens on its TCP port on the loopback interface and connects each client to Xvfb. Both directions are pumped through direct buffers as they are read, only the first bytes of each
+ * message are looked at to count requests and their bytes by opcode, and to time the round trips of requests that have replies. A round trip is
+ * blocking when the client sent nothing else while waiting for the reply, like <code>XSync</code> or the getters of Xlib do.
+ */
+final class XvfbProxy extends Thread {
+
+    /** Starts the proxy of a display on the node, returns the display the proxy listens on. */
+    static final class Start extends MasterToSlaveCallable<Integer, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        private final int displayName;
+
+        private final boolean tcp;
+
+        private final int firstDisplay;
+
+        /**
+         * @param tcp connect to the display over TCP on the loopback interface instead of its Unix domain socket
+         * @param firstDisplay first display the proxy tries to listen on, the ones after it are tried if taken
+         */
+        Start(final String cookie, final int displayName, final boolean tcp, final int firstDisplay) {
+            this.cookie = cookie;
+            this.displayName = displayName;
+            this.tcp = tcp;
+            this.firstDisplay = firstDisplay;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            IOException taken = null;
+            for (int display = firstDisplay; display < firstDisplay + MAX_DISPLAYS_TRIED; display++) {
+                final File lockFile;
+                try {
+                    lockFile = lock(display);
+                } catch (final IOException e) {
+                    taken = e;
+                    continue;
+                }
+                if (lockFile == null) {
+                    continue;
+                }
+
+                final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                try {
+                    serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), XvfbLazyLaunch.X_TCP_PORT + display));
+                } catch (final IOException e) {
+                    serverChannel.close();
+                    Files.deleteIfExists(lockFile.toPath());
+                    taken = e;
+                    continue;
+                }
+
+                final XvfbProxy proxy = new XvfbProxy(serverChannel, lockFile, display, displayName, tcp);
+                proxies.put(cookie, proxy);
+                proxy.start();
+
+                return display;
+            }
+
+            throw new IOException("Unable to find a free display for the X11 proxy from :" + firstDisplay, taken);
+        }
+    }
+
+    /** Stops the proxy started with the cookie, disconnecting its clients, returns what they asked for or <code>null</code> if not running. */
+    static final class Stop extends MasterToSlaveCallable<XvfbProxyReport, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Stop(final String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public XvfbProxyReport call() throws IOException {
+            final XvfbProxy proxy = proxies.remove(cookie);
+            if (proxy == null) {
+                return null;
+            }
+
+            proxy.close();
+            try {
+                proxy.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return proxy.report();
+        }
+    }
+
+    /** Counts of one client connection, each kept by the thread pumping the direction it is about. */
+    static final class Stats {
+
+        /** Class of the windows of the client, <code>null</code> until it sets one. */
+        volatile String name;
+
+        long requests;
+
+        long requestBytes;
+
+        /** Count and bytes by request kind, the opcode of core requests and the major and minor opcode of extension requests. */
+        final Map<Integer, long[]> requestsByKind = new HashMap<Integer, long[]>();
+
+        long replies;
+
+        long replyBytes;
+
+        long events;
+
+        long eventBytes;
+
+        long errors;
+
+        long roundTrips;
+
+        long roundTripNanos;
+
+        long maxRoundTripNanos;
+
+        long blockingReplies;
+
+        long blockingNanos;
+
+        /** Count and time of blocking round trips by request kind. */
+        final Map<Integer, long[]> blockingByKind = new HashMap<Integer, long[]>();
+
+        void request(final int kind, final long length) {
+            requests++;
+            requestBytes += length;
+
+            long[] counts = requestsByKind.get(kind);
+            if (counts == null) {
+                counts = new long[2];
+                requestsByKind.put(kind, counts);
+            }
+            counts[0]++;
+            counts[1] += length;
+        }
+
+        void roundTrip(final int kind, final long nanos, final boolean blocking) {
+            roundTrips++;
+            roundTripNanos += nanos;
+            maxRoundTripNanos = Math.max(maxRoundTripNanos, nanos);
+
+            if (!blocking) {
+                return;
+            }
+
+            blockingReplies++;
+            blockingNanos += nanos;
+
+            long[] counts = blockingByKind.get(kind);
+            if (counts == null) {
+                counts = new long[2];
+                blockingByKind.put(kind, counts);
+            }
+            counts[0]++;
+            counts[1] += nanos;
+        }
+    }
+
+    /**
+     * Splits one direction of a connection into messages. The bytes telling the length of a message and a few more are collected, the rest is
+     * skipped over where it lies in the buffer.
+     */
+    abstract static class Framing {
+
+        final byte[] head;
+
+        /** Was the connection setup seen, the first message in each direction. */
+        boolean setUp;
+
+        private int headFill;
+
+        private long length = -1;
+
+        private long remaining;
+
+        Framing(final int headSize) {
+            head = new byte[headSize];
+        }
+
+        /** Length of the message starting with the bytes collected so far, <code>-1</code> if more bytes are needed to tell. */
+        abstract long lengthOf(int fill);
+
+        abstract void onMessage(int fill, long messageLength, long now);
+
+        abstract boolean isBigEndian();
+
+        final int card16(final int offset) {
+            final int first = head[offset] & 0xff;
+            final int second = head[offset + 1] & 0xff;
+
+            return isBigEndian() ? first << 8 | second : second << 8 | first;
+        }
+
+        final long card32(final int offset) {
+            final long low = card16(isBigEndian() ? offset + 2 : offset);
+            final long high = card16(isBigEndian() ? offset : offset + 2);
+
+            return high << 16 | low;
+        }
+
+        /** Looks at the bytes between the position and the limit of the buffer, leaving the buffer as it is. */
+        final void scan(final ByteBuffer buffer, final long now) {
+            int position = buffer.position();
+            final int limit = buffer.limit();
+
+            while (position < limit) {
+                if (length < 0) {
+                    head[headFill++] = buffer.get(position++);
+                    length = lengthOf(headFill);
+                    if (length >= 0) {
+                        length = Math.max(length, headFill);
+                        remaining = length - headFill;
+                    }
+                } else if (headFill < head.length && remaining > 0) {
+                    head[headFill++] = buffer.get(position++);
+                    remaining--;
+                } else {
+                    final int skipped = (int) Math.min(remaining, limit - position);
+                    position += skipped;
+                    remaining -= skipped;
+                }
+
+                if (length >= 0 && remaining == 0) {
+                    onMessage(headFill, length, now);
+                    headFill = 0;
+                    length = -1;
+                }
+            }
+        }
+    }
+
+    /** A client relayed to Xvfb. */
+    final class Connection {
+
+        /** Requests from the client, timing the ones with replies. */
+        final class Requests extends Framing {
+
+            private int sequence;
+
+            Requests() {
+                super(REQUEST_HEAD_SIZE);
+            }
+
+            @Override
+            boolean isBigEndian() {
+                return bigEndian;
+            }
+
+            @Override
+            long lengthOf(final int fill) {
+                if (!setUp) {
+                    if (fill < 12) {
+                        return -1;
+                    }
+
+                    bigEndian = head[0] == 'B';
+                    final int authorizationName = card16(6);
+                    final int authorizationData = card16(8);
+
+                    return 12 + authorizationName + XvfbX11.pad(authorizationName) + authorizationData + XvfbX11.pad(authorizationData);
+                }
+
+                if (fill < 4) {
+                    return -1;
+                }
+
+                final int length = card16(2);
+                if (length != 0) {
+                    return 4L * length;
+                }
+
+                // BIG-REQUESTS, the length follows the header
+                return fill < 8 ? -1 : 4 * card32(4);
+            }
+
+            @Override
+            void onMessage(final int fill, final long messageLength, final long now) {
+                if (!setUp) {
+                    setUp = true;
+                    return;
+                }
+
+                final int opcode = head[0] & 0xff;
+                final int kind = opcode < FIRST_EXTENSION_OPCODE ? opcode : opcode << 8 | head[1] & 0xff;
+                sequence = sequence + 1 & 0xffff;
+                stats.request(kind, messageLength);
+
+                final int slot = sequence & RING_MASK;
+                sentAt[slot] = now;
+                sentKind[slot] = kind;
+                sentSequence[slot] = sequence;
+
+                if (opcode == QUERY_EXTENSION && fill >= 8) {
+                    final int nameLength = card16(4);
+                    if (8 + nameLength <= fill) {
+                        queriedExtensions.put(sequence, new String(head, 8, nameLength, StandardCharsets.ISO_8859_1));
+                    }
+                } else if (opcode == CHANGE_PROPERTY && fill > 24 && card32(8) == WM_CLASS && head[16] == 8) {
+                    // instance and class names, the class names the client
+                    final String[] names = new String(head, 24, (int) Math.min(fill - 24, card32(20)), StandardCharsets.ISO_8859_1).split("\u0000");
+                    stats.name = names[names.length > 1 ? 1 : 0];
+                }
+
+                // published last, the reply pump reads it before the slot
+                lastSequence = sequence;
+            }
+        }
+
+        /** Replies, events and errors from Xvfb. */
+        final class Replies extends Framing {
+
+            Replies() {
+                super(REPLY_HEAD_SIZE);
+            }
+
+            @Override
+            boolean isBigEndian() {
+                return bigEndian;
+            }
+
+            @Override
+            long lengthOf(final int fill) {
+                if (fill < 8) {
+                    return -1;
+                }
+
+                if (!setUp) {
+                    return 8 + 4L * card16(6);
+                }
+
+                final int type = head[0] & 0x7f;
+
+                return type == REPLY || type == GENERIC_EVENT ? 32 + 4 * card32(4) : 32;
+            }
+
+            @Override
+            void onMessage(final int fill, final long messageLength, final long now) {
+                if (!setUp) {
+                    setUp = true;
+                    return;
+                }
+
+                final int type = head[0] & 0x7f;
+                if (type == ERROR) {
+                    stats.errors++;
+                    return;
+                }
+                if (type != REPLY) {
+                    stats.events++;
+                    stats.eventBytes += messageLength;
+                    return;
+                }
+
+                stats.replies++;
+                stats.replyBytes += messageLength;
+
+                final int sequence = card16(2);
+                final int latest = lastSequence;
+                final int slot = sequence & RING_MASK;
+                if (sentSequence[slot] == sequence) {
+                    // only the first reply is timed, a few requests have more than one
+                    sentSequence[slot] = -1;
+                    stats.roundTrip(sentKind[slot], now - sentAt[slot], latest == sequence);
+                }
+
+                if (!queriedExtensions.isEmpty()) {
+                    final String extension = queriedExtensions.remove(sequence);
+                    if (extension != null && head[8] != 0) {
+                        extensionNames.set(head[9] & 0xff, extension);
+                    }
+                }
+            }
+        }
+
+        private final SocketChannel client;
+
+        private final ByteChannel server;
+
+        final Stats stats = new Stats();
+
+        private final CountDownLatch pumped = new CountDownLatch(2);
+
+        /** Were the counts of the connection added to the report. */
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        /** Byte order of the client, Xvfb answers in the same order. */
+        private volatile boolean bigEndian;
+
+        /** Sequence number of the last request relayed. */
+        private volatile int lastSequence;
+
+        /** When recent requests were relayed, what kind they were and their sequence numbers, by the low bits of the sequence number. */
+        private final long[] sentAt = new long[RING_MASK + 1];
+
+        private final int[] sentKind = new int[RING_MASK + 1];
+
+        private final int[] sentSequence = new int[RING_MASK + 1];
+
+        private final Map<Integer, String> queriedExtensions = new ConcurrentHashMap<Integer, String>();
+
+        Connection(final SocketChannel client, final ByteChannel server) {
+            this.client = client;
+            this.server = server;
+        }
+
+        void close() {
+            closeQuietly(client);
+            closeQuietly(server);
+        }
+
+        private void closeQuietly(final Channel channel) {
+            try {
+                channel.close();
+            } catch (final IOException ignore) {
+                // closing anyway
+            }
+        }
+
+        private void pump(final String direction, final ReadableByteChannel from, final WritableByteChannel to,
+                final Framing framing) {
+            final Thread pump = new Thread(getName() + " " + direction) {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = buffers.poll();
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                    }
+
+                    try {
+                        while (from.read(buffer) != -1) {
+                            buffer.flip();
+                            framing.scan(buffer, System.nanoTime());
+                            while (buffer.hasRemaining()) {
+                                to.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                    } catch (final IOException e) {
+                        // either side went away
+                    } finally {
+                        // X clients don't half close, the other direction is done too
+                        close();
+
+                        buffer.clear();
+                        buffers.offer(buffer);
+
+                        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                        if (threads.isCurrentThreadCpuTimeSupported()) {
+                            cpuNanos.addAndGet(Math.max(0, threads.getCurrentThreadCpuTime()));
+                        }
+                        pumped.countDown();
+                        if (pumped.getCount() == 0) {
+                            report(Connection.this);
+                        }
+                    }
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        void start() {
+            pump("requests", client, server, new Requests());
+            pump("replies", server, client, new Replies());
+        }
+    }
+
+    /** proxies are listening at displays past the one they relay to by this many, X servers are not expected to be started there */
+    static final int DISPLAY_OFFSET = 500;
+
+    /** how many displays past the first one are tried */
+    private static final int MAX_DISPLAYS_TRIED = 100;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /** recent requests kept for timing their replies, replies come in the order of requests so a few outstanding at a time are enough */
+    private static final int RING_MASK = 1023;
+
+    private static final int REQUEST_HEAD_SIZE = 64;
+
+    private static final int REPLY_HEAD_SIZE = 16;
+
+    private static final int ERROR = 0;
+
+    private static final int REPLY = 1;
+
+    private static final int GENERIC_EVENT = 35;
+
+    private static final int CHANGE_PROPERTY = 18;
+
+    private static final int QUERY_EXTENSION = 98;
+
+    private static final int FIRST_EXTENSION_OPCODE = 128;
+
+    private static final int WM_CLASS = 67;
+
+    private static final long PUMPED_TIMEOUT_MILLIS = 1000;
+
+    private static final ConcurrentMap<String, XvfbProxy> proxies = new ConcurrentHashMap<String, XvfbProxy>();
+
+    /** Direct buffers of finished connections, reused by new ones. */
+    private static final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final ServerSocketChannel serverChannel;
+
+    private final int displayName;
+
+    private final boolean tcp;
+
+    private final File lockFile;
+
+    /** Connections still pumping, finished ones are added to the report and dropped. */
+    private final Queue<Connection> connections = new ConcurrentLinkedQueue<Connection>();
+
+    /** What the clients of finished connections asked for. */
+    private final XvfbProxyReport report = new XvfbProxyReport();
+
+    /** Names of extensions by major opcode, as clients found them out. */
+    private final AtomicReferenceArray<String> extensionNames = new AtomicReferenceArray<String>(256);
+
+    /** CPU time spent pumping finished connections. */
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    /** Claims the display the way X servers do, with a lock file holding the process id, returns <code>null</code> if the display is taken. */
+    static File lock(final int display) throws IOException {
+        final File lockFile = new File("/tmp/.X" + display + "-lock");
+        if (!lockFile.createNewFile()) {
+            return null;
+        }
+
+        final String jvm = ManagementFactory.getRuntimeMXBean().getName();
+        final int at = jvm.indexOf('@');
+        try {
+            Files.write(lockFile.toPath(), String.format("%10s\n", at > 0 ? jvm.substring(0, at) : "0").getBytes(StandardCharsets.US_ASCII));
+        } catch (final IOException e) {
+            Files.deleteIfExists(lockFile.toPath());
+            throw e;
+        }
+
+        return lockFile;
+    }
+
+    /**
+     * @param lockFile lock file claiming the display of the proxy, removed when stopped, <code>null</code> for none
+     */
+    XvfbProxy(final ServerSocketChannel serverChannel, final File lockFile, final int proxyDisplayName, final int displayName, final boolean tcp) {
+        super("Xvfb proxy :" + proxyDisplayName + " to :" + displayName);
+        setDaemon(true);
+
+        this.serverChannel = serverChannel;
+        this.lockFile = lockFile;
+        this.displayName = displayName;
+        this.tcp = tcp;
+    }
+
+    void close() throws IOException {
+        try {
+            serverChannel.close();
+
+            for (final Connection connection : connections) {
+                connection.close();
+            }
+        } finally {
+            if (lockFile != null) {
+                Files.deleteIfExists(lockFile.toPath());
+            }
+        }
+    }
+
+    /** Name of the request kind, extension requests are named after the extension and their minor opcode. */
+    String nameOf(final int kind) {
+        if (kind < FIRST_EXTENSION_OPCODE) {
+            return XvfbProxyReport.coreRequestName(kind);
+        }
+
+        final String extension = extensionNames.get(kind >> 8);
+
+        return (extension == null ? "extension " + (kind >> 8) : extension) + " " + (kind & 0xff);
+    }
+
+    /** Adds the counts of the connection to the report once, and drops the connection. */
+    private void report(final Connection connection) {
+        if (!connection.reported.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            connection.pumped.await(PUMPED_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final Stats stats = connection.stats;
+        synchronized (report) {
+            report.add(stats);
+            for (final Map.Entry<Integer, long[]> requests : stats.requestsByKind.entrySet()) {
+                report.request(nameOf(requests.getKey())).add(requests.getValue()[0], requests.getValue()[1], 0, 0);
+            }
+            for (final Map.Entry<Integer, long[]> blocking : stats.blockingByKind.entrySet()) {
+                report.request(nameOf(blocking.getKey())).add(0, 0, blocking.getValue()[0], blocking.getValue()[1]);
+            }
+        }
+        connections.remove(connection);
+    }
+
+    /** What the clients asked for, the connections still pumping are counted as far as they got. */
+    XvfbProxyReport report() {
+        for (final Connection connection : connections) {
+            report(connection);
+        }
+
+        synchronized (report) {
+            report.setCpuNanos(cpuNanos.get());
+
+            return report.finish();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            final SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            } catch (final IOException e) {
+                // stopped
+                return;
+            }
+
+            try {
+                client.socket().setTcpNoDelay(true);
+                final Connection connection = new Connection(client, XvfbX11.open(displayName, tcp));
+                connections.add(connection);
+                connection.start();
+            } catch (final IOException e) {
+                // Xvfb is gone, so is the client
+                try {
+                    client.close();
+                } catch (final IOException ignore) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** What the clients of an {@link XvfbProxy} asked Xvfb for, kept with the build in {@link XvfbEnvironment}. */
+public class XvfbProxyReport implements Serializable {
+
+    /** Connections of the clients with the same name. */
+    public static class Client implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private long connections;
+
+        private long requests;
+
+        private long requestBytes;
+
+        private long events;
+
+        private long roundTrips;
+
+        private long roundTripNanos;
+
+        private long maxRoundTripNanos;
+
+        private long blockingReplies;
+
+        private long blockingNanos;
+
+        Client(final String name) {
+            this.name = name;
+        }
+
+        void add(final XvfbProxy.Stats stats) {
+            connections++;
+            requests += stats.requests;
+            requestBytes += stats.requestBytes;
+            events += stats.events;
+            roundTrips += stats.roundTrips;
+            roundTripNanos += stats.roundTripNanos;
+            maxRoundTripNanos = Math.max(maxRoundTripNanos, stats.maxRoundTripNanos);
+            blockingReplies += stats.blockingReplies;
+            blockingNanos += stats.blockingNanos;
+        }
+
+        public long getBlockingMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(blockingNanos);
+        }
+
+        /** Replies the client waited for without sending anything else. */
+        public long getBlockingReplies() {
+            return blockingReplies;
+        }
+
+        public long getConnections() {
+            return connections;
+        }
+
+        public long getEvents() {
+            return events;
+        }
+
+        public long getMaxRoundTripMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxRoundTripNanos);
+        }
+
+        public long getMeanRoundTripMicros() {
+            return roundTrips == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(roundTripNanos / roundTrips);
+        }
+
+        /** Class of the windows of the client, {@link XvfbProxyReport#UNNAMED} for clients not setting one. */
+        public String getName() {
+            return name;
+        }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getRoundTrips() {
+            return roundTrips;
+        }
+    }
+
+    /** Requests of one kind, from all clients. */
+    public static class Request implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private long count;
+
+        private long bytes;
+
+        private long blockingReplies;
+
+        private long blockingNanos;
+
+        Request(final String name) {
+            this.name = name;
+        }
+
+        void add(final long count, final long bytes, final long blockingReplies, final long blockingNanos) {
+            this.count += count;
+            this.bytes += bytes;
+            this.blockingReplies += blockingReplies;
+            this.blockingNanos += blockingNanos;
+        }
+
+        public long getBlockingMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(blockingNanos);
+        }
+
+        public long getBlockingReplies() {
+            return blockingReplies;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /** Name of core requests, extension requests are named after the extension followed by the minor opcode. */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /** name of clients not setting a class on their windows */
+    public static final String UNNAMED = "(unnamed)";
+
+    /** how many clients and kinds of requests are kept, the busiest ones */
+    static final int MAX_CLIENTS = 20;
+
+    static final int MAX_REQUESTS = 15;
+
+    /** core requests by opcode */
+    private static final String[] CORE_REQUESTS = { null, "CreateWindow", "ChangeWindowAttributes", "GetWindowAttributes", "DestroyWindow",
+            "DestroySubwindows", "ChangeSaveSet", "ReparentWindow", "MapWindow", "MapSubwindows", "UnmapWindow", "UnmapSubwindows", "ConfigureWindow",
+            "CirculateWindow", "GetGeometry", "QueryTree", "InternAtom", "GetAtomName", "ChangeProperty", "DeleteProperty", "GetProperty",
+            "ListProperties", "SetSelectionOwner", "GetSelectionOwner", "ConvertSelection", "SendEvent", "GrabPointer", "UngrabPointer", "GrabButton",
+            "UngrabButton", "ChangeActivePointerGrab", "GrabKeyboard", "UngrabKeyboard", "GrabKey", "UngrabKey", "AllowEvents", "GrabServer",
+            "UngrabServer", "QueryPointer", "GetMotionEvents", "TranslateCoordinates", "WarpPointer", "SetInputFocus", "GetInputFocus", "QueryKeymap",
+            "OpenFont", "CloseFont", "QueryFont", "QueryTextExtents", "ListFonts", "ListFontsWithInfo", "SetFontPath", "GetFontPath", "CreatePixmap",
+            "FreePixmap", "CreateGC", "ChangeGC", "CopyGC", "SetDashes", "SetClipRectangles", "FreeGC", "ClearArea", "CopyArea", "CopyPlane",
+            "PolyPoint", "PolyLine", "PolySegment", "PolyRectangle", "PolyArc", "FillPoly", "PolyFillRectangle", "PolyFillArc", "PutImage",
+            "GetImage", "PolyText8", "PolyText16", "ImageText8", "ImageText16", "CreateColormap", "FreeColormap", "CopyColormapAndFree",
+            "InstallColormap", "UninstallColormap", "ListInstalledColormaps", "AllocColor", "AllocNamedColor", "AllocColorCells", "AllocColorPlanes",
+            "FreeColors", "StoreColors", "StoreNamedColor", "QueryColors", "LookupColor", "CreateCursor", "CreateGlyphCursor", "FreeCursor",
+            "RecolorCursor", "QueryBestSize", "QueryExtension", "ListExtensions", "ChangeKeyboardMapping", "GetKeyboardMapping",
+            "ChangeKeyboardControl", "GetKeyboardControl", "Bell", "ChangePointerControl", "GetPointerControl", "SetScreenSaver", "GetScreenSaver",
+            "ChangeHosts", "ListHosts", "SetAccessControl", "SetCloseDownMode", "KillClient", "RotateProperties", "ForceScreenSaver",
+            "SetPointerMapping", "GetPointerMapping", "SetModifierMapping", "GetModifierMapping" };
+
+    private static final int NO_OPERATION = 127;
+
+    static String coreRequestName(final int opcode) {
+        if (opcode == NO_OPERATION) {
+            return "NoOperation";
+        }
+
+        return opcode > 0 && opcode < CORE_REQUESTS.length ? CORE_REQUESTS[opcode] : "Request " + opcode;
+    }
+
+    private long connections;
+
+    private long requests;
+
+    private long requestBytes;
+
+    private long replies;
+
+    private long replyBytes;
+
+    private long events;
+
+    private long eventBytes;
+
+    private long errors;
+
+    private long roundTrips;
+
+    private long roundTripNanos;
+
+    private long maxRoundTripNanos;
+
+    private long blockingReplies;
+
+    private long blockingNanos;
+
+    private long cpuNanos;
+
+    /** Built up on the node, then cut down to the busiest ones when finished. */
+    private transient Map<String, Client> clientsByName = new LinkedHashMap<String, Client>();
+
+    private transient Map<String, Request> requestsByName = new LinkedHashMap<String, Request>();
+
+    private List<Client> clients;
+
+    private List<Request> requestKinds;
+
+    void add(final XvfbProxy.Stats stats) {
+        connections++;
+        requests += stats.requests;
+        requestBytes += stats.requestBytes;
+        replies += stats.replies;
+        replyBytes += stats.replyBytes;
+        events += stats.events;
+        eventBytes += stats.eventBytes;
+        errors += stats.errors;
+        roundTrips += stats.roundTrips;
+        roundTripNanos += stats.roundTripNanos;
+        maxRoundTripNanos = Math.max(maxRoundTripNanos, stats.maxRoundTripNanos);
+        blockingReplies += stats.blockingReplies;
+        blockingNanos += stats.blockingNanos;
+
+        final String name = stats.name == null ? UNNAMED : stats.name;
+        Client client = clientsByName.get(name);
+        if (client == null) {
+            client = new Client(name);
+            clientsByName.put(name, client);
+        }
+        client.add(stats);
+    }
+
+    Request request(final String name) {
+        Request request = requestsByName.get(name);
+        if (request == null) {
+            request = new Request(name);
+            requestsByName.put(name, request);
+        }
+
+        return request;
+    }
+
+    void setCpuNanos(final long cpuNanos) {
+        this.cpuNanos = cpuNanos;
+    }
+
+    /** Keeps the busiest clients and kinds of requests. */
+    XvfbProxyReport finish() {
+        final List<Client> busiestClients = new ArrayList<Client>(clientsByName.values());
+        Collections.sort(busiestClients, new Comparator<Client>() {
+            @Override
+            public int compare(final Client first, final Client second) {
+                return Long.compare(second.requests, first.requests);
+            }
+        });
+        clients = new ArrayList<Client>(busiestClients.subList(0, Math.min(MAX_CLIENTS, busiestClients.size())));
+
+        final List<Request> heaviestRequests = new ArrayList<Request>(requestsByName.values());
+        Collections.sort(heaviestRequests, new Comparator<Request>() {
+            @Override
+            public int compare(final Request first, final Request second) {
+                return Long.compare(second.bytes, first.bytes);
+            }
+        });
+        requestKinds = new ArrayList<Request>(heaviestRequests.subList(0, Math.min(MAX_REQUESTS, heaviestRequests.size())));
+
+        return this;
+    }
+
+    public long getBlockingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockingNanos);
+    }
+
+    /** Replies clients waited for without sending anything else, each one a full round trip to Xvfb. */
+    public long getBlockingReplies() {
+        return blockingReplies;
+    }
+
+    /** Clients sending the most requests, by name. */
+    public List<Client> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getEventBytes() {
+        return eventBytes;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getMaxRoundTripMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxRoundTripNanos);
+    }
+
+    public long getMeanRoundTripMicros() {
+        return roundTrips == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(roundTripNanos / roundTrips);
+    }
+
+    /** CPU time spent relaying, the overhead of the proxy. */
+    public long getProxyCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(cpuNanos);
+    }
+
+    public long getReplies() {
+        return replies;
+    }
+
+    public long getReplyBytes() {
+        return replyBytes;
+    }
+
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    /** Kinds of requests taking the most bytes. */
+    public List<Request> getRequestKinds() {
+        return Collections.unmodifiableList(requestKinds);
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Changes the screen size of a running Xvfb with the RandR extension, used on the node. Xvfb allows sizes up to the size it was started with, so
+ * the largest size needed is given on the command line and the screen is resized down to the one wanted. The CRTC is switched off, the screen
+ * resized and the CRTC switched back on with a mode of the new size, created if Xvfb doesn't have one. Should Xvfb refuse the new size the
+ * previous size and mode are restored, leaving the screen as it was.
+ */
+final class XvfbRandR {
+
+    /** Resizes the screen of the display on the node. */
+    static final class Resize extends MasterToSlaveCallable<Void, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int displayName;
+
+        private final boolean tcp;
+
+        private final int width;
+
+        private final int height;
+
+        /** @param tcp connect over TCP on the loopback interface instead of the Unix domain socket of the display */
+        Resize(final int displayName, final boolean tcp, final int width, final int height) {
+            this.displayName = displayName;
+            this.tcp = tcp;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try (XvfbX11 x11 = XvfbX11.connect(displayName, tcp)) {
+                new XvfbRandR(x11).resize(width, height);
+            }
+
+            return null;
+        }
+    }
+
+    /** Thrown when the screen size is outside of the sizes Xvfb allows. */
+    static final class SizeOutOfRange extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Largest size Xvfb allows, <code>WxH</code>. */
+        final String maximum;
+
+        SizeOutOfRange(final int width, final int height, final int minWidth, final int minHeight, final int maxWidth, final int maxHeight) {
+            super("Screen size " + width + "x" + height + " is outside of the sizes Xvfb allows, from " + minWidth + "x" + minHeight + " to " + maxWidth + "x"
+                    + maxHeight);
+            maximum = maxWidth + "x" + maxHeight;
+        }
+    }
+
+    private static final int RR_QUERY_VERSION = 0;
+
+    private static final int RR_GET_SCREEN_SIZE_RANGE = 6;
+
+    private static final int RR_SET_SCREEN_SIZE = 7;
+
+    private static final int RR_GET_SCREEN_RESOURCES = 8;
+
+    private static final int RR_CREATE_MODE = 16;
+
+    private static final int RR_ADD_OUTPUT_MODE = 18;
+
+    private static final int RR_GET_CRTC_INFO = 20;
+
+    private static final int RR_SET_CRTC_CONFIG = 21;
+
+    private static final int RR_ROTATE_0 = 1;
+
+    private static final int REFRESH_RATE = 60;
+
+    /** Parses <code>WxH</code> or <code>WxHxD</code>, returns width and height. */
+    static int[] parseSize(final String screen) {
+        final String[] dimensions = screen.trim().split("x");
+        if (dimensions.length < 2 || dimensions.length > 3) {
+            throw new IllegalArgumentException("Screen size should be given as WIDTHxHEIGHT, not " + screen);
+        }
+
+        try {
+            final int width = Integer.parseInt(dimensions[0]);
+            final int height = Integer.parseInt(dimensions[1]);
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Screen size should be positive, not " + screen);
+            }
+
+            return new int[] { width, height };
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Screen size should be given as WIDTHxHEIGHT, not " + screen, e);
+        }
+    }
+
+    private final XvfbX11 x11;
+
+    private int randR;
+
+    XvfbRandR(final XvfbX11 x11) {
+        this.x11 = x11;
+    }
+
+    private void queryRandR() throws IOException {
+        randR = x11.queryExtension("RANDR");
+        if (randR < 0) {
+            throw new IOException("Xvfb does not support the RandR extension");
+        }
+
+        final ByteBuffer queryVersion = XvfbX11.request(randR, RR_QUERY_VERSION, 12);
+        queryVersion.putInt(1).putInt(3);
+        final ByteBuffer version = x11.reply(x11.send(queryVersion));
+        if (version.getInt(8) < 1 || version.getInt(8) == 1 && version.getInt(12) < 2) {
+            throw new IOException("Xvfb supports RandR " + version.getInt(8) + "." + version.getInt(12) + ", resizing needs RandR 1.2");
+        }
+    }
+
+    /** Resizes the screen, switching the first CRTC to a mode of the new size. */
+    void resize(final int width, final int height) throws IOException {
+        queryRandR();
+
+        final ByteBuffer getSizeRange = XvfbX11.request(randR, RR_GET_SCREEN_SIZE_RANGE, 8);
+        getSizeRange.putInt(x11.root);
+        final ByteBuffer sizeRange = x11.reply(x11.send(getSizeRange));
+        final int minWidth = sizeRange.getShort(8) & 0xffff;
+        final int minHeight = sizeRange.getShort(10) & 0xffff;
+        final int maxWidth = sizeRange.getShort(12) & 0xffff;
+        final int maxHeight = sizeRange.getShort(14) & 0xffff;
+        if (width < minWidth || height < minHeight || width > maxWidth || height > maxHeight) {
+            throw new SizeOutOfRange(width, height, minWidth, minHeight, maxWidth, maxHeight);
+        }
+
+        final ByteBuffer getResources = XvfbX11.request(randR, RR_GET_SCREEN_RESOURCES, 8);
+        getResources.putInt(x11.root);
+        final ByteBuffer resources = x11.reply(x11.send(getResources));
+
+        final int configTimestamp = resources.getInt(12);
+        final int crtcCount = resources.getShort(16) & 0xffff;
+        final int outputCount = resources.getShort(18) & 0xffff;
+        final int modeCount = resources.getShort(20) & 0xffff;
+
+        int offset = 32;
+        final int crtc = crtcCount > 0 ? resources.getInt(offset) : 0;
+        offset += 4 * crtcCount;
+        final int firstOutput = outputCount > 0 ? resources.getInt(offset) : 0;
+        offset += 4 * outputCount;
+
+        int mode = 0;
+        for (int i = 0; i < modeCount; i++, offset += 32) {
+            if ((resources.getShort(offset + 4) & 0xffff) == width && (resources.getShort(offset + 6) & 0xffff) == height) {
+                mode = resources.getInt(offset);
+            }
+        }
+
+        final int mmWidth = millimeters(width, x11.widthMillimeters, x11.widthPixels);
+        final int mmHeight = millimeters(height, x11.heightMillimeters, x11.heightPixels);
+
+        if (crtc == 0 || firstOutput == 0) {
+            setScreenSize(width, height, mmWidth, mmHeight);
+            x11.sync();
+            return;
+        }
+
+        final ByteBuffer getCrtcInfo = XvfbX11.request(randR, RR_GET_CRTC_INFO, 12);
+        getCrtcInfo.putInt(crtc).putInt(configTimestamp);
+        final ByteBuffer crtcInfo = x11.reply(x11.send(getCrtcInfo));
+        final int previousWidth = crtcInfo.getShort(16) & 0xffff;
+        final int previousHeight = crtcInfo.getShort(18) & 0xffff;
+        final int previousMode = crtcInfo.getInt(20);
+        final int crtcOutputCount = crtcInfo.getShort(28) & 0xffff;
+        final int[] outputs = new int[Math.max(1, crtcOutputCount)];
+        outputs[0] = firstOutput;
+        for (int i = 0; i < crtcOutputCount; i++) {
+            outputs[i] = crtcInfo.getInt(32 + 4 * i);
+        }
+
+        if (mode == 0) {
+            mode = createMode(width, height);
+        }
+        for (final int output : outputs) {
+            final ByteBuffer addOutputMode = XvfbX11.request(randR, RR_ADD_OUTPUT_MODE, 12);
+            addOutputMode.putInt(output).putInt(mode);
+            x11.send(addOutputMode);
+        }
+
+        // the screen can't be made smaller than an active CRTC, switch it off while resizing
+        setCrtcConfig(crtc, configTimestamp, 0, new int[0]);
+        try {
+            setScreenSize(width, height, mmWidth, mmHeight);
+            x11.sync();
+            setCrtcConfig(crtc, configTimestamp, mode, outputs);
+        } catch (final IOException e) {
+            if (previousMode != 0) {
+                try {
+                    setScreenSize(previousWidth, previousHeight, millimeters(previousWidth, x11.widthMillimeters, x11.widthPixels),
+                            millimeters(previousHeight, x11.heightMillimeters, x11.heightPixels));
+                    x11.sync();
+                    setCrtcConfig(crtc, configTimestamp, previousMode, outputs);
+                } catch (final IOException restoring) {
+                    e.addSuppressed(restoring);
+                }
+            }
+
+            throw e;
+        }
+    }
+
+    private static int millimeters(final int pixels, final int screenMillimeters, final int screenPixels) {
+        return screenPixels == 0 ? 0 : pixels * screenMillimeters / screenPixels;
+    }
+
+    private int createMode(final int width, final int height) throws IOException {
+        final byte[] name = (width + "x" + height).getBytes(StandardCharsets.US_ASCII);
+
+        final ByteBuffer createMode = XvfbX11.request(randR, RR_CREATE_MODE, 40 + name.length + XvfbX11.pad(name.length));
+        createMode.putInt(x11.root);
+        // id, size, dot clock, horizontal sync start, end, total and skew, vertical sync start, end and total, name length and flags
+        createMode.putInt(0).putShort((short) width).putShort((short) height).putInt(width * height * REFRESH_RATE);
+        createMode.putShort((short) width).putShort((short) width).putShort((short) width).putShort((short) 0);
+        createMode.putShort((short) height).putShort((short) height).putShort((short) height).putShort((short) name.length).putInt(0);
+        createMode.put(name);
+
+        return x11.reply(x11.send(createMode)).getInt(8);
+    }
+
+    private void setCrtcConfig(final int crtc, final int configTimestamp, final int mode, final int[] outputs) throws IOException {
+        final ByteBuffer setCrtcConfig = XvfbX11.request(randR, RR_SET_CRTC_CONFIG, 28 + 4 * outputs.length);
+        setCrtcConfig.putInt(crtc).putInt(0).putInt(configTimestamp).putShort((short) 0).putShort((short) 0).putInt(mode).putShort((short) RR_ROTATE_0)
+                .putShort((short) 0);
+        for (final int output : outputs) {
+            setCrtcConfig.putInt(output);
+        }
+
+        final int status = x11.reply(x11.send(setCrtcConfig)).get(1);
+        if (status != 0) {
+            throw new IOException("Xvfb refused to configure the CRTC, status " + status);
+        }
+    }
+
+    private void setScreenSize(final int width, final int height, final int mmWidth, final int mmHeight) throws IOException {
+        final ByteBuffer setScreenSize = XvfbX11.request(randR, RR_SET_SCREEN_SIZE, 20);
+        setScreenSize.putInt(x11.root).putShort((short) width).putShort((short) height).putInt(mmWidth).putInt(mmHeight);
+        x11.send(setScreenSize);
+    }
+}
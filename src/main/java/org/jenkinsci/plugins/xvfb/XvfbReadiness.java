@@ -0,0 +1,127 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import hudson.util.ProcessTree;
+import hudson.util.ProcessTree.OSProcess;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Waits on the node for the Xvfb server to accept connections on its display. Xvfb is considered ready once the display socket exists and the
+ * display lock file names a process started with our cookie, so that a stale socket or a server started by someone else are not mistaken for it.
+ */
+final class XvfbReadiness extends MasterToSlaveCallable<Boolean, InterruptedException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long POLL_MILLIS = 50;
+
+    private static final boolean PROC_FS = new File("/proc/self/environ").exists();
+
+    private final int displayName;
+
+    private final String cookie;
+
+    private final long timeoutMillis;
+
+    XvfbReadiness(final int displayName, final String cookie, final long timeoutMillis) {
+        this.displayName = displayName;
+        this.cookie = cookie;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public Boolean call() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (!isReady(displayName, cookie)) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+
+            Thread.sleep(Math.min(POLL_MILLIS, remaining));
+        }
+
+        return true;
+    }
+
+    /** Is Xvfb started with the cookie accepting connections on the display, needs to be invoked on the node. */
+    static boolean isReady(final int displayName, final String cookie) {
+        if (!new File("/tmp/.X11-unix/X" + displayName).exists()) {
+            return false;
+        }
+
+        final File lockFile = new File("/tmp/.X" + displayName + "-lock");
+
+        final int pid;
+        try {
+            pid = Integer.parseInt(new String(Files.readAllBytes(lockFile.toPath()), StandardCharsets.US_ASCII).trim());
+        } catch (final IOException | NumberFormatException e) {
+            // not there yet or only partially written
+            return false;
+        }
+
+        return startedWith(pid, cookie);
+    }
+
+    /**
+     * Was the process started with the cookie. Where there is <code>/proc</code> just the environment of the process is read, a snapshot of all
+     * processes on every poll costs more than the rest of the poll.
+     */
+    static boolean startedWith(final int pid, final String cookie) {
+        if (!PROC_FS) {
+            final OSProcess server = ProcessTree.get().get(pid);
+
+            return server != null && cookie.equals(server.getEnvironmentVariables().get(Xvfb.JENKINS_XVFB_COOKIE));
+        }
+
+        final byte[] environment;
+        try {
+            environment = Files.readAllBytes(new File("/proc/" + pid + "/environ").toPath());
+        } catch (final IOException e) {
+            // gone already, or started by someone else
+            return false;
+        }
+
+        final String wanted = Xvfb.JENKINS_XVFB_COOKIE + "=" + cookie;
+        for (final String variable : new String(environment, StandardCharsets.UTF_8).split("\u0000")) {
+            if (variable.equals(wanted)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Software rendering environment of a display. Mesa's llvmpipe starts a render thread per processor in every OpenGL client, with a display per
+ * executor that oversubscribes the node many times over. Clients of a display are given a share of the processors of the node instead, the
+ * processors divided by the displays running there. Processors are probed once per node and again after the node comes back online.
+ */
+final class XvfbRendering {
+
+    private static final class AvailableProcessors extends MasterToSlaveCallable<Integer, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Integer call() {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    /** number of llvmpipe render threads */
+    static final String LP_NUM_THREADS = "LP_NUM_THREADS";
+
+    /** Gallium driver Mesa renders with */
+    static final String GALLIUM_DRIVER = "GALLIUM_DRIVER";
+
+    /**
+     * Environment for clients of the display, <code>renderThreads</code> overrides the share of processors if not <code>null</code>, and
+     * <code>galliumDriver</code> is exported if not blank.
+     */
+    static Map<String, String> environment(final VirtualChannel channel, final String computerName, final Integer renderThreads, final String galliumDriver)
+            throws InterruptedException {
+        final Map<String, String> environment = new LinkedHashMap<String, String>();
+
+        final int threads;
+        if (renderThreads != null) {
+            threads = renderThreads;
+        }
+        else {
+            final XvfbNodeStatistics statistics = XvfbNodeStatistics.of(computerName);
+            threads = threadsPerDisplay(processorsOf(channel, statistics), statistics.getActiveDisplays());
+        }
+
+        if (threads > 0) {
+            environment.put(LP_NUM_THREADS, String.valueOf(threads));
+        }
+
+        if (galliumDriver != null && !galliumDriver.trim().isEmpty()) {
+            environment.put(GALLIUM_DRIVER, galliumDriver.trim());
+        }
+
+        return environment;
+    }
+
+    private static int processorsOf(final VirtualChannel channel, final XvfbNodeStatistics statistics) throws InterruptedException {
+        int processors = statistics.getProcessors();
+        if (processors == 0 && channel != null) {
+            try {
+                processors = channel.call(new AvailableProcessors());
+                statistics.processorsProbed(processors);
+            } catch (final IOException ignore) {
+                // left to Mesa when not known
+            }
+        }
+
+        return processors;
+    }
+
+    /** Render threads for each display, at least one, <code>0</code> if the processors of the node are not known. */
+    static int threadsPerDisplay(final int processors, final int activeDisplays) {
+        if (processors <= 0) {
+            return 0;
+        }
+
+        return Math.max(1, processors / Math.max(1, activeDisplays));
+    }
+
+    private XvfbRendering() {
+    }
+}
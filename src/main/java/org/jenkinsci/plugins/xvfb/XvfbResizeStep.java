@@ -0,0 +1,164 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FormValidation;
+
+/**
+ * Pipeline step changing the screen size of the running Xvfb display in <code>DISPLAY</code> with RandR, without restarting Xvfb. Sizes up to
+ * the largest of the screen and the sizes Xvfb was configured to be resizable to can be set.
+ */
+public class XvfbResizeStep extends Step {
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        public FormValidation doCheckScreen(@QueryParameter final String value) {
+            try {
+                XvfbRandR.parseSize(value);
+            } catch (final IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+
+            return FormValidation.ok();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.XvfbResizeStep_DisplayName();
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "xvfbResize";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<Class<?>>(Arrays.<Class<?>> asList(Run.class, TaskListener.class, EnvVars.class, Launcher.class, Computer.class));
+        }
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String screen;
+
+        Execution(final StepContext context, final String screen) {
+            super(context);
+            this.screen = screen;
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final TaskListener listener = getContext().get(TaskListener.class);
+            final String display = getContext().get(EnvVars.class).get("DISPLAY");
+
+            final XvfbEnvironment xvfbEnvironment = XvfbWaitForDisplayStep.environmentOf(run, getContext().get(Computer.class).getName(), display);
+            if (xvfbEnvironment == null) {
+                throw new AbortException(Messages.XvfbResizeStep_NoDisplay(display));
+            }
+
+            final int[] size;
+            try {
+                size = XvfbRandR.parseSize(screen);
+            } catch (final IllegalArgumentException e) {
+                throw new AbortException(e.getMessage());
+            }
+
+            if (xvfbEnvironment.maximumScreen == null) {
+                listener.getLogger().println(Messages.XvfbResizeStep_NotResizable(display));
+            }
+            else {
+                final int[] maximum = XvfbRandR.parseSize(xvfbEnvironment.maximumScreen);
+                if (size[0] > maximum[0] || size[1] > maximum[1]) {
+                    throw new AbortException(Messages.XvfbResizeStep_TooLarge(screen, maximum[0] + "x" + maximum[1]));
+                }
+            }
+
+            final VirtualChannel channel = getContext().get(Launcher.class).getChannel();
+
+            final XvfbLaunch.Result result = Xvfb.awaitReady(run, xvfbEnvironment, channel, false);
+            if (result != null && !result.alive) {
+                Xvfb.reportFailedStart(run, xvfbEnvironment.computerName, result, listener);
+
+                throw new AbortException(Messages.XvfbBuildWrapper_FailedToStart());
+            }
+
+            final long resizingAt = System.currentTimeMillis();
+            try {
+                channel.call(new XvfbRandR.Resize(xvfbEnvironment.displayName, xvfbEnvironment.lazy, size[0], size[1]));
+            } catch (final XvfbRandR.SizeOutOfRange e) {
+                throw new AbortException(Messages.XvfbResizeStep_OutOfRange(screen, display, e.maximum));
+            }
+            listener.getLogger().println(Messages.XvfbResizeStep_Resized(display, size[0] + "x" + size[1], System.currentTimeMillis() - resizingAt));
+
+            return null;
+        }
+    }
+
+    /** New screen size, in the form WxH, a depth given as in WxHxD is ignored. */
+    private final String screen;
+
+    @DataBoundConstructor
+    public XvfbResizeStep(final String screen) {
+        this.screen = screen;
+    }
+
+    public String getScreen() {
+        return screen;
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        return new Execution(context, screen);
+    }
+}
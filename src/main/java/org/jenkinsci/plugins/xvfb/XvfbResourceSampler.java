@@ -0,0 +1,333 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.ProcessTree;
+import hudson.util.ProcessTree.OSProcess;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Samples resident memory and CPU time of Xvfb servers on the node from <code>/proc/&lt;pid&gt;/stat</code> and
+ * <code>/proc/&lt;pid&gt;/status</code>. The files are kept open and re-read into a fixed buffer, so sampling does not allocate. Samplers are
+ * registered by the cookie of the server and run on the node until stopped, or until the server exits. The sampling interval is set with the
+ * <code>org.jenkinsci.plugins.xvfb.XvfbResourceSampler.intervalSeconds</code> system property on the node, 0 disables sampling.
+ */
+final class XvfbResourceSampler implements Runnable {
+
+    /** Starts sampling the Xvfb server started with the cookie, when Xvfb was started by the launcher and its pid is not known. */
+    static final class Start extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Start(final String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            if (INTERVAL_SECONDS <= 0) {
+                return false;
+            }
+
+            for (final OSProcess process : ProcessTree.get()) {
+                final OSProcess parent = process.getParent();
+                if (cookie.equals(process.getEnvironmentVariables().get(Xvfb.JENKINS_XVFB_COOKIE))
+                        && (parent == null || !cookie.equals(parent.getEnvironmentVariables().get(Xvfb.JENKINS_XVFB_COOKIE)))) {
+                    return start(cookie, process.getPid());
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /** Stops sampling the Xvfb server started with the cookie, returns the resources used or <code>null</code> if not sampled. */
+    static final class Stop extends MasterToSlaveCallable<XvfbResources, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Stop(final String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public XvfbResources call() throws IOException {
+            return stop(cookie);
+        }
+    }
+
+    static final int INTERVAL_SECONDS = SystemProperties.getInteger(XvfbResourceSampler.class.getName() + ".intervalSeconds", 10);
+
+    /** clock ticks per second used by the kernel for CPU times in <code>/proc</code>, 100 on all Linux platforms Jenkins agents run on */
+    private static final long TICKS_PER_SECOND = 100;
+
+    private static final byte[] VM_RSS = "VmRSS:".getBytes(StandardCharsets.US_ASCII);
+
+    /** index of the utime field counting from the state field following the command name */
+    private static final int UTIME_FIELD = 11;
+
+    private static final ConcurrentMap<String, XvfbResourceSampler> samplers = new ConcurrentHashMap<String, XvfbResourceSampler>();
+
+    private static ScheduledExecutorService executor;
+
+    private static synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory(new DaemonThreadFactory(), "Xvfb resource sampler"));
+        }
+
+        return executor;
+    }
+
+    /** Starts sampling the process, invoked on the node. Returns <code>false</code> if the process can't be sampled. */
+    static boolean start(final String cookie, final int pid) {
+        if (INTERVAL_SECONDS <= 0 || !new File("/proc/" + pid + "/stat").isFile()) {
+            return false;
+        }
+
+        final XvfbResourceSampler sampler;
+        try {
+            sampler = new XvfbResourceSampler(cookie, pid);
+        } catch (final IOException e) {
+            return false;
+        }
+
+        samplers.put(cookie, sampler);
+        sampler.run();
+        sampler.schedule(executor().scheduleWithFixedDelay(sampler, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS));
+
+        return true;
+    }
+
+    /** Stops sampling, invoked on the node. */
+    static XvfbResources stop(final String cookie) {
+        final XvfbResourceSampler sampler = samplers.remove(cookie);
+        if (sampler == null) {
+            return null;
+        }
+
+        sampler.run();
+
+        return sampler.close();
+    }
+
+    private final String cookie;
+
+    private final RandomAccessFile stat;
+
+    private final RandomAccessFile status;
+
+    private final byte[] buffer = new byte[4096];
+
+    private final long startedAt = System.currentTimeMillis();
+
+    private ScheduledFuture<?> schedule;
+
+    private long samples;
+
+    private long rssSumKb;
+
+    private long peakRssKb;
+
+    private long cpuTicks;
+
+    private boolean closed;
+
+    private XvfbResourceSampler(final String cookie, final int pid) throws IOException {
+        this.cookie = cookie;
+        stat = new RandomAccessFile("/proc/" + pid + "/stat", "r");
+        try {
+            status = new RandomAccessFile("/proc/" + pid + "/status", "r");
+        } catch (final IOException e) {
+            stat.close();
+            throw e;
+        }
+    }
+
+    private synchronized XvfbResources close() {
+        if (!closed) {
+            closed = true;
+
+            if (schedule != null) {
+                schedule.cancel(false);
+            }
+
+            try {
+                stat.close();
+                status.close();
+            } catch (final IOException ignore) {
+                // nothing left to read
+            }
+        }
+
+        if (samples == 0) {
+            return null;
+        }
+
+        return new XvfbResources(samples, peakRssKb, rssSumKb / samples, cpuTicks * 1000 / TICKS_PER_SECOND, System.currentTimeMillis() - startedAt);
+    }
+
+    private int read(final RandomAccessFile file) throws IOException {
+        file.seek(0);
+
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = file.read(buffer, length, buffer.length - length)) > 0) {
+            length += read;
+        }
+
+        return length;
+    }
+
+    /** CPU time in clock ticks, the sum of user and system time fields of <code>stat</code>, or -1 if not found. */
+    private long readCpuTicks(final int length) {
+        // the command name in parenthesis can contain spaces, fields are counted after its closing parenthesis
+        int position = length - 1;
+        while (position >= 0 && buffer[position] != ')') {
+            position--;
+        }
+
+        if (position < 0) {
+            return -1;
+        }
+
+        int field = -1;
+        long ticks = 0;
+        long value = 0;
+        boolean inField = false;
+        for (position++; position < length; position++) {
+            final byte b = buffer[position];
+            if (b == ' ' || b == '\n') {
+                if (inField && (field == UTIME_FIELD || field == UTIME_FIELD + 1)) {
+                    ticks += value;
+                    if (field == UTIME_FIELD + 1) {
+                        return ticks;
+                    }
+                }
+
+                inField = false;
+                continue;
+            }
+
+            if (!inField) {
+                inField = true;
+                field++;
+                value = 0;
+            }
+
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+            }
+        }
+
+        return -1;
+    }
+
+    /** Resident set size in kB from the <code>VmRSS</code> line of <code>status</code>, or -1 if not found. */
+    private long readRssKb(final int length) {
+        for (int position = 0; position + VM_RSS.length < length; position++) {
+            if (position > 0 && buffer[position - 1] != '\n') {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int i = 0; i < VM_RSS.length && matches; i++) {
+                matches = buffer[position + i] == VM_RSS[i];
+            }
+
+            if (!matches) {
+                continue;
+            }
+
+            long value = 0;
+            for (position += VM_RSS.length; position < length && buffer[position] != '\n'; position++) {
+                final byte b = buffer[position];
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+
+            return value;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            final long ticks = readCpuTicks(read(stat));
+            final long rssKb = readRssKb(read(status));
+
+            if (ticks < 0 || rssKb < 0) {
+                return;
+            }
+
+            cpuTicks = ticks;
+            rssSumKb += rssKb;
+            peakRssKb = Math.max(peakRssKb, rssKb);
+            samples++;
+        } catch (final IOException e) {
+            // the server exited, keep what was sampled until asked for it
+            if (schedule != null) {
+                schedule.cancel(false);
+            }
+        }
+    }
+
+    private synchronized void schedule(final ScheduledFuture<?> schedule) {
+        this.schedule = schedule;
+    }
+
+    @Override
+    public String toString() {
+        return "Xvfb resource sampler " + cookie;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.Serializable;
+
+/** Memory and CPU time used by an Xvfb server, sampled on the node while the build ran. Kept with the build in {@link XvfbEnvironment}. */
+public class XvfbResources implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long samples;
+
+    private final long peakRssKb;
+
+    private final long averageRssKb;
+
+    private final long cpuMillis;
+
+    private final long sampledMillis;
+
+    public XvfbResources(final long samples, final long peakRssKb, final long averageRssKb, final long cpuMillis, final long sampledMillis) {
+        this.samples = samples;
+        this.peakRssKb = peakRssKb;
+        this.averageRssKb = averageRssKb;
+        this.cpuMillis = cpuMillis;
+        this.sampledMillis = sampledMillis;
+    }
+
+    public long getAverageRssKb() {
+        return averageRssKb;
+    }
+
+    /** CPU time, user and system, used by the server. */
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /** Average share of one CPU used by the server while sampled, in percent. */
+    public long getCpuPercent() {
+        return sampledMillis == 0 ? 0 : cpuMillis * 100 / sampledMillis;
+    }
+
+    public long getPeakRssKb() {
+        return peakRssKb;
+    }
+
+    public long getSampledMillis() {
+        return sampledMillis;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Reads the screen of Xvfb from the XWD formatted frame buffer file Xvfb keeps in its <code>-fbdir</code> directory, split into square tiles.
+ * Only the tiles that changed since the caller last looked are encoded and returned, the caller passes the hashes of the tiles it has.
+ */
+final class XvfbScreen extends MasterToSlaveFileCallable<XvfbScreen.Frame> {
+
+    /** Tiles of the screen that changed. */
+    static final class Frame implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int width;
+
+        final int height;
+
+        /** Hashes of all tiles, row by row. */
+        final int[] hashes;
+
+        final List<Tile> tiles;
+
+        Frame(final int width, final int height, final int[] hashes, final List<Tile> tiles) {
+            this.width = width;
+            this.height = height;
+            this.hashes = hashes;
+            this.tiles = tiles;
+        }
+    }
+
+    /** PNG encoded tile of the screen. */
+    static final class Tile implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Index of the tile, row by row. */
+        final int index;
+
+        final int x;
+
+        final int y;
+
+        final byte[] png;
+
+        Tile(final int index, final int x, final int y, final byte[] png) {
+            this.index = index;
+            this.x = x;
+            this.y = y;
+            this.png = png;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    static final int TILE_SIZE = 64;
+
+    private static final String SCREEN_FILE = "Xvfb_screen0";
+
+    /** XWD header fields are 32 bit, these are their indexes */
+    private static final int HEADER_SIZE = 0;
+
+    private static final int PIXMAP_WIDTH = 4;
+
+    private static final int PIXMAP_HEIGHT = 5;
+
+    private static final int BYTE_ORDER = 7;
+
+    private static final int BITS_PER_PIXEL = 11;
+
+    private static final int BYTES_PER_LINE = 12;
+
+    private static final int RED_MASK = 14;
+
+    private static final int GREEN_MASK = 15;
+
+    private static final int BLUE_MASK = 16;
+
+    private static final int NCOLORS = 19;
+
+    /** size of a color map entry following the header */
+    private static final int XWD_COLOR_SIZE = 12;
+
+    static int tilesAcross(final int width) {
+        return (width + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    private static int channel(final int pixel, final int mask) {
+        if (mask == 0) {
+            return 0;
+        }
+
+        final int shifted = (pixel & mask) >>> Integer.numberOfTrailingZeros(mask);
+        final int bits = Integer.bitCount(mask);
+
+        return bits >= 8 ? shifted >>> (bits - 8) : shifted << (8 - bits);
+    }
+
+    private final int[] known;
+
+    /** @param known hashes of the tiles the caller has, empty if none */
+    XvfbScreen(final int[] known) {
+        this.known = known;
+    }
+
+    @Override
+    public Frame invoke(final File frameBufferDir, final VirtualChannel channel) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(frameBufferDir, SCREEN_FILE), "r"); FileChannel fileChannel = file.getChannel()) {
+            final MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            final int headerSize = buffer.getInt(HEADER_SIZE * 4);
+            final int width = buffer.getInt(PIXMAP_WIDTH * 4);
+            final int height = buffer.getInt(PIXMAP_HEIGHT * 4);
+            final boolean msbFirst = buffer.getInt(BYTE_ORDER * 4) == 1;
+            final int bitsPerPixel = buffer.getInt(BITS_PER_PIXEL * 4);
+            final int bytesPerLine = buffer.getInt(BYTES_PER_LINE * 4);
+            final int redMask = buffer.getInt(RED_MASK * 4);
+            final int greenMask = buffer.getInt(GREEN_MASK * 4);
+            final int blueMask = buffer.getInt(BLUE_MASK * 4);
+            final int colors = buffer.getInt(NCOLORS * 4);
+
+            if (bitsPerPixel != 32 && bitsPerPixel != 16) {
+                throw new IOException("Unsupported Xvfb screen depth of " + bitsPerPixel + " bits per pixel, use a 16 or 24 bit screen");
+            }
+
+            final int pixels = headerSize + colors * XWD_COLOR_SIZE;
+            if ((long) pixels + (long) bytesPerLine * height > fileChannel.size()) {
+                throw new IOException("Xvfb screen is being resized");
+            }
+
+            buffer.order(msbFirst ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            final int bytesPerPixel = bitsPerPixel / 8;
+
+            final int across = tilesAcross(width);
+            final int down = tilesAcross(height);
+            final int[] hashes = new int[across * down];
+            final List<Tile> tiles = new ArrayList<Tile>();
+
+            for (int row = 0; row < down; row++) {
+                for (int column = 0; column < across; column++) {
+                    final int index = row * across + column;
+                    final int x = column * TILE_SIZE;
+                    final int y = row * TILE_SIZE;
+                    final int tileWidth = Math.min(TILE_SIZE, width - x);
+                    final int tileHeight = Math.min(TILE_SIZE, height - y);
+
+                    int hash = 1;
+                    for (int line = y; line < y + tileHeight; line++) {
+                        final int offset = pixels + line * bytesPerLine + x * bytesPerPixel;
+                        for (int i = 0; i < tileWidth; i++) {
+                            hash = 31 * hash + pixel(buffer, offset + i * bytesPerPixel, bytesPerPixel);
+                        }
+                    }
+                    hashes[index] = hash;
+
+                    if (known.length == hashes.length && known[index] == hash) {
+                        continue;
+                    }
+
+                    final BufferedImage image = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+                    for (int line = 0; line < tileHeight; line++) {
+                        final int offset = pixels + (y + line) * bytesPerLine + x * bytesPerPixel;
+                        for (int i = 0; i < tileWidth; i++) {
+                            final int pixel = pixel(buffer, offset + i * bytesPerPixel, bytesPerPixel);
+                            image.setRGB(i, line, channel(pixel, redMask) << 16 | channel(pixel, greenMask) << 8 | channel(pixel, blueMask));
+                        }
+                    }
+
+                    final ByteArrayOutputStream png = new ByteArrayOutputStream();
+                    ImageIO.write(image, "png", png);
+                    tiles.add(new Tile(index, x, y, png.toByteArray()));
+                }
+            }
+
+            return new Frame(width, height, hashes, tiles);
+        }
+    }
+
+    private static int pixel(final MappedByteBuffer buffer, final int offset, final int bytesPerPixel) {
+        return bytesPerPixel == 4 ? buffer.getInt(offset) : buffer.getShort(offset) & 0xffff;
+    }
+}
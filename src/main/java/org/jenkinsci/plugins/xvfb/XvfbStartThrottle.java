@@ -0,0 +1,152 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jenkins.util.SystemProperties;
+
+/**
+ * Limits the number of Xvfb servers starting concurrently on a node. Builds waiting to start Xvfb are served in arrival order. The number of
+ * concurrent starts is adapted to the startup time measured: it is increased by one after each start that was ready within the target time, and
+ * halved after each start that took longer. Startup time is the time spawning Xvfb and waiting for it to be ready took on the node, the latency of
+ * remote calls to the node is left out. Starts not waited for until ready within the target time, as when the timeout is shorter, leave it as is.
+ */
+final class XvfbStartThrottle {
+
+    static final int MAX_CONCURRENT_STARTS = SystemProperties.getInteger(XvfbStartThrottle.class.getName() + ".maxConcurrentStarts", 4);
+
+    static final int TARGET_STARTUP_MILLIS = SystemProperties.getInteger(XvfbStartThrottle.class.getName() + ".targetStartupMillis", 2000);
+
+    private static final ConcurrentMap<String, XvfbStartThrottle> throttles = new ConcurrentHashMap<String, XvfbStartThrottle>();
+
+    /** Throttles of all nodes Xvfb was started on, by computer name. */
+    static Map<String, XvfbStartThrottle> all() {
+        return Collections.unmodifiableMap(throttles);
+    }
+
+    static XvfbStartThrottle of(final String computerName) {
+        final XvfbStartThrottle existing = throttles.get(computerName);
+        if (existing != null) {
+            return existing;
+        }
+
+        final XvfbStartThrottle created = new XvfbStartThrottle(MAX_CONCURRENT_STARTS, TARGET_STARTUP_MILLIS);
+        final XvfbStartThrottle raced = throttles.putIfAbsent(computerName, created);
+
+        return raced == null ? created : raced;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final Condition released = lock.newCondition();
+
+    private final int maximum;
+
+    private final long targetStartupMillis;
+
+    private int limit;
+
+    private int running;
+
+    private int waiting;
+
+    XvfbStartThrottle(final int maximum, final long targetStartupMillis) {
+        this.maximum = Math.max(1, maximum);
+        this.targetStartupMillis = targetStartupMillis;
+        limit = this.maximum;
+    }
+
+    /** Waits for a turn to start Xvfb, returns the time waited in milliseconds. */
+    long acquire() throws InterruptedException {
+        final long queuedAt = System.nanoTime();
+
+        lock.lockInterruptibly();
+        try {
+            waiting++;
+            try {
+                while (running >= limit) {
+                    released.await();
+                }
+            } finally {
+                waiting--;
+            }
+
+            running++;
+        } finally {
+            lock.unlock();
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt);
+    }
+
+    /** Number of concurrent starts currently allowed. */
+    int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of builds waiting for their turn to start Xvfb. */
+    int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Ends a turn acquired by {@link #acquire()}, reporting how long the start took and if Xvfb was known to be ready by then. */
+    void release(final long startupMillis, final boolean ready) {
+        lock.lock();
+        try {
+            running--;
+
+            if (startupMillis > targetStartupMillis) {
+                limit = Math.max(1, limit / 2);
+            } else if (ready) {
+                limit = Math.min(maximum, limit + 1);
+            }
+
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
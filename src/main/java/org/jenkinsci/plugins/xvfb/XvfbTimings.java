@@ -0,0 +1,100 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.Serializable;
+
+/** Time spent in each phase of providing Xvfb to a build, in milliseconds. Kept with the build in {@link XvfbEnvironment}. */
+public class XvfbTimings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Waiting for a turn to start Xvfb on the node. */
+    private final long allocationMillis;
+
+    /** Translating the installation, probing the executable, preparing the frame buffer directory and remote call overhead. */
+    private final long remotingMillis;
+
+    /** Number of round trips to the node made setting up Xvfb, not counting the ones of the launcher starting processes. */
+    private final int remoteCalls;
+
+    /** Spawning the Xvfb process. */
+    private final long spawnMillis;
+
+    /** Waiting for Xvfb to accept connections, updated once the build waited for Xvfb started in the background. */
+    private volatile long readinessMillis;
+
+    /** Shutting down Xvfb and removing the frame buffer directory, -1 until Xvfb is shut down. */
+    private volatile long teardownMillis = -1;
+
+    public XvfbTimings(final long allocationMillis, final long remotingMillis, final int remoteCalls, final long spawnMillis, final long readinessMillis) {
+        this.allocationMillis = allocationMillis;
+        this.remotingMillis = remotingMillis;
+        this.remoteCalls = remoteCalls;
+        this.spawnMillis = spawnMillis;
+        this.readinessMillis = readinessMillis;
+    }
+
+    public long getAllocationMillis() {
+        return allocationMillis;
+    }
+
+    public long getReadinessMillis() {
+        return readinessMillis;
+    }
+
+    public int getRemoteCalls() {
+        return remoteCalls;
+    }
+
+    public long getRemotingMillis() {
+        return remotingMillis;
+    }
+
+    public long getSpawnMillis() {
+        return spawnMillis;
+    }
+
+    /** Time taken until Xvfb was ready to be used by the build. */
+    public long getStartupMillis() {
+        return allocationMillis + remotingMillis + spawnMillis + readinessMillis;
+    }
+
+    public long getTeardownMillis() {
+        return teardownMillis;
+    }
+
+    void setReadinessMillis(final long readinessMillis) {
+        this.readinessMillis = readinessMillis;
+    }
+
+    void setTeardownMillis(final long teardownMillis) {
+        this.teardownMillis = teardownMillis;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.ChartUtil;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import jenkins.model.TransientActionFactory;
+
+/**
+ * Trend of the time taken to provide Xvfb to the recent builds of a job, by phase. Builds are loaded only when the trend is rendered, and only as
+ * many as are shown.
+ */
+public class XvfbTrendAction implements Action {
+
+    @Extension
+    public static class Factory extends TransientActionFactory<Job> {
+
+        @Override
+        public Collection<? extends Action> createFor(final Job target) {
+            return Collections.singleton(new XvfbTrendAction(target));
+        }
+
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+    }
+
+    /** number of recent builds shown in the trend */
+    static final int MAX_BUILDS = 50;
+
+    private static final int WIDTH = 500;
+
+    private static final int HEIGHT = 200;
+
+    private final Job<?, ?> job;
+
+    XvfbTrendAction(final Job<?, ?> job) {
+        this.job = job;
+    }
+
+    private CategoryDataset createDataset() {
+        final DataSetBuilder<String, NumberOnlyBuildLabel> dataset = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+
+        int count = 0;
+        for (final Iterator<? extends Run<?, ?>> builds = job.getBuilds().iterator(); builds.hasNext() && count < MAX_BUILDS; count++) {
+            final Run<?, ?> build = builds.next();
+
+            final XvfbTimings timings = timingsOf(build);
+            if (timings == null) {
+                continue;
+            }
+
+            final NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+            dataset.add(timings.getAllocationMillis(), Messages.XvfbTrendAction_Allocation(), label);
+            dataset.add(timings.getRemotingMillis(), Messages.XvfbTrendAction_Remoting(), label);
+            dataset.add(timings.getSpawnMillis(), Messages.XvfbTrendAction_Spawn(), label);
+            dataset.add(timings.getReadinessMillis(), Messages.XvfbTrendAction_Readiness(), label);
+            dataset.add(Math.max(0, timings.getTeardownMillis()), Messages.XvfbTrendAction_Teardown(), label);
+        }
+
+        return dataset.build();
+    }
+
+    public void doGraph(final StaplerRequest request, final StaplerResponse response) throws IOException {
+        final Run<?, ?> lastBuild = job.getLastBuild();
+        final long timestamp = lastBuild == null ? 0 : lastBuild.getTimeInMillis();
+
+        new Graph(timestamp, WIDTH, HEIGHT) {
+            @Override
+            protected JFreeChart createGraph() {
+                final JFreeChart chart = ChartFactory.createStackedAreaChart(null, null, Messages.XvfbTrendAction_Milliseconds(), createDataset(),
+                        PlotOrientation.VERTICAL, true, true, false);
+                chart.setBackgroundPaint(Color.WHITE);
+
+                final CategoryPlot plot = chart.getCategoryPlot();
+                plot.setBackgroundPaint(Color.WHITE);
+                plot.setRangeGridlinePaint(Color.BLACK);
+
+                final CategoryAxis domainAxis = new ChartUtil.NoOverlapCategoryAxis(null);
+                domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+                domainAxis.setLowerMargin(0.0);
+                domainAxis.setUpperMargin(0.0);
+                domainAxis.setCategoryMargin(0.0);
+                plot.setDomainAxis(domainAxis);
+
+                return chart;
+            }
+        }.doPng(request, response);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.XvfbTrendAction_DisplayName();
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "xvfbTrend";
+    }
+
+    /** Did the last build use Xvfb, used by <code>floatingBox.jelly</code> to decide if the trend is shown. */
+    public boolean hasTimings() {
+        final Run<?, ?> lastBuild = job.getLastBuild();
+
+        return lastBuild != null && timingsOf(lastBuild) != null;
+    }
+
+    private static XvfbTimings timingsOf(final Run<?, ?> build) {
+        final XvfbEnvironment environment = build.getAction(XvfbEnvironment.class);
+
+        return environment == null ? null : environment.timings;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Pipeline step waiting for the Xvfb display in <code>DISPLAY</code> to be ready, when Xvfb was left to start in the background. Fails if Xvfb
+ * failed to start, returns right away if the display is ready or was not started in the background.
+ */
+public class XvfbWaitForDisplayStep extends Step {
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.XvfbWaitForDisplayStep_DisplayName();
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "waitForDisplay";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<Class<?>>(Arrays.<Class<?>> asList(Run.class, TaskListener.class, EnvVars.class, Launcher.class, Computer.class));
+        }
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        Execution(final StepContext context) {
+            super(context);
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final TaskListener listener = getContext().get(TaskListener.class);
+            final String display = getContext().get(EnvVars.class).get("DISPLAY");
+
+            final XvfbEnvironment xvfbEnvironment = environmentOf(run, getContext().get(Computer.class).getName(), display);
+            if (xvfbEnvironment == null) {
+                listener.getLogger().println(Messages.XvfbWaitForDisplayStep_NoDisplay(display));
+                return null;
+            }
+
+            final XvfbLaunch.Result result = Xvfb.awaitReady(run, xvfbEnvironment, getContext().get(Launcher.class).getChannel(), false);
+            if (result != null && !result.alive) {
+                Xvfb.reportFailedStart(run, xvfbEnvironment.computerName, result, listener);
+
+                throw new AbortException(Messages.XvfbBuildWrapper_FailedToStart());
+            }
+
+            return null;
+        }
+    }
+
+    /** Xvfb started by the build on the computer at the display, the most recently started if the display was reused. */
+    static XvfbEnvironment environmentOf(final Run<?, ?> run, final String computerName, final String display) {
+        final List<XvfbEnvironment> environments = run.getActions(XvfbEnvironment.class);
+
+        for (int i = environments.size() - 1; i >= 0; i--) {
+            final XvfbEnvironment environment = environments.get(i);
+
+            if (environment.display().equals(display) && computerName.equals(environment.computerName)) {
+                return environment;
+            }
+        }
+
+        return null;
+    }
+
+    @DataBoundConstructor
+    public XvfbWaitForDisplayStep() {
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        return new Execution(context);
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FormValidation;
+
+/**
+ * Pipeline step waiting for a window with a title or class matching the given regular expressions to be shown on the Xvfb display in
+ * <code>DISPLAY</code>. Subscribes to window events of the display instead of polling with <code>xdotool</code>, and returns the window found
+ * as a map.
+ */
+public class XvfbWaitForWindowStep extends Step {
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        private static FormValidation checkPattern(final String value) {
+            if (Util.fixEmpty(value) == null) {
+                return FormValidation.ok();
+            }
+
+            try {
+                Pattern.compile(value);
+            } catch (final PatternSyntaxException e) {
+                return FormValidation.error(e.getMessage());
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckTimeout(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckTitle(@QueryParameter final String value) {
+            return checkPattern(value);
+        }
+
+        public FormValidation doCheckWindowClass(@QueryParameter final String value) {
+            return checkPattern(value);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.XvfbWaitForWindowStep_DisplayName();
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "waitForWindow";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<Class<?>>(Arrays.<Class<?>> asList(Run.class, TaskListener.class, EnvVars.class, Launcher.class, Computer.class));
+        }
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<Map<String, Object>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String title;
+
+        private final String windowClass;
+
+        private final long timeout;
+
+        Execution(final StepContext context, final String title, final String windowClass, final long timeout) {
+            super(context);
+            this.title = title;
+            this.windowClass = windowClass;
+            this.timeout = timeout;
+        }
+
+        @Override
+        protected Map<String, Object> run() throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final TaskListener listener = getContext().get(TaskListener.class);
+            final String display = getContext().get(EnvVars.class).get("DISPLAY");
+
+            if (title == null && windowClass == null) {
+                throw new AbortException(Messages.XvfbWaitForWindowStep_NothingToWaitFor());
+            }
+
+            final XvfbEnvironment xvfbEnvironment = XvfbWaitForDisplayStep.environmentOf(run, getContext().get(Computer.class).getName(), display);
+            if (xvfbEnvironment == null) {
+                throw new AbortException(Messages.XvfbWaitForWindowStep_NoDisplay(display));
+            }
+
+            final VirtualChannel channel = getContext().get(Launcher.class).getChannel();
+
+            final XvfbLaunch.Result result = Xvfb.awaitReady(run, xvfbEnvironment, channel, false);
+            if (result != null && !result.alive) {
+                Xvfb.reportFailedStart(run, xvfbEnvironment.computerName, result, listener);
+
+                throw new AbortException(Messages.XvfbBuildWrapper_FailedToStart());
+            }
+
+            final long waitingAt = System.currentTimeMillis();
+            final XvfbWindows.Window window = channel
+                    .call(new XvfbWindows.WaitFor(xvfbEnvironment.displayName, xvfbEnvironment.lazy, title, windowClass, TimeUnit.SECONDS.toMillis(timeout)));
+            if (window == null) {
+                throw new AbortException(Messages.XvfbWaitForWindowStep_TimedOut(describe(), display, timeout));
+            }
+
+            listener.getLogger().println(Messages.XvfbWaitForWindowStep_Shown(window.toString().trim(), display, System.currentTimeMillis() - waitingAt));
+
+            return window.toMap();
+        }
+
+        private String describe() {
+            if (windowClass == null) {
+                return "title=/" + title + "/";
+            }
+
+            return (title == null ? "" : "title=/" + title + "/ ") + "class=/" + windowClass + "/";
+        }
+    }
+
+    private static final long DEFAULT_TIMEOUT_SECONDS = 60;
+
+    /** Regular expression found in the title of the window. */
+    private String title;
+
+    /** Regular expression found in the instance or class name of the window. */
+    private String windowClass;
+
+    /** Time to wait for the window, in seconds. */
+    private long timeout = DEFAULT_TIMEOUT_SECONDS;
+
+    @DataBoundConstructor
+    public XvfbWaitForWindowStep() {
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getWindowClass() {
+        return windowClass;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    @DataBoundSetter
+    public void setTitle(final String title) {
+        this.title = Util.fixEmpty(title);
+    }
+
+    @DataBoundSetter
+    public void setWindowClass(final String windowClass) {
+        this.windowClass = Util.fixEmpty(windowClass);
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        return new Execution(context, title, windowClass, timeout);
+    }
+}
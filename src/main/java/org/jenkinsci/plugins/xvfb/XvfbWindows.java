@@ -0,0 +1,465 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Windows of a running Xvfb, read over the X11 protocol on the node instead of forking <code>xwininfo</code> or <code>xdotool</code>. Waiting
+ * for a window subscribes to window creation, mapping and title changes, so the wait ends with the event that made the window show up.
+ */
+final class XvfbWindows {
+
+    /** A window as found in the window tree. */
+    static final class Window implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int id;
+
+        final int parent;
+
+        /** Depth in the window tree, <code>0</code> for children of the root window. */
+        final int level;
+
+        final String title;
+
+        final String instance;
+
+        final String windowClass;
+
+        final boolean viewable;
+
+        /** Position of the inside corner relative to the root window, like the absolute position <code>xwininfo</code> reports, and size. */
+        final int x;
+
+        final int y;
+
+        final int width;
+
+        final int height;
+
+        Window(final int id, final int parent, final int level, final String title, final String instance, final String windowClass, final boolean viewable,
+                final int x, final int y, final int width, final int height) {
+            this.id = id;
+            this.parent = parent;
+            this.level = level;
+            this.title = title;
+            this.instance = instance;
+            this.windowClass = windowClass;
+            this.viewable = viewable;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        static String idOf(final int window) {
+            return String.format("0x%x", window);
+        }
+
+        boolean matches(final Pattern titlePattern, final Pattern classPattern) {
+            if (titlePattern != null && (title == null || !titlePattern.matcher(title).find())) {
+                return false;
+            }
+
+            return classPattern == null || instance != null && classPattern.matcher(instance).find()
+                    || windowClass != null && classPattern.matcher(windowClass).find();
+        }
+
+        /** The window as a map of strings, numbers and booleans, for pipeline scripts. */
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("id", idOf(id));
+            map.put("parent", idOf(parent));
+            map.put("level", level);
+            map.put("title", title);
+            map.put("instance", instance);
+            map.put("class", windowClass);
+            map.put("viewable", viewable);
+            map.put("x", x);
+            map.put("y", y);
+            map.put("width", width);
+            map.put("height", height);
+
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder line = new StringBuilder();
+            for (int i = 0; i < level; i++) {
+                line.append("  ");
+            }
+            line.append(idOf(id));
+            if (title != null) {
+                line.append(" \"").append(title).append('"');
+            }
+            if (windowClass != null) {
+                line.append(" (").append(instance).append(", ").append(windowClass).append(')');
+            }
+            line.append(' ').append(width).append('x').append(height).append('+').append(x).append('+').append(y);
+            if (!viewable) {
+                line.append(" unmapped");
+            }
+
+            return line.toString();
+        }
+    }
+
+    /** Lists the window tree of the display on the node, parents before their children. */
+    static final class Inventory extends MasterToSlaveCallable<ArrayList<Window>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int displayName;
+
+        private final boolean tcp;
+
+        /** @param tcp connect over TCP on the loopback interface instead of the Unix domain socket of the display */
+        Inventory(final int displayName, final boolean tcp) {
+            this.displayName = displayName;
+            this.tcp = tcp;
+        }
+
+        @Override
+        public ArrayList<Window> call() throws IOException {
+            try (XvfbX11 x11 = XvfbX11.connect(displayName, tcp)) {
+                final ArrayList<Window> found = new ArrayList<Window>();
+                new XvfbWindows(x11).walkChildren(x11.root, 0, 0, 0, found);
+
+                return found;
+            }
+        }
+    }
+
+    /** Waits on the node for a viewable window with a matching title or class, returns <code>null</code> if none showed up in time. */
+    static final class WaitFor extends MasterToSlaveCallable<Window, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int displayName;
+
+        private final boolean tcp;
+
+        private final String title;
+
+        private final String windowClass;
+
+        private final long timeoutMillis;
+
+        /**
+         * @param title regular expression found in the title of the window, <code>null</code> for any title
+         * @param windowClass regular expression found in the instance or class name of the window, <code>null</code> for any class
+         */
+        WaitFor(final int displayName, final boolean tcp, final String title, final String windowClass, final long timeoutMillis) {
+            this.displayName = displayName;
+            this.tcp = tcp;
+            this.title = title;
+            this.windowClass = windowClass;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public Window call() throws IOException {
+            final XvfbX11 x11 = XvfbX11.connect(displayName, tcp);
+            final AtomicBoolean timedOut = new AtomicBoolean();
+            final Thread watchdog = new Thread("Xvfb window wait watchdog for :" + displayName) {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(timeoutMillis);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+
+                    // wakes up the read of the next event
+                    timedOut.set(true);
+                    try {
+                        x11.close();
+                    } catch (final IOException e) {
+                        // closed already
+                    }
+                }
+            };
+            watchdog.setDaemon(true);
+            watchdog.start();
+
+            try {
+                return new XvfbWindows(x11).await(compile(title), compile(windowClass));
+            } catch (final IOException e) {
+                if (timedOut.get()) {
+                    return null;
+                }
+
+                throw e;
+            } finally {
+                watchdog.interrupt();
+                x11.close();
+            }
+        }
+    }
+
+    private static final int CHANGE_WINDOW_ATTRIBUTES = 2;
+
+    private static final int GET_WINDOW_ATTRIBUTES = 3;
+
+    private static final int GET_GEOMETRY = 14;
+
+    private static final int QUERY_TREE = 15;
+
+    private static final int GET_PROPERTY = 20;
+
+    private static final int TRANSLATE_COORDINATES = 40;
+
+    private static final int CREATE_NOTIFY = 16;
+
+    private static final int MAP_NOTIFY = 19;
+
+    private static final int REPARENT_NOTIFY = 21;
+
+    private static final int PROPERTY_NOTIFY = 28;
+
+    private static final int CW_EVENT_MASK = 1 << 11;
+
+    private static final int STRUCTURE_NOTIFY_MASK = 1 << 17;
+
+    private static final int SUBSTRUCTURE_NOTIFY_MASK = 1 << 19;
+
+    private static final int PROPERTY_CHANGE_MASK = 1 << 22;
+
+    private static final int IS_VIEWABLE = 2;
+
+    private static final int WM_NAME = 39;
+
+    private static final int WM_CLASS = 67;
+
+    /** longest property value read, in 4 byte units */
+    private static final int PROPERTY_LENGTH = 1024;
+
+    private static Pattern compile(final String regex) {
+        return regex == null || regex.isEmpty() ? null : Pattern.compile(regex);
+    }
+
+    private final XvfbX11 x11;
+
+    /** <code>_NET_WM_NAME</code>, the UTF-8 title set by current toolkits next to the Latin-1 <code>WM_NAME</code>. */
+    private final int netWmName;
+
+    XvfbWindows(final XvfbX11 x11) throws IOException {
+        this.x11 = x11;
+
+        // clients destroy their windows at any time, requests for windows that are gone just don't find anything
+        x11.setToleratingMissingWindows(true);
+        netWmName = x11.internAtom("_NET_WM_NAME");
+    }
+
+    /** Waits for a viewable window matching the patterns, subscribing to changes of all windows before looking at them. */
+    Window await(final Pattern titlePattern, final Pattern classPattern) throws IOException {
+        final Set<Integer> watched = new HashSet<Integer>();
+
+        watch(x11.root, watched);
+        final List<Window> existing = new ArrayList<Window>();
+        walkChildren(x11.root, 0, 0, 0, existing);
+        for (final Window window : existing) {
+            watch(window.id, watched);
+            if (window.viewable && window.matches(titlePattern, classPattern)) {
+                return window;
+            }
+        }
+
+        while (true) {
+            final ByteBuffer event = x11.nextEvent();
+            final int window;
+            switch (event.get(0) & 0x7f) {
+            case CREATE_NOTIFY:
+                watch(event.getInt(8), watched);
+                continue;
+            case MAP_NOTIFY:
+            case REPARENT_NOTIFY:
+                window = event.getInt(8);
+                break;
+            case PROPERTY_NOTIFY:
+                final int atom = event.getInt(8);
+                if (atom != WM_NAME && atom != WM_CLASS && atom != netWmName) {
+                    continue;
+                }
+                window = event.getInt(4);
+                break;
+            default:
+                continue;
+            }
+
+            // mapping a window makes its mapped children viewable as well, window managers map the frame after the client
+            final List<Window> changed = new ArrayList<Window>();
+            walkFrom(window, changed);
+            for (final Window candidate : changed) {
+                watch(candidate.id, watched);
+                if (candidate.viewable && candidate.matches(titlePattern, classPattern)) {
+                    return candidate;
+                }
+            }
+        }
+    }
+
+    private ByteBuffer request(final int opcode, final int window) throws IOException {
+        final ByteBuffer request = XvfbX11.request(opcode, 0, 8);
+        request.putInt(window);
+
+        return x11.reply(x11.send(request));
+    }
+
+    private String property(final int window, final int property) throws IOException {
+        final ByteBuffer getProperty = XvfbX11.request(GET_PROPERTY, 0, 24);
+        getProperty.putInt(window).putInt(property).putInt(0).putInt(0).putInt(PROPERTY_LENGTH);
+
+        final ByteBuffer value = x11.reply(x11.send(getProperty));
+        if (value == null || value.get(1) != 8) {
+            return null;
+        }
+
+        final byte[] bytes = new byte[value.getInt(16)];
+        value.position(32);
+        value.get(bytes);
+
+        return new String(bytes, property == netWmName ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
+    /** Describes the window and its descendants, adding them to the found windows. Windows that are gone are skipped. */
+    private void walk(final int window, final int level, final int parentX, final int parentY, final List<Window> found) throws IOException {
+        final ByteBuffer tree = request(QUERY_TREE, window);
+        if (tree == null) {
+            return;
+        }
+
+        final Window described = describe(window, tree.getInt(12), level, parentX, parentY);
+        if (described == null) {
+            return;
+        }
+        found.add(described);
+
+        final int children = tree.getShort(16) & 0xffff;
+        for (int i = 0; i < children; i++) {
+            walk(tree.getInt(32 + 4 * i), level + 1, described.x, described.y, found);
+        }
+    }
+
+    /** Describes the descendants of the window, its inside corner being at the position relative to the root window. */
+    void walkChildren(final int window, final int level, final int x, final int y, final List<Window> found) throws IOException {
+        final ByteBuffer tree = request(QUERY_TREE, window);
+        if (tree == null) {
+            return;
+        }
+
+        final int children = tree.getShort(16) & 0xffff;
+        for (int i = 0; i < children; i++) {
+            walk(tree.getInt(32 + 4 * i), level, x, y, found);
+        }
+    }
+
+    /** Describes the window and its descendants, finding its level and position from its ancestors. */
+    private void walkFrom(final int window, final List<Window> found) throws IOException {
+        final ByteBuffer tree = request(QUERY_TREE, window);
+        if (tree == null || window == x11.root) {
+            return;
+        }
+
+        final int parent = tree.getInt(12);
+        final ByteBuffer translateCoordinates = XvfbX11.request(TRANSLATE_COORDINATES, 0, 16);
+        translateCoordinates.putInt(parent).putInt(x11.root).putShort((short) 0).putShort((short) 0);
+        final ByteBuffer parentPosition = x11.reply(x11.send(translateCoordinates));
+        if (parentPosition == null) {
+            return;
+        }
+
+        int level = 0;
+        for (int ancestor = parent; ancestor != x11.root;) {
+            final ByteBuffer ancestorTree = request(QUERY_TREE, ancestor);
+            if (ancestorTree == null) {
+                return;
+            }
+            ancestor = ancestorTree.getInt(12);
+            level++;
+        }
+
+        walk(window, level, parentPosition.getShort(12), parentPosition.getShort(14), found);
+    }
+
+    private Window describe(final int window, final int parent, final int level, final int parentX, final int parentY) throws IOException {
+        final ByteBuffer attributes = request(GET_WINDOW_ATTRIBUTES, window);
+        final ByteBuffer geometry = request(GET_GEOMETRY, window);
+        if (attributes == null || geometry == null) {
+            return null;
+        }
+
+        String title = property(window, netWmName);
+        if (title == null) {
+            title = property(window, WM_NAME);
+        }
+
+        String instance = null;
+        String windowClass = null;
+        final String classes = property(window, WM_CLASS);
+        if (classes != null) {
+            final String[] names = classes.split("\u0000", -1);
+            instance = names[0];
+            windowClass = names.length > 1 ? names[1] : null;
+        }
+
+        // the position is the one of the outer corner, the inside corner is further in by the border width
+        final int border = geometry.getShort(20) & 0xffff;
+
+        return new Window(window, parent, level, title, instance, windowClass, attributes.get(26) == IS_VIEWABLE, parentX + geometry.getShort(12) + border,
+                parentY + geometry.getShort(14) + border, geometry.getShort(16) & 0xffff, geometry.getShort(18) & 0xffff);
+    }
+
+    /** Subscribes to the creation of children, the mapping and title changes of the window. */
+    private void watch(final int window, final Set<Integer> watched) throws IOException {
+        if (!watched.add(window)) {
+            return;
+        }
+
+        final ByteBuffer changeAttributes = XvfbX11.request(CHANGE_WINDOW_ATTRIBUTES, 0, 16);
+        changeAttributes.putInt(window).putInt(CW_EVENT_MASK).putInt(STRUCTURE_NOTIFY_MASK | SUBSTRUCTURE_NOTIFY_MASK | PROPERTY_CHANGE_MASK);
+        x11.send(changeAttributes);
+    }
+}
@@ -0,0 +1,492 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+
+/**
+ * Minimal X11 protocol client for talking to Xvfb from the node without forking X utilities. Connects to the Unix domain socket of the display,
+ * with the socket channels of Java 16 and later or through JNA on older Java, or over TCP to displays reached that way. Requests are written
+ * little endian, replies are matched to requests by sequence number and events read in between are queued. Interrupting a thread waiting on the
+ * connection closes it, as it does with socket channels, so a remote call canceled by the controller doesn't keep waiting.
+ */
+final class XvfbX11 implements Closeable {
+
+    /** libc functions needed to connect to a Unix domain socket on Java before 16. */
+    interface LibC extends Library {
+
+        LibC INSTANCE = (LibC) Native.loadLibrary("c", LibC.class);
+
+        int close(int fd);
+
+        int connect(int fd, byte[] address, int length);
+
+        NativeLong read(int fd, Buffer buffer, NativeLong count);
+
+        NativeLong read(int fd, byte[] buffer, NativeLong count);
+
+        int shutdown(int fd, int how);
+
+        int socket(int domain, int type, int protocol);
+
+        NativeLong write(int fd, Buffer buffer, NativeLong count);
+
+        NativeLong write(int fd, byte[] buffer, NativeLong count);
+    }
+
+    /**
+     * Unix domain socket of a display opened through JNA. Direct buffers are handed to libc as they are, others are copied. A read blocked in
+     * libc can't be interrupted by Java, so interrupting the thread closes the channel, which shuts the socket down and wakes the read up.
+     */
+    private static final class NativeUnixChannel extends AbstractInterruptibleChannel implements ByteChannel {
+
+        private static final int AF_UNIX = 1;
+
+        private static final int SOCK_STREAM = 1;
+
+        private static final int SHUT_RDWR = 2;
+
+        /** size of <code>sun_path</code>, 108 on Linux and 104 on the BSDs */
+        private static final int PATH_SIZE = Platform.isLinux() ? 108 : 104;
+
+        private final int fd;
+
+        NativeUnixChannel(final String path) throws IOException {
+            final byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            if (pathBytes.length >= PATH_SIZE) {
+                throw new IOException("Display socket path is too long: " + path);
+            }
+
+            fd = LibC.INSTANCE.socket(AF_UNIX, SOCK_STREAM, 0);
+            if (fd < 0) {
+                throw new IOException("Unable to create socket, errno " + Native.getLastError());
+            }
+
+            final byte[] address = new byte[2 + PATH_SIZE];
+            if (Platform.isLinux()) {
+                ByteBuffer.wrap(address).order(ByteOrder.nativeOrder()).putShort((short) AF_UNIX);
+            } else {
+                address[0] = (byte) address.length;
+                address[1] = AF_UNIX;
+            }
+            System.arraycopy(pathBytes, 0, address, 2, pathBytes.length);
+
+            if (LibC.INSTANCE.connect(fd, address, address.length) != 0) {
+                final int errno = Native.getLastError();
+                LibC.INSTANCE.close(fd);
+                throw new IOException("Unable to connect to " + path + ", errno " + errno);
+            }
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            // wakes up a read blocked in another thread, close alone doesn't
+            LibC.INSTANCE.shutdown(fd, SHUT_RDWR);
+            LibC.INSTANCE.close(fd);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            final int length = dst.remaining();
+            if (length == 0) {
+                return 0;
+            }
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+
+            final byte[] copy = dst.isDirect() ? null : new byte[length];
+            long read = -1;
+            try {
+                begin();
+                read = (copy == null ? LibC.INSTANCE.read(fd, dst.slice(), new NativeLong(length)) : LibC.INSTANCE.read(fd, copy, new NativeLong(length)))
+                        .longValue();
+            } finally {
+                end(read > 0);
+            }
+            if (read < 0) {
+                throw new IOException("Unable to read from display, errno " + Native.getLastError());
+            }
+            if (read == 0) {
+                return -1;
+            }
+
+            if (copy == null) {
+                dst.position(dst.position() + (int) read);
+            } else {
+                dst.put(copy, 0, (int) read);
+            }
+
+            return (int) read;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+
+            final int length = src.remaining();
+            long written = -1;
+            try {
+                begin();
+                if (src.isDirect()) {
+                    written = LibC.INSTANCE.write(fd, src.slice(), new NativeLong(length)).longValue();
+                } else {
+                    final byte[] copy = new byte[length];
+                    src.duplicate().get(copy);
+                    written = LibC.INSTANCE.write(fd, copy, new NativeLong(length)).longValue();
+                }
+            } finally {
+                end(written > 0);
+            }
+            if (written < 0) {
+                throw new IOException("Unable to write to display, errno " + Native.getLastError());
+            }
+
+            src.position(src.position() + (int) written);
+
+            return (int) written;
+        }
+    }
+
+    /** X error, thrown for errors of requests that expected a reply and for errors not tolerated. */
+    static final class X11Error extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        final int sequence;
+
+        X11Error(final int code, final int sequence, final int majorOpcode, final int minorOpcode) {
+            super("X error " + (code < ERRORS.length ? ERRORS[code] : String.valueOf(code)) + " for request " + majorOpcode + "." + minorOpcode
+                    + ", sequence " + sequence);
+            this.code = code;
+            this.sequence = sequence;
+        }
+    }
+
+    static final int BAD_WINDOW = 3;
+
+    static final int BAD_DRAWABLE = 9;
+
+    private static final int ERROR = 0;
+
+    private static final int REPLY = 1;
+
+    private static final int GENERIC_EVENT = 35;
+
+    private static final int GET_INPUT_FOCUS = 43;
+
+    private static final int QUERY_EXTENSION = 98;
+
+    private static final int INTERN_ATOM = 16;
+
+    /** X errors by code, as reported for requests of the core protocol */
+    private static final String[] ERRORS = { "", "BadRequest", "BadValue", "BadWindow", "BadPixmap", "BadAtom", "BadCursor", "BadFont", "BadMatch",
+            "BadDrawable", "BadAccess", "BadAlloc", "BadColor", "BadGC", "BadIDChoice", "BadName", "BadLength", "BadImplementation" };
+
+    static XvfbX11 connect(final int displayName, final boolean tcp) throws IOException {
+        final ByteChannel channel = open(displayName, tcp);
+
+        return new XvfbX11(Channels.newInputStream(channel), Channels.newOutputStream(channel), channel);
+    }
+
+    /** Connection to the display, over TCP on the loopback interface or to the Unix domain socket of the display. */
+    static ByteChannel open(final int displayName, final boolean tcp) throws IOException {
+        if (tcp) {
+            final SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), XvfbLazyLaunch.X_TCP_PORT + displayName));
+            channel.socket().setTcpNoDelay(true);
+
+            return channel;
+        }
+
+        final String path = "/tmp/.X11-unix/X" + displayName;
+
+        final SocketChannel channel = openUnixChannel(path);
+
+        return channel != null ? channel : new NativeUnixChannel(path);
+    }
+
+    /** Unix domain socket channel on Java 16 and later, <code>null</code> on older Java. */
+    private static SocketChannel openUnixChannel(final String path) throws IOException {
+        final Object address;
+        final ProtocolFamily unix;
+        try {
+            address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+            unix = StandardProtocolFamily.valueOf("UNIX");
+        } catch (final ClassNotFoundException | NoSuchMethodException | IllegalAccessException | IllegalArgumentException e) {
+            return null;
+        } catch (final InvocationTargetException e) {
+            throw new IOException("Invalid display socket " + path, e.getCause());
+        }
+
+        final SocketChannel channel;
+        try {
+            channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (final InvocationTargetException e) {
+            throw new IOException("Unable to open socket for " + path, e.getCause());
+        }
+
+        try {
+            channel.connect((SocketAddress) address);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    static int pad(final int length) {
+        return (4 - length % 4) % 4;
+    }
+
+    /** Request of the length in bytes, with the header written. */
+    static ByteBuffer request(final int opcode, final int data, final int length) {
+        final ByteBuffer request = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        request.put((byte) opcode).put((byte) data).putShort((short) (length / 4));
+
+        return request;
+    }
+
+    private final DataInputStream in;
+
+    private final OutputStream out;
+
+    private final Closeable connection;
+
+    private final Queue<ByteBuffer> events = new ArrayDeque<ByteBuffer>();
+
+    private int sequence;
+
+    private boolean toleratingMissingWindows;
+
+    /** sequence number of the last request that failed because its window is gone */
+    private int missingWindowSequence = -1;
+
+    /** Root window of the first screen. */
+    int root;
+
+    /** Size of the first screen in pixels and millimeters. */
+    int widthPixels;
+
+    int heightPixels;
+
+    int widthMillimeters;
+
+    int heightMillimeters;
+
+    XvfbX11(final InputStream in, final OutputStream out, final Closeable connection) throws IOException {
+        this.in = new DataInputStream(in);
+        this.out = out;
+        this.connection = connection;
+
+        try {
+            setup();
+        } catch (final IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    /** Major opcode of the extension, <code>-1</code> if the server doesn't have it. */
+    int queryExtension(final String name) throws IOException {
+        final byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer queryExtension = request(QUERY_EXTENSION, 0, 8 + bytes.length + pad(bytes.length));
+        queryExtension.putShort((short) bytes.length).putShort((short) 0).put(bytes);
+
+        final ByteBuffer extension = reply(send(queryExtension));
+
+        return extension.get(8) == 0 ? -1 : extension.get(9) & 0xff;
+    }
+
+    /** Atom of the name, created if no client did yet. */
+    int internAtom(final String name) throws IOException {
+        final byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer internAtom = request(INTERN_ATOM, 0, 8 + bytes.length + pad(bytes.length));
+        internAtom.putShort((short) bytes.length).putShort((short) 0).put(bytes);
+
+        return reply(send(internAtom)).getInt(8);
+    }
+
+    /** Next event, read from the connection if none was queued while waiting for replies. */
+    ByteBuffer nextEvent() throws IOException {
+        final ByteBuffer queued = events.poll();
+        if (queued != null) {
+            return queued;
+        }
+
+        while (true) {
+            final ByteBuffer packet = readPacket();
+            if (packet != null && (packet.get(0) & 0x7f) != REPLY) {
+                return packet;
+            }
+        }
+    }
+
+    /**
+     * Reads a packet, throws errors not tolerated and returns <code>null</code> for tolerated ones. Errors of windows that are gone are
+     * tolerated when asked for, clients destroy their windows at any time.
+     */
+    private ByteBuffer readPacket() throws IOException {
+        final byte[] header = new byte[32];
+        in.readFully(header);
+        final ByteBuffer packet = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+
+        final int type = header[0] & 0x7f;
+        if (type == ERROR) {
+            final int code = header[1] & 0xff;
+            final X11Error error = new X11Error(code, packet.getShort(2) & 0xffff, header[10] & 0xff, packet.getShort(8) & 0xffff);
+            if (toleratingMissingWindows && (code == BAD_WINDOW || code == BAD_DRAWABLE)) {
+                missingWindowSequence = error.sequence;
+                return null;
+            }
+
+            throw error;
+        }
+
+        if (type != REPLY && type != GENERIC_EVENT) {
+            return packet;
+        }
+
+        // replies and generic events carry additional data
+        final int additional = packet.getInt(4) * 4;
+        final byte[] full = new byte[32 + additional];
+        System.arraycopy(header, 0, full, 0, 32);
+        in.readFully(full, 32, additional);
+
+        return ByteBuffer.wrap(full).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads the reply to the request, queueing events. Returns <code>null</code> if the request failed because its window is gone, when
+     * tolerating missing windows.
+     */
+    ByteBuffer reply(final int requestSequence) throws IOException {
+        while (true) {
+            final ByteBuffer packet = readPacket();
+            if (packet == null) {
+                if (missingWindowSequence == requestSequence) {
+                    return null;
+                }
+                continue;
+            }
+
+            final int type = packet.get(0) & 0x7f;
+            if (type == REPLY && (packet.getShort(2) & 0xffff) == requestSequence) {
+                return packet;
+            }
+            if (type != REPLY) {
+                events.add(packet);
+            }
+        }
+    }
+
+    /** Sends the request, returns its sequence number. */
+    int send(final ByteBuffer request) throws IOException {
+        out.write(request.array());
+        out.flush();
+
+        return ++sequence & 0xffff;
+    }
+
+    /** Tolerate errors of windows that are gone, instead of throwing them. */
+    void setToleratingMissingWindows(final boolean toleratingMissingWindows) {
+        this.toleratingMissingWindows = toleratingMissingWindows;
+    }
+
+    private void setup() throws IOException {
+        final ByteBuffer setup = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        setup.put((byte) 'l').put((byte) 0).putShort((short) 11).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        out.write(setup.array());
+        out.flush();
+
+        final byte[] header = new byte[8];
+        in.readFully(header);
+        final ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] data = new byte[(headerBuffer.getShort(6) & 0xffff) * 4];
+        in.readFully(data);
+
+        if (header[0] != 1) {
+            final int reasonLength = header[0] == 0 ? header[1] & 0xff : data.length;
+            throw new IOException("Xvfb refused the connection: " + new String(data, 0, Math.min(reasonLength, data.length), StandardCharsets.US_ASCII).trim());
+        }
+
+        final ByteBuffer info = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        final int vendorLength = info.getShort(16) & 0xffff;
+        final int formats = info.get(21) & 0xff;
+        final int screen = 32 + vendorLength + pad(vendorLength) + 8 * formats;
+
+        root = info.getInt(screen);
+        widthPixels = info.getShort(screen + 20) & 0xffff;
+        heightPixels = info.getShort(screen + 22) & 0xffff;
+        widthMillimeters = info.getShort(screen + 24) & 0xffff;
+        heightMillimeters = info.getShort(screen + 26) & 0xffff;
+    }
+
+    /** Waits for the requests sent so far to be processed, throwing their errors. */
+    void sync() throws IOException {
+        reply(send(request(GET_INPUT_FOCUS, 0, 4)));
+    }
+}
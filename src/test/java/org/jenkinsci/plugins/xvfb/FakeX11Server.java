@@ -0,0 +1,154 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * X server for tests, connected to the client over piped streams. Answers the connection setup with a 1024x768 screen and hands every request
+ * to {@link #handle(int, ByteBuffer)} on a thread of its own.
+ */
+abstract class FakeX11Server implements Closeable, Runnable {
+
+    static final int ROOT = 0x100;
+
+    private final PipedInputStream fromClient = new PipedInputStream(65536);
+
+    private final PipedOutputStream toServer = new PipedOutputStream();
+
+    private final PipedInputStream fromServer = new PipedInputStream(65536);
+
+    private final PipedOutputStream toClient = new PipedOutputStream();
+
+    private final Thread thread = new Thread(this, "Fake X server");
+
+    /** Requests received so far, in order. */
+    final List<ByteBuffer> requests = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+
+    FakeX11Server() throws IOException {
+        fromClient.connect(toServer);
+        fromServer.connect(toClient);
+    }
+
+    /** Connects a client, running the connection setup. */
+    XvfbX11 connect() throws IOException {
+        thread.setDaemon(true);
+        thread.start();
+
+        return new XvfbX11(fromServer, toServer, this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        toServer.close();
+        toClient.close();
+    }
+
+    /** Answers the request with the sequence number. */
+    abstract void handle(int sequence, ByteBuffer request) throws IOException;
+
+    @Override
+    public void run() {
+        try {
+            final DataInputStream in = new DataInputStream(fromClient);
+            in.readFully(new byte[12]);
+            setup();
+
+            int sequence = 0;
+            while (true) {
+                final byte[] header = new byte[4];
+                in.readFully(header);
+                final int length = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getShort(2) & 0xffff;
+                final byte[] request = new byte[length * 4];
+                System.arraycopy(header, 0, request, 0, 4);
+                in.readFully(request, 4, request.length - 4);
+
+                final ByteBuffer buffer = ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN);
+                requests.add(buffer);
+                handle(++sequence & 0xffff, buffer);
+            }
+        } catch (final IOException e) {
+            // the client went away
+        }
+    }
+
+    private void setup() throws IOException {
+        final byte[] vendor = "Fake".getBytes("US-ASCII");
+        final ByteBuffer setup = ByteBuffer.allocate(8 + 32 + vendor.length + 40).order(ByteOrder.LITTLE_ENDIAN);
+        setup.put((byte) 1).put((byte) 0).putShort((short) 11).putShort((short) 0).putShort((short) ((32 + vendor.length + 40) / 4));
+        setup.putShort(8 + 16, (short) vendor.length);
+        setup.position(8 + 32);
+        setup.put(vendor);
+        final int screen = setup.position();
+        setup.putInt(screen, ROOT);
+        setup.putShort(screen + 20, (short) 1024).putShort(screen + 22, (short) 768).putShort(screen + 24, (short) 270).putShort(screen + 26, (short) 203);
+
+        send(setup);
+    }
+
+    /** Reply to the request, with room for the additional bytes after the first 32. */
+    static ByteBuffer reply(final int sequence, final int additional) {
+        final ByteBuffer reply = ByteBuffer.allocate(32 + additional).order(ByteOrder.LITTLE_ENDIAN);
+        reply.put(0, (byte) 1).putShort(2, (short) sequence).putInt(4, additional / 4);
+
+        return reply;
+    }
+
+    /** Error of the request. */
+    static ByteBuffer error(final int sequence, final int code, final ByteBuffer request) {
+        final ByteBuffer error = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        error.put(0, (byte) 0).put(1, (byte) code).putShort(2, (short) sequence);
+        error.putShort(8, (short) (request.get(1) & 0xff)).put(10, request.get(0));
+
+        return error;
+    }
+
+    /** Event of the type, with the value at its first field. */
+    static ByteBuffer event(final int type, final int value) {
+        final ByteBuffer event = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        event.put(0, (byte) type).putInt(4, value);
+
+        return event;
+    }
+
+    void send(final ByteBuffer packet) throws IOException {
+        toClient.write(packet.array());
+        toClient.flush();
+    }
+}
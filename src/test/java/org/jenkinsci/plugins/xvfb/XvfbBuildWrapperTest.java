@@ -35,18 +35,25 @@ import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.IsNot.not;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.junit.After;
 import org.junit.Before;
@@ -55,6 +62,7 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
 
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
@@ -72,8 +80,10 @@ import hudson.model.FreeStyleProject;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.Result;
+import hudson.model.Run;
 import hudson.model.StreamBuildListener;
 import hudson.model.queue.QueueTaskFuture;
+import hudson.tasks.Shell;
 import hudson.tasks.BuildWrapper.Environment;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.ProcessTree;
@@ -119,6 +129,15 @@ public class XvfbBuildWrapperTest extends BaseXvfbTest {
         assertThat("By default display numbers should be based on executor number, they were: " + displayNumbersUsed, displayNumbersUsed, containsInAnyOrder(1, 2, 3));
     }
 
+    private static XvfbCompanion companion(final String name, final String command, final String readyPattern, final String exports, final long timeout) {
+        final XvfbCompanion companion = new XvfbCompanion(name, command);
+        companion.setReadyPattern(readyPattern);
+        companion.setExports(exports);
+        companion.setTimeout(timeout);
+
+        return companion;
+    }
+
     @Test
     @Issue("JENKINS-26848")
     public void inParallelBuildsBuildnumbersShouldBeOffsettedByComputerNumber() throws Exception {
@@ -142,6 +161,24 @@ public class XvfbBuildWrapperTest extends BaseXvfbTest {
         setupXvfbInstallations(system.jenkins, tempDir);
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldAbortAndStopDisplayIfCompanionFails() throws Exception {
+        final Xvfb xvfb = new Xvfb();
+        xvfb.setInstallationName("working");
+        xvfb.setCompanions(Arrays.asList(companion("broken", "sh -c 'echo cannot open display; exit 3'", "never", null, 10)));
+
+        final FreeStyleProject project = createFreeStyleJob(system, "shouldAbortAndStopDisplayIfCompanionFails");
+        setupXvfbOn(project, xvfb);
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        system.assertBuildStatus(Result.FAILURE, build);
+        assertThat("Failed companion and its output should be logged, and Xvfb stopped", build.getLog(20), hasItems(
+                containsString(Messages.XvfbBuildWrapper_CompanionFailed("broken")), containsString("cannot open display"),
+                containsString(Messages.XvfbBuildWrapper_Stopping())));
+    }
+
     @Test
     public void shouldCreateCommandLineArguments() throws IOException {
         final Xvfb xvfb = new Xvfb();
@@ -188,6 +225,42 @@ public class XvfbBuildWrapperTest extends BaseXvfbTest {
         assertThat(arguments.toList(), contains("/usr/local/cmd-xvfb/Xvfb", ":42", "-fbdir", tempDirRoot.getAbsolutePath()));
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldExportVariablesOfReadyCompanions() throws Exception {
+        final Xvfb xvfb = new Xvfb();
+        xvfb.setInstallationName("working");
+        xvfb.setCompanions(Arrays.asList(companion("bus", "sh -c 'echo listening on port 4242; exec tail -f /dev/null'", "port (\\d+)",
+                "COMPANION_ADDRESS=localhost:$1", 10)));
+
+        final FreeStyleProject project = createFreeStyleJob(system, "shouldExportVariablesOfReadyCompanions");
+        setupXvfbOn(project, xvfb);
+        project.getBuildersList().add(new Shell("echo \"companion at $COMPANION_ADDRESS\""));
+
+        final FreeStyleBuild build = system.buildAndAssertSuccess(project);
+
+        assertThat("Variables exported by companions should be given to the build", build.getLog(30), hasItems(
+                containsString("1 Xvfb companion(s) ready"), containsString("companion at localhost:4242")));
+    }
+
+    @Test
+    public void shouldFailCompanionsNotReadyInTime() throws Exception {
+        final String cookie = UUID.randomUUID().toString();
+        final XvfbCompanions companions = new XvfbCompanions(Arrays.asList(companion("slow", "sh -c 'echo starting; exec sleep 30'", "ready", null, 1)),
+                cookie, Collections.<String, String> emptyMap());
+
+        try {
+            final XvfbCompanions.Started started = companions.invoke(tempDir.getRoot(), null);
+
+            assertThat(started.failed, is("slow"));
+            assertThat("Output of the companion should be kept", new String(started.output, Charset.defaultCharset()), containsString("starting"));
+            assertThat("Companion should be waited for until its timeout", started.readyMillis, greaterThanOrEqualTo(1000L));
+            assertThat("Companion should not be waited for after its timeout", started.readyMillis, lessThan(5000L));
+        } finally {
+            assertThat("Companion that is not ready should be stopped with the display", new XvfbCompanions.Stop(cookie).call(), is(1));
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void shouldFailIfInstallationIsNotFound() throws Exception {
@@ -320,6 +393,24 @@ public class XvfbBuildWrapperTest extends BaseXvfbTest {
         assertThat("Xvfb should not be started if label is not matched", build.getActions(XvfbEnvironment.class), empty());
     }
 
+    @Test
+    public void shouldNotifyListenersOfDisplayLifecycle() throws Exception {
+        final FreeStyleProject project = createFreeStyleJob(system, "shouldNotifyListenersOfDisplayLifecycle");
+
+        final Xvfb xvfb = new Xvfb();
+        xvfb.setInstallationName("working");
+        setupXvfbOn(project, xvfb);
+
+        system.buildAndAssertSuccess(project);
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (RecordingXvfbListener.events.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat("Listeners should be notified in order", RecordingXvfbListener.events, contains("allocated", "ready", "teardown"));
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     @Issue("JENKINS-13046")
@@ -395,6 +486,75 @@ public class XvfbBuildWrapperTest extends BaseXvfbTest {
 
     }
 
+    @Test
+    public void shouldStartCompanionsInParallel() throws Exception {
+        final String cookie = UUID.randomUUID().toString();
+        final XvfbCompanions companions = new XvfbCompanions(Arrays.asList(
+                companion("first", "sh -c 'sleep 2; echo ready one'", "ready (\\w+)", "FIRST=$1", 10),
+                companion("second", "sh -c 'sleep 2; echo ready two'", "ready (\\w+)", "SECOND=$1", 10)), cookie, Collections.<String, String> emptyMap());
+
+        try {
+            final XvfbCompanions.Started started = companions.invoke(tempDir.getRoot(), null);
+
+            assertThat(started.failed, nullValue());
+            assertThat(started.exports, hasEntry("FIRST", "one"));
+            assertThat(started.exports, hasEntry("SECOND", "two"));
+            assertThat("Companions should be ready once their output matched", started.readyMillis, greaterThanOrEqualTo(2000L));
+            assertThat("Companions should start at once, not one after the other", started.readyMillis, lessThan(4000L));
+        } finally {
+            new XvfbCompanions.Stop(cookie).call();
+        }
+    }
+
+    @Test
+    public void shouldStartRightAwayIfLazyStartIsUnsupported() throws Exception {
+        final Xvfb xvfb = new Xvfb();
+        xvfb.setInstallationName("working");
+        xvfb.setDisplayName(42);
+        xvfb.setLazy(true);
+
+        final FreeStyleBuild build = runFreestyleJobWith(system, xvfb);
+
+        assertThat("Xvfb that does not support -displayfd should be started right away", build.getLog(20),
+                hasItems(containsString(Messages.XvfbBuildWrapper_LazyUnsupported()), containsString(":42")));
+        assertThat("Display should not be lazy", build.getAction(XvfbEnvironment.class).lazy, is(false));
+    }
+
+    @Test
+    public void shouldStopCompanionsOfDisplay() throws Exception {
+        final String cookie = UUID.randomUUID().toString();
+        final XvfbCompanions companions = new XvfbCompanions(Arrays.asList(companion("sleeping", "sh -c 'echo pid $$; exec sleep 30'", "pid (\\d+)",
+                "PID=$1", 10)), cookie, Collections.<String, String> emptyMap());
+
+        final XvfbCompanions.Started started = companions.invoke(tempDir.getRoot(), null);
+        final int pid = Integer.parseInt(started.exports.get("PID"));
+        assertThat("Companion should be running once ready", ProcessTree.get().get(pid), not(nullValue()));
+
+        assertThat(new XvfbCompanions.Stop(cookie).call(), is(1));
+        assertThat("Companion should be stopped", ProcessTree.get().get(pid), nullValue());
+        assertThat("Companions should be stopped once", new XvfbCompanions.Stop(cookie).call(), is(0));
+    }
+
+    @Test
+    public void shouldTellDaemonizedCompanionsFromFailedOnes() throws Exception {
+        final String cookie = UUID.randomUUID().toString();
+        try {
+            assertThat("Companion without ready pattern that keeps running should be ready", new XvfbCompanions(Arrays.asList(companion("running",
+                    "sh -c 'exec sleep 30'", null, null, 10)), cookie, Collections.<String, String> emptyMap()).invoke(tempDir.getRoot(), null).failed,
+                    nullValue());
+        } finally {
+            new XvfbCompanions.Stop(cookie).call();
+        }
+
+        assertThat("Companion without ready pattern that exits successfully has daemonized and should be ready", new XvfbCompanions(
+                Arrays.asList(companion("daemonized", "sh -c 'exit 0'", null, null, 10)), cookie, Collections.<String, String> emptyMap())
+                .invoke(tempDir.getRoot(), null).failed, nullValue());
+
+        assertThat("Companion without ready pattern that exits with an error should fail", new XvfbCompanions(
+                Arrays.asList(companion("exiting", "sh -c 'exit 1'", null, null, 10)), cookie, Collections.<String, String> emptyMap())
+                .invoke(tempDir.getRoot(), null).failed, is("exiting"));
+    }
+
     @Test
     public void shouldUseSpecifiedDisplayName() throws Exception {
         final Xvfb xvfb = new Xvfb();
@@ -405,4 +565,25 @@ public class XvfbBuildWrapperTest extends BaseXvfbTest {
 
         assertThat("DISPLAY environment variable should be 42, as is specified by configuration", build.getAction(XvfbEnvironment.class).displayName, is(42));
     }
+
+    @TestExtension("shouldNotifyListenersOfDisplayLifecycle")
+    public static class RecordingXvfbListener extends XvfbListener {
+
+        static final List<String> events = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void onAllocated(final Run<?, ?> run, final String computerName, final int displayName) {
+            events.add("allocated");
+        }
+
+        @Override
+        public void onReady(final Run<?, ?> run, final XvfbEnvironment environment) {
+            events.add("ready");
+        }
+
+        @Override
+        public void onTeardown(final Run<?, ?> run, final XvfbEnvironment environment) {
+            events.add("teardown");
+        }
+    }
 }
@@ -136,4 +136,32 @@ public class XvfbBuildWrapperWorkflowTest extends BaseXvfbTest {
 
         });
     }
+
+    @Test
+    public void shouldWaitForDisplayStartedInTheBackground() {
+        restartableSystem.then(new RestartableJenkinsRule.Step() {
+
+            @Override
+            public void run(final JenkinsRule rule) throws Throwable {
+                setupXvfbInstallations(restartableSystem.j.jenkins, tempDir);
+
+                final WorkflowJob workflowJob = restartableSystem.j.jenkins.createProject(WorkflowJob.class, "shouldWaitForDisplayStartedInTheBackground");
+
+                workflowJob.setDefinition(new CpsFlowDefinition(""//
+                        + "node {\n"//
+                        + "  wrap([$class: 'Xvfb', installationName: 'working', overlapped: true]) {\n"//
+                        + "    waitForDisplay()\n"//
+                        + "    sh 'echo DISPLAY=$DISPLAY'\n"//
+                        + "  }\n"//
+                        + "}", true));
+
+                final WorkflowRun workflowRun = workflowJob.scheduleBuild2(0).waitForStart();
+
+                restartableSystem.j.assertBuildStatusSuccess(restartableSystem.j.waitForCompletion(workflowRun));
+
+                restartableSystem.j.assertLogContains("DISPLAY=:", workflowRun);
+            }
+
+        });
+    }
 }
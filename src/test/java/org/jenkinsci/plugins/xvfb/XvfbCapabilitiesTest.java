@@ -0,0 +1,97 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class XvfbCapabilitiesTest {
+
+    private static final String HELP = ""//
+            + "[mi] Extension \"jenkins-xvfb-probe\" is not recognized\n"//
+            + "[mi] Only the following extensions can be run-time enabled:\n"//
+            + "[mi]    Composite\n"//
+            + "[mi]    GLX\n"//
+            + "use: X [:<display>] [option]\n"//
+            + "-a #                   default pointer acceleration (factor)\n"//
+            + "-ac                    disable access control restrictions\n"//
+            + "-displayfd fd          file descriptor to write display number to when ready to connect\n"//
+            + "-fp string             default font path\n"//
+            + "-render [default|mono|gray|color] set render color alloc policy\n"//
+            + "-multicast [addr [hops]] IPv6 multicast for XDMCP\n"//
+            + "[+-]accessx [ timeout [ timeout_mask [ feedback [ options_mask] ] ] ]\n"//
+            + "                       enable/disable accessx key sequences\n"//
+            + "-screen scrn WxHxD     set screen's width, height, depth\n"//
+            + "+extension name        Enable extension\n";
+
+    private static final String VERSION = "\nX.Org X Server 1.20.13\nX Protocol Version 11, Revision 0\n";
+
+    @Test
+    public void shouldParseProbedCapabilities() throws IOException {
+        final XvfbCapabilities capabilities = XvfbCapabilities.parse("fingerprint", VERSION, HELP);
+
+        assertThat("Should be known", capabilities.isKnown(), is(true));
+        assertThat("Version should be parsed", capabilities.version, is("X.Org X Server 1.20.13"));
+        assertThat("Extensions should be parsed", capabilities.getExtensions(), contains("Composite", "GLX"));
+        assertThat("Should support -displayfd", capabilities.supportsDisplayFd(), is(true));
+        assertThat("Should support -fp", capabilities.supports("-fp"), is(true));
+        assertThat("Should support +accessx", capabilities.supports("+accessx"), is(true));
+        assertThat("Should support +extension", capabilities.supports("+extension"), is(true));
+        assertThat("Should not support -nonexistant", capabilities.supports("-nonexistant"), is(false));
+    }
+
+    @Test
+    public void shouldNotTakeValuesOfOptionsForOptions() throws IOException {
+        final XvfbCapabilities capabilities = XvfbCapabilities.parse("fingerprint", VERSION, HELP);
+
+        assertThat("Value of -fp should not be taken for an option", capabilities.unsupportedOption(new String[] { "-fp", "-misc", "-ac" }), nullValue());
+        assertThat("Both values of -screen should be skipped", capabilities.unsupportedOption(new String[] { "-screen", "0", "-1x1", "-nonexistant" }),
+                is("-nonexistant"));
+        assertThat("Optional values should not be skipped", capabilities.unsupportedOption(new String[] { "-render", "-nonexistant" }), is("-nonexistant"));
+        assertThat("Nested optional values should not be skipped", capabilities.unsupportedOption(new String[] { "-multicast", "-nonexistant" }),
+                is("-nonexistant"));
+        assertThat(capabilities.unsupportedOption(new String[] { "+extension", "GLX", "-nonexistant", "-ac" }), is("-nonexistant"));
+    }
+
+    @Test
+    public void shouldAssumeNothingIfProbeIsNotUnderstood() throws IOException {
+        final XvfbCapabilities capabilities = XvfbCapabilities.parse("fingerprint", "", "-help\n");
+
+        assertThat("Should not be known", capabilities.isKnown(), is(false));
+        assertThat("Should not claim -displayfd support", capabilities.supportsDisplayFd(), is(false));
+        assertThat("Should not reject options", capabilities.supports("-nonexistant"), is(true));
+        assertThat("Should not reject command lines", capabilities.unsupportedOption(new String[] { "-fp", "-misc", "-nonexistant" }), nullValue());
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XvfbCgroupTest {
+
+    @Rule
+    public TemporaryFolder parent = new TemporaryFolder();
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+    }
+
+    @Before
+    public void useTemporaryParent() {
+        System.setProperty(XvfbCgroup.PARENT_PROPERTY, parent.getRoot().getPath());
+    }
+
+    @After
+    public void forgetParent() {
+        System.clearProperty(XvfbCgroup.PARENT_PROPERTY);
+    }
+
+    @Test
+    public void shouldStartXvfbInLimitedCgroup() throws IOException {
+        final List<String> command = XvfbCgroup.confining(Arrays.asList("Xvfb", ":1"), "cookie", new XvfbCgroup.Limits(-1, 50, 256),
+                new ByteArrayOutputStream());
+
+        final File cgroup = new File(parent.getRoot(), "jenkins-xvfb-cookie");
+        assertThat("Xvfb should join the cgroup", command,
+                contains("/bin/sh", "-c", "echo $$ >\"$0\" && exec \"$@\"", new File(cgroup, "cgroup.procs").getPath(), "Xvfb", ":1"));
+        assertThat("Controllers should be enabled for the cgroup", read(new File(parent.getRoot(), "cgroup.subtree_control")), is("+cpu +memory"));
+        assertThat("CPU should be limited", read(new File(cgroup, "cpu.max")), is("50000 100000"));
+        assertThat("Memory should be limited", read(new File(cgroup, "memory.max")), is(String.valueOf(256L * 1024 * 1024)));
+    }
+
+    @Test
+    public void shouldReportUsageOfCgroup() throws IOException {
+        final File cgroup = parent.newFolder("jenkins-xvfb-cookie");
+        Files.write(new File(cgroup, "cpu.stat").toPath(), "usage_usec 1500000\nuser_usec 1000000\nthrottled_usec 250000\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(new File(cgroup, "memory.current").toPath(), "2048000\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(new File(cgroup, "memory.peak").toPath(), "4096000\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(new File(cgroup, "memory.events").toPath(), "low 0\nmax 3\noom 1\noom_kill 1\n".getBytes(StandardCharsets.US_ASCII));
+
+        final XvfbCgroupUsage usage = XvfbCgroup.usageOf(cgroup);
+
+        assertThat("CPU time should be reported", usage.getCpuMillis(), is(1500L));
+        assertThat("Throttled time should be reported", usage.getThrottledMillis(), is(250L));
+        assertThat("Peak memory should be reported", usage.getMemoryPeakKb(), is(4000L));
+        assertThat("OOM kills should be reported", usage.getOomKills(), is(1L));
+    }
+
+    @Test
+    public void shouldEnableControllersOnlyWhenNeeded() throws IOException {
+        assertThat("Limits should be applicable", XvfbCgroup.prepare(new XvfbCgroup.Limits(-1, 50, 0)), nullValue());
+        assertThat("Only the cpu controller should be enabled", read(new File(parent.getRoot(), "cgroup.subtree_control")), is("+cpu"));
+    }
+
+    @Test
+    public void shouldTellWhyLimitsCantBeApplied() throws IOException {
+        System.setProperty(XvfbCgroup.PARENT_PROPERTY, new File(parent.getRoot(), "missing").getPath());
+
+        assertThat(XvfbCgroup.prepare(new XvfbCgroup.Limits(-1, 50, 256)), containsString("cgroup v2 is not available"));
+    }
+
+    @Test
+    public void shouldFailStartingWhenCgroupCantBeCreated() throws IOException {
+        parent.newFile("jenkins-xvfb-cookie");
+
+        try {
+            XvfbCgroup.confining(Arrays.asList("Xvfb", ":1"), "cookie", new XvfbCgroup.Limits(-1, 50, 256), new ByteArrayOutputStream());
+            fail("Xvfb should not be started unconfined");
+        } catch (final IOException e) {
+            assertThat(e.getMessage(), containsString("unable to create cgroup"));
+        }
+    }
+
+    @Test
+    public void shouldParseAllowedCpus() {
+        assertThat(XvfbCgroup.parseCpuList("0-3,8,10-11\n"), contains(0, 1, 2, 3, 8, 10, 11));
+        assertThat(XvfbCgroup.parseCpuList("5"), contains(5));
+    }
+}
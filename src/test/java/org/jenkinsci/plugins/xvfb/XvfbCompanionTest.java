@@ -0,0 +1,62 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class XvfbCompanionTest {
+
+    @Test
+    public void shouldExportGroupsOfReadyLine() {
+        final XvfbCompanion companion = new XvfbCompanion("dbus", "dbus-daemon --session --nofork --print-address");
+        companion.setReadyPattern("^(unix:.*)$");
+        companion.setExports("DBUS_SESSION_BUS_ADDRESS=$1\nUNMATCHED=[$2]\n\n");
+
+        final Matcher ready = Pattern.compile(companion.getReadyPattern()).matcher("unix:path=/tmp/dbus-1,guid=42");
+        assertThat("Ready line should match", ready.find(), is(true));
+
+        final Map<String, String> exports = companion.exportsFor(ready);
+        assertThat("Group should be exported", exports, hasEntry("DBUS_SESSION_BUS_ADDRESS", "unix:path=/tmp/dbus-1,guid=42"));
+        assertThat("Missing groups should be empty", exports, hasEntry("UNMATCHED", "[]"));
+        assertThat("Blank lines should be skipped", exports.size(), is(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectExportsWithoutName() {
+        XvfbCompanion.parseExports("=value");
+    }
+}
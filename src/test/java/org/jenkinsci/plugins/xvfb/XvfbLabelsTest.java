@@ -0,0 +1,77 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class XvfbLabelsTest {
+
+    private static NavigableMap<String, Integer> index() {
+        final NavigableMap<String, Integer> index = new TreeMap<String, Integer>();
+        index.put("linux", 3);
+        index.put("linux-large", 10);
+        index.put("linux-small", 1);
+        index.put("windows", 5);
+
+        return index;
+    }
+
+    @Test
+    public void shouldCompleteHighestRankedFirst() {
+        assertThat("Should offer labels with the prefix by rank", XvfbLabels.complete(index(), "lin", 10), contains("linux-large", "linux", "linux-small"));
+    }
+
+    @Test
+    public void shouldCapCandidates() {
+        assertThat("Should offer only the highest ranked candidates", XvfbLabels.complete(index(), "", 2), contains("linux-large", "windows"));
+    }
+
+    @Test
+    public void shouldRankAllLabelsWithPrefix() {
+        final NavigableMap<String, Integer> index = index();
+        for (int i = 0; i < 2000; i++) {
+            index.put(String.format("linux-%04d", i), 2);
+        }
+
+        assertThat("Labels sorting after many others should still be offered by rank", XvfbLabels.complete(index, "linux-", 2),
+                contains("linux-large", "linux-0000"));
+    }
+
+    @Test
+    public void shouldOfferNothingForUnknownPrefix() {
+        assertThat("Should not offer any labels", XvfbLabels.complete(index(), "mac", 10), empty());
+    }
+}
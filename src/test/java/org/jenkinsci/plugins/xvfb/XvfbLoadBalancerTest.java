@@ -0,0 +1,163 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.LoadBalancer;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.slaves.DumbSlave;
+
+public class XvfbLoadBalancerTest extends BaseXvfbTest {
+
+    @Rule
+    public JenkinsRule system = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    /** Tasks handed over to the load balancer that was in place before. */
+    private final List<Task> handedOver = new CopyOnWriteArrayList<Task>();
+
+    private DumbSlave busy;
+
+    private DumbSlave idle;
+
+    @Before
+    public void setupNodes() throws Exception {
+        setupXvfbInstallations(system.jenkins, tempDir);
+
+        busy = system.createSlave("xvfb-load-balancer-busy", "gui", null);
+        idle = system.createSlave("xvfb-load-balancer-idle", "gui", null);
+        system.waitOnline(busy);
+        system.waitOnline(idle);
+
+        // two displays running on the single executor of the busy node
+        XvfbNodeStatistics.of(busy.getNodeName()).displayStarted(100);
+        XvfbNodeStatistics.of(busy.getNodeName()).displayStarted(100);
+
+        system.jenkins.getQueue().setLoadBalancer(new XvfbLoadBalancer(new LoadBalancer() {
+            @Override
+            public Mapping map(final Task task, final MappingWorksheet worksheet) {
+                handedOver.add(task);
+
+                return LoadBalancer.CONSISTENT_HASH.map(task, worksheet);
+            }
+        }));
+    }
+
+    private FreeStyleProject createProjectOnGuiNodes(final String name) throws IOException {
+        final FreeStyleProject project = createFreeStyleJob(system, name);
+        project.setAssignedLabel(Label.get("gui"));
+
+        return project;
+    }
+
+    @Test
+    public void shouldPlaceXvfbBuildsOnNodesWithFreeDisplays() throws Exception {
+        final FreeStyleProject project = createProjectOnGuiNodes("shouldPlaceXvfbBuildsOnNodesWithFreeDisplays");
+        final Xvfb xvfb = new Xvfb();
+        xvfb.setInstallationName("working");
+        setupXvfbOn(project, xvfb);
+
+        final FreeStyleBuild build = system.buildAndAssertSuccess(project);
+
+        assertThat("Build should run on the node with free displays", build.getBuiltOnStr(), is(idle.getNodeName()));
+        assertThat("Build using Xvfb should not be handed over", handedOver, not(hasItem((Task) project)));
+    }
+
+    @Test
+    public void shouldHandOverBuildsWithoutXvfb() throws Exception {
+        final FreeStyleProject project = createProjectOnGuiNodes("shouldHandOverBuildsWithoutXvfb");
+
+        system.buildAndAssertSuccess(project);
+
+        assertThat("Build not using Xvfb should be placed by the load balancer in place before", handedOver, hasItem((Task) project));
+    }
+
+    @Test
+    public void shouldSortOnCapacityTakenBeforeSorting() throws Exception {
+        final List<XvfbNodeStatistics> changing = new ArrayList<XvfbNodeStatistics>();
+        final List<XvfbLoadBalancer.Capacity<Integer>> capacities = new ArrayList<XvfbLoadBalancer.Capacity<Integer>>();
+        for (int i = 0; i < 64; i++) {
+            final XvfbNodeStatistics statistics = XvfbNodeStatistics.of("shouldSortOnCapacityTakenBeforeSorting-" + i);
+            statistics.displayStarted(i * 10);
+            changing.add(statistics);
+            capacities.add(new XvfbLoadBalancer.Capacity<Integer>(i, 1 + i % 3, statistics));
+        }
+
+        final AtomicBoolean sorting = new AtomicBoolean(true);
+        final Thread builds = new Thread() {
+            @Override
+            public void run() {
+                long startup = 0;
+                while (sorting.get()) {
+                    for (final XvfbNodeStatistics statistics : changing) {
+                        statistics.displayStarted(startup++ % 5000);
+                        statistics.displayStopped();
+                    }
+                }
+            }
+        };
+        builds.start();
+        try {
+            for (int round = 0; round < 200; round++) {
+                final List<Integer> sorted = XvfbLoadBalancer.byCapacity(capacities);
+
+                assertThat(sorted.size(), is(64));
+                // free displays are 1 less than executors, and latency grows with the index
+                assertThat(sorted.get(0), is(2));
+                assertThat(sorted.get(63), is(63));
+            }
+        } finally {
+            sorting.set(false);
+            builds.join();
+        }
+    }
+}
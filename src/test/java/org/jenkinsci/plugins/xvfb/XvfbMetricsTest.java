@@ -0,0 +1,61 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class XvfbMetricsTest {
+
+    @Test
+    public void shouldEscapeLabelValues() {
+        assertThat("Should escape quotes, backslashes and newlines", XvfbMetrics.escape("a\"b\\c\nd"), is("a\\\"b\\\\c\\nd"));
+    }
+
+    @Test
+    public void shouldWriteCumulativeBuckets() {
+        final XvfbMetrics.Histogram histogram = new XvfbMetrics.Histogram();
+        histogram.observe(40);
+        histogram.observe(700);
+        histogram.observe(120000);
+
+        final StringBuilder out = new StringBuilder();
+        histogram.write(out, "xvfb_startup_seconds", "node", "agent");
+
+        final String text = out.toString();
+        assertThat("Should count observations up to the bucket", text, containsString("xvfb_startup_seconds_bucket{node=\"agent\",le=\"0.05\"} 1\n"));
+        assertThat("Should count observations up to the bucket", text, containsString("xvfb_startup_seconds_bucket{node=\"agent\",le=\"1.0\"} 2\n"));
+        assertThat("Should count all observations in +Inf", text, containsString("xvfb_startup_seconds_bucket{node=\"agent\",le=\"+Inf\"} 3\n"));
+        assertThat("Should sum in seconds", text, containsString("xvfb_startup_seconds_sum{node=\"agent\"} 120.74\n"));
+        assertThat("Should count observations", text, containsString("xvfb_startup_seconds_count{node=\"agent\"} 3\n"));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XvfbNodeCacheTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File executable(final String script) throws IOException {
+        final File executable = tempDir.newFile("Xvfb");
+        write(executable, "#!/bin/sh\n" + script + "\n");
+        executable.setExecutable(true);
+
+        return executable;
+    }
+
+    @Test
+    public void shouldWarmUpChangedExecutable() throws Exception {
+        final File started = new File(tempDir.getRoot(), "started");
+        final File executable = executable("touch " + started + "; echo 99");
+        final File cacheDir = tempDir.newFolder("cache");
+        write(new File(cacheDir, "stamp"), "an older Xvfb");
+        write(new File(cacheDir, "font-path"), "/fonts/of/older/Xvfb");
+
+        assertThat(new XvfbNodeCache.WarmUp(executable.getPath()).invoke(cacheDir, null), is(true));
+        assertThat("Xvfb should have been run", started.isFile(), is(true));
+        assertThat(read(new File(cacheDir, "stamp")), is(XvfbExecutable.fingerprintOf(executable)));
+        assertThat("Font paths of earlier versions should be removed", new File(cacheDir, "font-path").exists(), is(false));
+    }
+
+    @Test
+    public void shouldNotWarmUpUnchangedExecutableAgain() throws Exception {
+        final File executable = executable("echo Xvfb should not be started >&2; exit 1");
+        final File cacheDir = tempDir.newFolder("cache");
+        write(new File(cacheDir, "stamp"), XvfbExecutable.fingerprintOf(executable));
+
+        assertThat(new XvfbNodeCache.WarmUp(executable.getPath()).invoke(cacheDir, null), is(false));
+    }
+}
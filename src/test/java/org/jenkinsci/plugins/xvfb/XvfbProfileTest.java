@@ -0,0 +1,74 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class XvfbProfileTest {
+
+    private static final String HELP = ""//
+            + "[mi] Only the following extensions can be run-time enabled:\n"//
+            + "[mi]    COMPOSITE\n"//
+            + "[mi]    GLX\n"//
+            + "-maxclients n          set maximum number of clients (power of two)\n"//
+            + "-screen scrn WxHxD     set screen's width, height, depth\n"//
+            + "+extension name        Enable extension\n";
+
+    @Test
+    public void shouldLeaveOutUnsupportedOptions() throws IOException {
+        final XvfbCapabilities capabilities = XvfbCapabilities.parse("fingerprint", "", HELP);
+
+        assertThat("Only supported options and extensions should be used", XvfbProfile.LEAN.options(capabilities),
+                contains("-maxclients", "64", "-extension", "GLX", "-extension", "Composite"));
+    }
+
+    @Test
+    public void shouldUseAllOptionsIfCapabilitiesAreNotKnown() {
+        assertThat("GLX should be enabled", XvfbProfile.GL.options(null), contains("+extension", "GLX"));
+        assertThat("Default profile should add nothing", XvfbProfile.DEFAULT.options(null), is(empty()));
+    }
+
+    @Test
+    public void shouldFindProfileByName() {
+        assertThat("Profile should be found ignoring case", XvfbProfile.of("lean"), is(XvfbProfile.LEAN));
+        assertThat("Default profile should be used if none is given", XvfbProfile.of(null), is(XvfbProfile.DEFAULT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownProfiles() {
+        XvfbProfile.of("heavy");
+    }
+}
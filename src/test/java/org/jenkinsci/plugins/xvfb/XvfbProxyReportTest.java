@@ -0,0 +1,100 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class XvfbProxyReportTest {
+
+    private static XvfbProxy.Stats stats(final String name, final long requests, final long blockingMillis) {
+        final XvfbProxy.Stats stats = new XvfbProxy.Stats();
+        stats.name = name;
+        for (int i = 0; i < requests; i++) {
+            stats.request(43, 4);
+        }
+        stats.roundTrip(43, TimeUnit.MILLISECONDS.toNanos(blockingMillis), true);
+
+        return stats;
+    }
+
+    @Test
+    public void shouldNameCoreRequests() {
+        assertThat(XvfbProxyReport.coreRequestName(1), is("CreateWindow"));
+        assertThat(XvfbProxyReport.coreRequestName(98), is("QueryExtension"));
+        assertThat(XvfbProxyReport.coreRequestName(119), is("GetModifierMapping"));
+        assertThat(XvfbProxyReport.coreRequestName(127), is("NoOperation"));
+        assertThat("Unassigned opcodes should be named by number", XvfbProxyReport.coreRequestName(120), is("Request 120"));
+    }
+
+    @Test
+    public void shouldKeepBusiestClients() {
+        final XvfbProxyReport report = new XvfbProxyReport();
+        for (int i = 0; i < XvfbProxyReport.MAX_CLIENTS + 5; i++) {
+            report.add(stats("client" + i, i, 1));
+        }
+        report.add(stats(null, 100, 2));
+        report.add(stats(null, 50, 3));
+        report.finish();
+
+        assertThat("All connections should be counted", report.getConnections(), is((long) XvfbProxyReport.MAX_CLIENTS + 7));
+        assertThat("Only the busiest clients should be kept", report.getClients(), hasSize(XvfbProxyReport.MAX_CLIENTS));
+
+        final XvfbProxyReport.Client unnamed = report.getClients().get(0);
+        assertThat("Clients without a name should be counted together", unnamed.getName(), is(XvfbProxyReport.UNNAMED));
+        assertThat(unnamed.getConnections(), is(2L));
+        assertThat(unnamed.getRequests(), is(150L));
+        assertThat(unnamed.getBlockingMillis(), is(5L));
+        assertThat(unnamed.getMaxRoundTripMicros(), is(3000L));
+        assertThat(unnamed.getMeanRoundTripMicros(), is(2500L));
+        assertThat(report.getClients().get(1).getName(), is("client" + (XvfbProxyReport.MAX_CLIENTS + 4)));
+    }
+
+    @Test
+    public void shouldOrderRequestsByBytes() {
+        final XvfbProxyReport report = new XvfbProxyReport();
+        report.request("GetInputFocus").add(1000, 4000, 1000, TimeUnit.MILLISECONDS.toNanos(200));
+        report.request("PutImage").add(10, 1000000, 0, 0);
+        report.request("GetInputFocus").add(10, 40, 10, TimeUnit.MILLISECONDS.toNanos(2));
+        report.finish();
+
+        assertThat(report.getRequestKinds(), hasSize(2));
+        assertThat("Heaviest requests should come first", report.getRequestKinds().get(0).getName(), is("PutImage"));
+
+        final XvfbProxyReport.Request sync = report.getRequestKinds().get(1);
+        assertThat(sync.getCount(), is(1010L));
+        assertThat(sync.getBlockingReplies(), is(1010L));
+        assertThat(sync.getBlockingMillis(), is(202L));
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class XvfbProxyTest {
+
+    private static final int INTERN_ATOM = 16;
+
+    private static final int CHANGE_PROPERTY = 18;
+
+    private static final int GET_INPUT_FOCUS = 43;
+
+    private static final int PUT_IMAGE = 72;
+
+    private static final int QUERY_EXTENSION = 98;
+
+    private static final int NO_OPERATION = 127;
+
+    private final XvfbProxy proxy = new XvfbProxy(null, null, 500, 0, false);
+
+    private final XvfbProxy.Connection connection = proxy.new Connection(null, null);
+
+    private final XvfbProxy.Connection.Requests requests = connection.new Requests();
+
+    private final XvfbProxy.Connection.Replies replies = connection.new Replies();
+
+    /** Scans the bytes in pieces of the size, as reads from a socket might split them. */
+    private static void scan(final XvfbProxy.Framing framing, final ByteBuffer bytes, final int piece, final long now) {
+        final byte[] array = bytes.array();
+        for (int offset = 0; offset < bytes.position(); offset += piece) {
+            framing.scan(ByteBuffer.wrap(array, offset, Math.min(piece, bytes.position() - offset)), now);
+        }
+    }
+
+    private static ByteBuffer littleEndian(final int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer setUp(final ByteOrder order, final String authorizationName, final int authorizationDataLength) {
+        final byte[] name = authorizationName.getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer setup = ByteBuffer.allocate(12 + name.length + XvfbX11.pad(name.length) + authorizationDataLength
+                + XvfbX11.pad(authorizationDataLength)).order(order);
+        setup.put((byte) (order == ByteOrder.BIG_ENDIAN ? 'B' : 'l')).put((byte) 0).putShort((short) 11).putShort((short) 0);
+        setup.putShort((short) name.length).putShort((short) authorizationDataLength).putShort((short) 0).put(name);
+        setup.position(setup.capacity());
+
+        return setup;
+    }
+
+    private void acceptSetUp() {
+        final ByteBuffer accepted = littleEndian(8 + 16);
+        accepted.put((byte) 1).put((byte) 0).putShort((short) 11).putShort((short) 0).putShort((short) 4);
+        accepted.position(accepted.capacity());
+        scan(replies, accepted, 5, 0);
+    }
+
+    private static ByteBuffer reply(final ByteBuffer to, final int sequence, final int additional) {
+        final int start = to.position();
+        to.put((byte) 1).put((byte) 0).putShort((short) sequence).putInt(additional / 4);
+        to.position(start + 32 + additional);
+
+        return to;
+    }
+
+    @Test
+    public void shouldCountRequestsSplitAcrossReads() {
+        scan(requests, setUp(ByteOrder.LITTLE_ENDIAN, "", 0), 1, 0);
+
+        final ByteBuffer sent = littleEndian(20);
+        sent.put((byte) INTERN_ATOM).put((byte) 0).putShort((short) 4).putShort((short) 7).putShort((short) 0)
+                .put("WM_NAME".getBytes(StandardCharsets.US_ASCII));
+        sent.position(16);
+        sent.put((byte) GET_INPUT_FOCUS).put((byte) 0).putShort((short) 1);
+        scan(requests, sent, 1, 0);
+
+        assertThat(connection.stats.requests, is(2L));
+        assertThat(connection.stats.requestBytes, is(20L));
+        assertThat(connection.stats.requestsByKind.get(INTERN_ATOM)[1], is(16L));
+    }
+
+    @Test
+    public void shouldSkipAuthorizationOfBigEndianClients() {
+        scan(requests, setUp(ByteOrder.BIG_ENDIAN, "MIT-MAGIC-COOKIE-1", 16), 7, 0);
+
+        final ByteBuffer sent = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        sent.put((byte) GET_INPUT_FOCUS).put((byte) 0).putShort((short) 1);
+        sent.put((byte) NO_OPERATION).put((byte) 0).putShort((short) 1);
+        scan(requests, sent, 3, 0);
+
+        assertThat("Lengths should be read in the byte order of the client", connection.stats.requests, is(2L));
+        assertThat(connection.stats.requestsByKind.get(GET_INPUT_FOCUS)[0], is(1L));
+        assertThat(connection.stats.requestsByKind.get(NO_OPERATION)[0], is(1L));
+    }
+
+    @Test
+    public void shouldFrameBigRequests() {
+        scan(requests, setUp(ByteOrder.LITTLE_ENDIAN, "", 0), 12, 0);
+
+        final ByteBuffer sent = littleEndian(400 + 4);
+        sent.put((byte) PUT_IMAGE).put((byte) 2).putShort((short) 0).putInt(100);
+        sent.position(400);
+        sent.put((byte) NO_OPERATION).put((byte) 0).putShort((short) 1);
+        scan(requests, sent, 7, 0);
+
+        assertThat(connection.stats.requests, is(2L));
+        assertThat("Length of big requests should follow their header", connection.stats.requestsByKind.get(PUT_IMAGE)[1], is(400L));
+        assertThat(connection.stats.requestsByKind.get(NO_OPERATION)[0], is(1L));
+    }
+
+    @Test
+    public void shouldTimeRoundTripsOfTheirRequests() {
+        scan(requests, setUp(ByteOrder.LITTLE_ENDIAN, "", 0), 12, 0);
+        acceptSetUp();
+
+        final ByteBuffer sync = littleEndian(4);
+        sync.put((byte) GET_INPUT_FOCUS).put((byte) 0).putShort((short) 1);
+        scan(requests, sync, 4, 1000);
+        scan(replies, reply(littleEndian(32), 1, 0), 32, 5000);
+
+        final ByteBuffer pipelined = littleEndian(20);
+        pipelined.put((byte) INTERN_ATOM).put((byte) 0).putShort((short) 4).putShort((short) 7).putShort((short) 0)
+                .put("WM_NAME".getBytes(StandardCharsets.US_ASCII));
+        pipelined.position(16);
+        pipelined.put((byte) GET_INPUT_FOCUS).put((byte) 0).putShort((short) 1);
+        scan(requests, pipelined, 20, 6000);
+
+        final ByteBuffer answered = littleEndian(32 + 32 + 32 + 32 + 8);
+        reply(answered, 2, 0);
+        answered.put((byte) 12).put((byte) 0).putShort((short) 2);
+        answered.position(64);
+        answered.put((byte) 0).put((byte) 3).putShort((short) 2);
+        answered.position(96);
+        reply(answered, 3, 8);
+        scan(replies, answered, 9, 10000);
+
+        final XvfbProxy.Stats stats = connection.stats;
+        assertThat(stats.replies, is(3L));
+        assertThat(stats.events, is(1L));
+        assertThat(stats.errors, is(1L));
+        assertThat(stats.roundTrips, is(3L));
+        assertThat(stats.maxRoundTripNanos, is(4000L));
+        assertThat("Replies waited for with nothing else sent should be blocking", stats.blockingReplies, is(2L));
+        assertThat(stats.blockingNanos, is(8000L));
+        assertThat(stats.blockingByKind.get(GET_INPUT_FOCUS)[0], is(2L));
+        assertThat("Pipelined requests should not be blocking", stats.blockingByKind.get(INTERN_ATOM), nullValue());
+    }
+
+    @Test
+    public void shouldNameExtensionsAndClients() {
+        scan(requests, setUp(ByteOrder.LITTLE_ENDIAN, "", 0), 12, 0);
+        acceptSetUp();
+
+        final ByteBuffer queryExtension = littleEndian(16);
+        queryExtension.put((byte) QUERY_EXTENSION).put((byte) 0).putShort((short) 4).putShort((short) 5).putShort((short) 0)
+                .put("RANDR".getBytes(StandardCharsets.US_ASCII));
+        queryExtension.position(16);
+        scan(requests, queryExtension, 16, 0);
+
+        final ByteBuffer present = reply(littleEndian(32), 1, 0);
+        present.put(8, (byte) 1).put(9, (byte) 140);
+        scan(replies, present, 32, 0);
+
+        final byte[] names = "xterm\u0000XTerm\u0000".getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer changeProperty = littleEndian(24 + names.length);
+        changeProperty.put((byte) CHANGE_PROPERTY).put((byte) 0).putShort((short) 9).putInt(0x400).putInt(67).putInt(31).put((byte) 8);
+        changeProperty.position(20);
+        changeProperty.putInt(names.length).put(names);
+        scan(requests, changeProperty, 5, 0);
+
+        assertThat(proxy.nameOf(140 << 8 | 21), is("RANDR 21"));
+        assertThat(proxy.nameOf(141 << 8 | 1), is("extension 141 1"));
+        assertThat("Clients should be named by their window class", connection.stats.name, is("XTerm"));
+    }
+
+    @Test
+    public void shouldClaimDisplayWithLockFile() throws IOException {
+        final int display = 60000 + (int) (System.nanoTime() % 5000);
+        final File lockFile = XvfbProxy.lock(display);
+        try {
+            assertThat(lockFile.getPath(), is("/tmp/.X" + display + "-lock"));
+            assertThat("Lock file should hold the process id like X servers write it", new String(Files.readAllBytes(lockFile.toPath()),
+                    StandardCharsets.US_ASCII).matches(" *[0-9]+\n") && Files.size(lockFile.toPath()) == 11, is(true));
+            assertThat("Claimed display should be taken", XvfbProxy.lock(display), nullValue());
+        } finally {
+            Files.deleteIfExists(lockFile.toPath());
+        }
+    }
+}
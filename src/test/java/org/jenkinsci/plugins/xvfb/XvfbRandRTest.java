@@ -0,0 +1,176 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class XvfbRandRTest {
+
+    private static final int RANDR = 140;
+
+    private static final int CRTC = 0x40;
+
+    private static final int OUTPUT = 0x41;
+
+    private static final int MODE = 0x50;
+
+    private static final int NEW_MODE = 0x51;
+
+    /** Xvfb with one CRTC showing a 1920x1200 mode, resizable from 8x8 up to 1920x1200, recording screen and CRTC changes. */
+    private static final class FakeRandR extends FakeX11Server {
+
+        final List<String> changes = Collections.synchronizedList(new ArrayList<String>());
+
+        private final boolean refusingSize;
+
+        FakeRandR(final boolean refusingSize) throws IOException {
+            this.refusingSize = refusingSize;
+        }
+
+        @Override
+        void handle(final int sequence, final ByteBuffer request) throws IOException {
+            final int major = request.get(0) & 0xff;
+            if (major == 98) {
+                send(reply(sequence, 0).put(8, (byte) 1).put(9, (byte) RANDR));
+            } else if (major == 43) {
+                send(reply(sequence, 0));
+            } else if (major == RANDR) {
+                handleRandR(sequence, request);
+            }
+        }
+
+        private void handleRandR(final int sequence, final ByteBuffer request) throws IOException {
+            switch (request.get(1)) {
+            case 0:
+                send(reply(sequence, 0).putInt(8, 1).putInt(12, 5));
+                break;
+            case 6:
+                send(reply(sequence, 0).putShort(8, (short) 8).putShort(10, (short) 8).putShort(12, (short) 1920).putShort(14, (short) 1200));
+                break;
+            case 8:
+                final ByteBuffer resources = reply(sequence, 40).putInt(12, 7).putShort(16, (short) 1).putShort(18, (short) 1).putShort(20, (short) 1);
+                send(resources.putInt(32, CRTC).putInt(36, OUTPUT).putInt(40, MODE).putShort(44, (short) 1920).putShort(46, (short) 1200));
+                break;
+            case 20:
+                send(reply(sequence, 4).putShort(16, (short) 1920).putShort(18, (short) 1200).putInt(20, MODE).putShort(28, (short) 1).putInt(32, OUTPUT));
+                break;
+            case 16:
+                send(reply(sequence, 0).putInt(8, NEW_MODE));
+                break;
+            case 7:
+                final String size = request.getShort(8) + "x" + request.getShort(10);
+                if (refusingSize && !size.equals("1920x1200")) {
+                    changes.add("refused " + size);
+                    send(error(sequence, 2, request));
+                } else {
+                    changes.add("screen " + size);
+                }
+                break;
+            case 21:
+                changes.add("crtc " + Integer.toHexString(request.getInt(20)));
+                send(reply(sequence, 0));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void shouldParseScreenSizes() {
+        assertThat("Width and height should be parsed", XvfbRandR.parseSize("1920x1080"), is(new int[] { 1920, 1080 }));
+        assertThat("Depth should be ignored", XvfbRandR.parseSize(" 800x600x24 "), is(new int[] { 800, 600 }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMalformedScreenSizes() {
+        XvfbRandR.parseSize("1920");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEmptyScreenSizes() {
+        XvfbRandR.parseSize("0x600");
+    }
+
+    @Test
+    public void shouldStartWithLargestScreen() {
+        assertThat("Largest width and height should be taken, keeping the depth", Xvfb.largestScreen("1024x768x24", "1920x600 800x1200"), is("1920x1200x24"));
+        assertThat("Screen should be kept when no larger size is given", Xvfb.largestScreen("1024x768x24", "800x600"), is("1024x768x24"));
+    }
+
+    @Test
+    public void shouldSwitchCrtcToModeOfNewSize() throws IOException {
+        final FakeRandR server = new FakeRandR(false);
+        try (XvfbX11 x11 = server.connect()) {
+            new XvfbRandR(x11).resize(1024, 768);
+        }
+
+        assertThat("CRTC should be switched off while resizing, then on with a mode created for the size", server.changes,
+                contains("crtc 0", "screen 1024x768", "crtc " + Integer.toHexString(NEW_MODE)));
+    }
+
+    @Test
+    public void shouldRestoreScreenWhenSizeIsRefused() throws IOException {
+        final FakeRandR server = new FakeRandR(true);
+        try (XvfbX11 x11 = server.connect()) {
+            new XvfbRandR(x11).resize(1024, 768);
+            fail("Refused size should fail resizing");
+        } catch (final XvfbX11.X11Error e) {
+            assertThat(e.code, is(2));
+        }
+
+        assertThat("Previous size and mode should be restored", server.changes,
+                contains("crtc 0", "refused 1024x768", "screen 1920x1200", "crtc " + Integer.toHexString(MODE)));
+    }
+
+    @Test
+    public void shouldRejectSizesXvfbDoesNotAllow() throws IOException {
+        final FakeRandR server = new FakeRandR(false);
+        try (XvfbX11 x11 = server.connect()) {
+            new XvfbRandR(x11).resize(2560, 1440);
+            fail("Size larger than Xvfb allows should be rejected");
+        } catch (final XvfbRandR.SizeOutOfRange e) {
+            assertThat(e.maximum, is("1920x1200"));
+        }
+
+        assertThat("Screen should be left as it was", server.changes, empty());
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class XvfbRenderingTest {
+
+    @Test
+    public void shouldShareProcessorsAmongDisplays() {
+        assertThat("Processors should be divided by displays", XvfbRendering.threadsPerDisplay(16, 4), is(4));
+        assertThat("Each display should get at least one thread", XvfbRendering.threadsPerDisplay(4, 16), is(1));
+        assertThat("All processors should be given to a single display", XvfbRendering.threadsPerDisplay(8, 0), is(8));
+        assertThat("Nothing should be exported if processors are not known", XvfbRendering.threadsPerDisplay(0, 2), is(0));
+    }
+
+    @Test
+    public void shouldShareProcessorsAmongDisplaysStartedOnNode() throws InterruptedException {
+        final XvfbNodeStatistics statistics = XvfbNodeStatistics.of("rendering");
+        statistics.processorsProbed(8);
+        statistics.displayStarted(100);
+        statistics.displayStarted(100);
+
+        final Map<String, String> environment = XvfbRendering.environment(null, "rendering", null, null);
+        assertThat("Processors should be divided by the displays started on the node", environment, hasEntry(XvfbRendering.LP_NUM_THREADS, "4"));
+
+        XvfbNodeStatistics.forgetProcessors("rendering");
+        assertThat("Processors should be probed again once forgotten", XvfbRendering.environment(null, "rendering", null, null),
+                not(hasEntry(XvfbRendering.LP_NUM_THREADS, "4")));
+    }
+}
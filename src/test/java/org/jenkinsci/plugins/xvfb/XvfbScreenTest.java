@@ -0,0 +1,120 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XvfbScreenTest {
+
+    private static final int WIDTH = 200;
+
+    private static final int HEIGHT = 100;
+
+    private static final int ORANGE = 0xff8800;
+
+    @Rule
+    public TemporaryFolder frameBufferDir = new TemporaryFolder();
+
+    /** Writes a 24 bit deep XWD screen like Xvfb does, with an orange rectangle in the top left corner. */
+    private void writeScreen(final int rectangleWidth) throws IOException {
+        final byte[] windowName = "Xvfb main window\0".getBytes(StandardCharsets.US_ASCII);
+        final int headerSize = 100 + windowName.length;
+        final int colors = 256;
+        final int bytesPerLine = WIDTH * 4;
+
+        final ByteBuffer screen = ByteBuffer.allocate(headerSize + colors * 12 + bytesPerLine * HEIGHT);
+        final int[] header = { headerSize, 7, 2, 24, WIDTH, HEIGHT, 0, 0, 32, 0, 32, 32, bytesPerLine, 4, 0xff0000, 0xff00, 0xff, 8, colors, colors, WIDTH,
+                HEIGHT, 0, 0, 0 };
+        for (final int field : header) {
+            screen.putInt(field);
+        }
+        screen.put(windowName);
+
+        screen.position(headerSize + colors * 12);
+        screen.order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                screen.putInt(x < rectangleWidth && y < 30 ? ORANGE : 0);
+            }
+        }
+
+        Files.write(new File(frameBufferDir.getRoot(), "Xvfb_screen0").toPath(), screen.array());
+    }
+
+    @Test
+    public void shouldReadAllTilesOfTheScreen() throws IOException, InterruptedException {
+        writeScreen(64);
+
+        final XvfbScreen.Frame frame = new XvfbScreen(new int[0]).invoke(frameBufferDir.getRoot(), null);
+
+        assertThat("Width should be read", frame.width, is(WIDTH));
+        assertThat("Height should be read", frame.height, is(HEIGHT));
+        assertThat("All tiles should be returned", frame.tiles, hasSize(8));
+
+        final XvfbScreen.Tile last = frame.tiles.get(7);
+        assertThat("Last tile should be at the bottom right", last.x + "," + last.y, is("192,64"));
+
+        final BufferedImage first = ImageIO.read(new ByteArrayInputStream(frame.tiles.get(0).png));
+        assertThat("Tile should be full sized", first.getWidth(), is(XvfbScreen.TILE_SIZE));
+        assertThat("Colors should be decoded", first.getRGB(0, 0) & 0xffffff, is(ORANGE));
+        assertThat("Colors should be decoded", first.getRGB(63, 63) & 0xffffff, is(0));
+    }
+
+    @Test
+    public void shouldReadOnlyChangedTiles() throws IOException, InterruptedException {
+        writeScreen(64);
+        final XvfbScreen.Frame before = new XvfbScreen(new int[0]).invoke(frameBufferDir.getRoot(), null);
+
+        assertThat("Nothing changed", new XvfbScreen(before.hashes).invoke(frameBufferDir.getRoot(), null).tiles, is(empty()));
+
+        writeScreen(128);
+        final XvfbScreen.Frame after = new XvfbScreen(before.hashes).invoke(frameBufferDir.getRoot(), null);
+
+        assertThat("Only the tile the rectangle grew into changed", after.tiles, hasSize(1));
+        assertThat("Only the tile the rectangle grew into changed", after.tiles.get(0).index, is(1));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class XvfbStartThrottleTest {
+
+    @Test
+    public void shouldHalveConcurrentStartsWhenStartupIsSlow() throws InterruptedException {
+        final XvfbStartThrottle throttle = new XvfbStartThrottle(8, 100);
+
+        throttle.acquire();
+        throttle.release(500, true);
+
+        assertThat("Slow start should halve the number of concurrent starts", throttle.getLimit(), is(4));
+
+        throttle.acquire();
+        throttle.release(500, false);
+
+        assertThat("Start not ready after the target time should halve the number of concurrent starts", throttle.getLimit(), is(2));
+    }
+
+    @Test
+    public void shouldKeepConcurrentStartsWhenReadinessIsNotAwaited() throws InterruptedException {
+        final XvfbStartThrottle throttle = new XvfbStartThrottle(8, 100);
+
+        // with a timeout of 0 readiness is not waited for at all
+        for (int i = 0; i < 10; i++) {
+            throttle.acquire();
+            throttle.release(5, false);
+        }
+
+        assertThat("Starts not waited for until ready should not count as slow", throttle.getLimit(), is(8));
+
+        throttle.acquire();
+        throttle.release(500, true);
+        throttle.acquire();
+        throttle.release(50, false);
+
+        assertThat("Starts not waited for until ready should not count as fast", throttle.getLimit(), is(4));
+    }
+
+    @Test
+    public void shouldIncreaseConcurrentStartsWhenStartupIsFast() throws InterruptedException {
+        final XvfbStartThrottle throttle = new XvfbStartThrottle(8, 100);
+
+        throttle.acquire();
+        throttle.release(500, true);
+
+        throttle.acquire();
+        throttle.release(50, true);
+
+        assertThat("Fast start should allow one more concurrent start", throttle.getLimit(), is(5));
+    }
+
+    @Test
+    public void shouldQueueStartsOverTheLimit() throws InterruptedException {
+        final XvfbStartThrottle throttle = new XvfbStartThrottle(1, 100);
+
+        throttle.acquire();
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicLong waited = new AtomicLong();
+        final Thread queued = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    started.countDown();
+                    waited.set(throttle.acquire());
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        queued.start();
+
+        started.await();
+        while (throttle.getWaiting() == 0) {
+            Thread.sleep(10);
+        }
+
+        Thread.sleep(200);
+        throttle.release(50, true);
+
+        queued.join(TimeUnit.SECONDS.toMillis(10));
+
+        assertThat("Second start should have waited for the first one", waited.get(), greaterThanOrEqualTo(200L));
+    }
+}
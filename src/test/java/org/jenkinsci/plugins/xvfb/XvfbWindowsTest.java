@@ -0,0 +1,70 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class XvfbWindowsTest {
+
+    private static final XvfbWindows.Window BROWSER = new XvfbWindows.Window(0x400007, 0x200001, 1, "Mozilla Firefox", "Navigator", "firefox", true, 12,
+            40, 800, 600);
+
+    @Test
+    public void shouldMatchTitleAndClass() {
+        assertThat("Title should be searched for", BROWSER.matches(Pattern.compile("Firefox"), null), is(true));
+        assertThat("Instance name should match the class pattern", BROWSER.matches(null, Pattern.compile("^Navigator$")), is(true));
+        assertThat("Class name should match the class pattern", BROWSER.matches(null, Pattern.compile("fire")), is(true));
+        assertThat("Both patterns should match", BROWSER.matches(Pattern.compile("Firefox"), Pattern.compile("chromium")), is(false));
+    }
+
+    @Test
+    public void shouldNotMatchWindowsWithoutTitle() {
+        final XvfbWindows.Window frame = new XvfbWindows.Window(0x200001, 0x100, 0, null, null, null, true, 10, 20, 804, 622);
+
+        assertThat("Window without title should not match a title pattern", frame.matches(Pattern.compile(".*"), null), is(false));
+        assertThat("Window without class should not match a class pattern", frame.matches(null, Pattern.compile(".*")), is(false));
+    }
+
+    @Test
+    public void shouldDescribeWindowsForPipelines() {
+        final Map<String, Object> map = BROWSER.toMap();
+
+        assertThat("Id should be hexadecimal", map, hasEntry("id", (Object) "0x400007"));
+        assertThat("Class should be given", map, hasEntry("class", (Object) "firefox"));
+        assertThat("Position should be given", map, hasEntry("y", (Object) 40));
+        assertThat("Tree line should be indented by level", BROWSER.toString(), is("  0x400007 \"Mozilla Firefox\" (Navigator, firefox) 800x600+12+40"));
+    }
+}
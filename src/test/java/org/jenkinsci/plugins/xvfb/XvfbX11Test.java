@@ -0,0 +1,152 @@
+/**
+ * Copyright © 2012, Zoran Regvart
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.jenkinsci.plugins.xvfb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class XvfbX11Test {
+
+    private static final int INTERN_ATOM = 16;
+
+    private static final int GET_WINDOW_ATTRIBUTES = 3;
+
+    private static final int MAP_NOTIFY = 19;
+
+    private static final int GENERIC_EVENT = 35;
+
+    private static final int ATOM = 0x123;
+
+    private static final int GONE = 0x400;
+
+    /** Interns every atom as {@link #ATOM}, sending a map and a generic event before each reply, and fails requests for the {@link #GONE} window. */
+    private static final class EventfulServer extends FakeX11Server {
+
+        EventfulServer() throws IOException {
+        }
+
+        @Override
+        void handle(final int sequence, final ByteBuffer request) throws IOException {
+            final int opcode = request.get(0) & 0xff;
+            if (opcode == INTERN_ATOM) {
+                send(event(MAP_NOTIFY, 0x500));
+                final ByteBuffer generic = reply(0, 4);
+                generic.put(0, (byte) GENERIC_EVENT).putInt(32, 0x600);
+                send(generic);
+                send(reply(sequence, 0).putInt(8, ATOM));
+            } else if (opcode == GET_WINDOW_ATTRIBUTES) {
+                if (request.getInt(4) == GONE) {
+                    send(error(sequence, XvfbX11.BAD_WINDOW, request));
+                } else {
+                    send(reply(sequence, 12).put(1, (byte) 1));
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer getWindowAttributes(final int window) {
+        final ByteBuffer request = XvfbX11.request(GET_WINDOW_ATTRIBUTES, 0, 8);
+        request.putInt(window);
+
+        return request;
+    }
+
+    @Test
+    public void shouldReadScreenFromSetup() throws IOException {
+        final EventfulServer server = new EventfulServer();
+        try (XvfbX11 x11 = server.connect()) {
+            assertThat(x11.root, is(FakeX11Server.ROOT));
+            assertThat(x11.widthPixels, is(1024));
+            assertThat(x11.heightPixels, is(768));
+            assertThat(x11.widthMillimeters, is(270));
+            assertThat(x11.heightMillimeters, is(203));
+        }
+    }
+
+    @Test
+    public void shouldPadRequestsToFourBytes() throws IOException {
+        final EventfulServer server = new EventfulServer();
+        try (XvfbX11 x11 = server.connect()) {
+            assertThat(x11.internAtom("WM_NAME"), is(ATOM));
+        }
+
+        final ByteBuffer request = server.requests.get(0);
+        assertThat("Length should be given in 4 byte units, padding included", request.getShort(2) & 0xffff, is(4));
+        assertThat(request.getShort(4) & 0xffff, is(7));
+        assertThat(new String(request.array(), 8, 7, StandardCharsets.US_ASCII), is("WM_NAME"));
+    }
+
+    @Test
+    public void shouldQueueEventsReadWhileWaitingForReplies() throws IOException {
+        final EventfulServer server = new EventfulServer();
+        try (XvfbX11 x11 = server.connect()) {
+            x11.internAtom("WM_NAME");
+
+            final ByteBuffer map = x11.nextEvent();
+            assertThat(map.get(0) & 0x7f, is(MAP_NOTIFY));
+            assertThat(map.getInt(4), is(0x500));
+
+            final ByteBuffer generic = x11.nextEvent();
+            assertThat(generic.get(0) & 0x7f, is(GENERIC_EVENT));
+            assertThat("Generic events should be read with their additional data", generic.capacity(), is(36));
+            assertThat(generic.getInt(32), is(0x600));
+
+            // nothing is left unread between the events
+            assertThat(x11.reply(x11.send(getWindowAttributes(0x100))), notNullValue());
+        }
+    }
+
+    @Test
+    public void shouldTolerateMissingWindowsWhenAskedTo() throws IOException {
+        final EventfulServer server = new EventfulServer();
+        try (XvfbX11 x11 = server.connect()) {
+            x11.setToleratingMissingWindows(true);
+            assertThat("Requests for windows that are gone should find nothing", x11.reply(x11.send(getWindowAttributes(GONE))), nullValue());
+            assertThat("Following requests should still be answered", x11.reply(x11.send(getWindowAttributes(0x100))).get(1), is((byte) 1));
+
+            x11.setToleratingMissingWindows(false);
+            try {
+                x11.reply(x11.send(getWindowAttributes(GONE)));
+                fail("Missing windows should fail requests when not tolerated");
+            } catch (final XvfbX11.X11Error e) {
+                assertThat(e.code, is(XvfbX11.BAD_WINDOW));
+                assertThat(e.sequence, is(3));
+            }
+        }
+    }
+}